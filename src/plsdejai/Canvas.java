@@ -11,6 +11,8 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -71,6 +73,9 @@ public class Canvas extends JPanel
     *  undo/redo operations during successive filtering operations */
    private UndoUtil<BinaryImageComponent> undo;
 
+   /** The images that are produced by filtering, for filtering them again */
+   private ResultCache results = new ResultCache();
+
    /**
     * Constructor
     * @param zoom the current zoom value of the image shown on the canvas
@@ -279,6 +284,50 @@ public class Canvas extends JPanel
    public void displayFilteredImage(BufferedImage bi )
    {
       applyBinaryImageComponent(new BinaryImageComponent(bi, zoom), true, true);
+
+      // The undo history and the result cache share the same memory
+      results.trim(getHistoryImages());
+   }
+
+   /**
+    * @param source the image component that is filtered
+    * @param op the filter, with the parameters that are used
+    * @return the key of the result in the result cache
+    */
+   public String getResultKey(BinaryImageComponent source, StandardBinaryOp op)
+   {
+      return results.getKey(source.getBufferedImage(), op);
+   }
+
+   /**
+    * @param key the key of a result, as it is returned by <code>getResultKey</code>
+    * @return the cached result, or null if it is not cached
+    */
+   public BufferedImage getCachedResult(String key) { return results.get(key); }
+
+   /**
+    * Adds a result to the result cache
+    * @param key the key of the result, as it is returned by <code>getResultKey</code>
+    * @param bi the result
+    */
+   public void cacheResult(String key, BufferedImage bi)
+   {
+      results.put(key, bi, getHistoryImages());
+   }
+
+   /**
+    * @return the images of the undo and the redo lists
+    */
+   private List<BufferedImage> getHistoryImages()
+   {
+      List<BufferedImage> images = new ArrayList<BufferedImage>();
+
+      for (BinaryImageComponent bic : undo.getUndoList())
+         images.add(bic.getBufferedImage());
+      for (BinaryImageComponent bic : undo.getRedoList())
+         images.add(bic.getBufferedImage());
+
+      return images;
    }
 
    /**
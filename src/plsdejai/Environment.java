@@ -2,6 +2,7 @@ package plsdejai;
 
 import java.io.File;
 import javax.swing.JOptionPane;
+import plsdejai.util.Messages;
 
 /**
  * This class offers a variety set of methods, that are generally useful.
@@ -59,6 +60,8 @@ public class Environment {
    public static File WORK_DIR = getWorkingDirectory();
    public static final File ADDED_FILTERS_FILENAMES = new File(Environment.WORK_DIR, "added-filters.pref");
    public static final File FILTERS_PREF = new File(Environment.WORK_DIR, "filters.pref");
+   // The feature vectors of the linear subspace filter, that the optimizers reuse
+   public static final File FEATURES_DIR = new File(Environment.WORK_DIR, "features");
 
    private static File getWorkingDirectory()
    {
@@ -68,7 +71,7 @@ public class Environment {
 
       dir = new File(dir, PROGRAM_NAME);
       if (! dir.isDirectory() && !dir.mkdir()){
-         JOptionPane.showConfirmDialog(null, "Cannot access the home directory.",
+         Messages.show("Cannot access the home directory.",
                  "Home Directory access denied", JOptionPane.ERROR_MESSAGE);
          System.exit(1);
       }
@@ -88,19 +91,19 @@ public class Environment {
          home = new File(System.getProperty(propertyName));
          if (home != null && !home.exists()) {
             if (!home.mkdir()) {
-               JOptionPane.showConfirmDialog(null, "Cannot create the home directory.",
+               Messages.show("Cannot create the home directory.",
                        "Home Directory creation failed", JOptionPane.ERROR_MESSAGE);
                return null;
             }
 
          } else if (!home.isDirectory()) {
-            JOptionPane.showConfirmDialog(null, "Cannot create the home directory.",
+            Messages.show("Cannot create the home directory.",
                     "Home Directory creation failed", JOptionPane.ERROR_MESSAGE);
             return null;
          }
 
       } catch (SecurityException e) {
-         JOptionPane.showConfirmDialog(null, "Cannot access the home directory.",
+         Messages.show("Cannot access the home directory.",
                  "Home Directory access denied", JOptionPane.ERROR_MESSAGE);
          return null;
       }
@@ -1,18 +1,20 @@
 package plsdejai;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.ImagingOpException;
 import java.io.File;
 import java.io.IOException;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.WindowConstants;
+import plsdejai.batch.BatchEngine;
 import plsdejai.util.Task;
 import plsdejai.widgets.LogDialog;
 import plsdejai.widgets.filelister.FileNameExtensionFilter;
@@ -386,6 +388,8 @@ public class FileOperationsUI
          }
                   
          
+         final boolean isForced = fl.isBatchFilterForced();
+
          Task task = new Task<Void, Void>("Log Thread", filter, targetDir)
          {
             public Void doInBackground()
@@ -395,52 +399,42 @@ public class FileOperationsUI
                StandardBinaryOp filter = (StandardBinaryOp) params[0];
                File targetDir = (File) params[1];
 
-               if (selectedFiles != null)
-                  for (File f : selectedFiles) {
-                     this.firePropertyChange(LogDialog.LOG_PROPERTY, null,
-                             "Processing file '" + f.getPath() + "' : ");
-
-                     BufferedImage bi = plsdejai.io.ImageIO.fileLoad(f);
-
-                     if (bi == null) {
-                        this.firePropertyChange(LogDialog.LOG_PROPERTY, null,
-                             "FAILED -- not an image file\n");
-                        continue;
-                     }
+               if (selectedFiles != null) {
+                  List<File> files = Arrays.asList(selectedFiles);
+                  List<File> targets = new ArrayList<File>();
+                  for (File f : files) {
+                     // Put filtered files in the target directory
+                     if (plsdejai.io.ImageIO.isValidImageExtensionName(
+                             plsdejai.io.ImageIO.getExtension(f)))
+                        targets.add(new File(targetDir, "(filtered) " + f.getName()));
+                     else
+                        targets.add(new File(targetDir, "(filtered) " + f.getName() + ".jpg"));
+                  }
 
-                     // Apply current filter
-                     try {
-                        filter.setTask(this);
-                        bi = filter.filter(bi, null);
-                     } catch (ImagingOpException exc) {
-                        this.firePropertyChange(LogDialog.LOG_PROPERTY, null,
-                             "FAILED -- not a binary image\n");
-                        continue;
-                     } catch (Exception exc) {
-                        this.firePropertyChange(LogDialog.LOG_PROPERTY, null,
-                             "FAILED -- uknown restriction of the filtering operation\n");
-                        continue;
+                  // Decoding, filtering and encoding run in parallel, but the
+                  // results are logged in the order of the files.
+                  // The files that are filtered already, by the same filter, are skipped,
+                  // unless the batch is forced
+                  BatchEngine engine = new BatchEngine(filter);
+                  engine.setIncremental(!isForced);
+                  engine.run(files, targets, this, new BatchEngine.Listener()
+                  {
+                     public void fileProcessed(BatchEngine.Result result)
+                     {
+                        String status;
+                        if (result.isSkipped())
+                           status = "SKIPPED -- unchanged\n";
+                        else if (result.isOK())
+                           status = "OK --" + ((result.getReport() != null)
+                                   ? " " + result.getReport() : "") + "\n";
+                        else
+                           status = "FAILED -- " + result.getError() + "\n";
+
+                        firePropertyChange(LogDialog.LOG_PROPERTY, null,
+                                "Processing file '" + result.getFile().getPath() + "' : " + status);
                      }
-
-                     if (bi != null && ! isCancelled()) {
-                        String extension = plsdejai.io.ImageIO.getExtension(f);
-                        if (!plsdejai.io.ImageIO.isValidImageExtensionName(
-                                extension)) {
-                           extension = "jpg";
-                           // Put filtered files in the target directory
-                           plsdejai.io.ImageIO.fileStore(bi, new File(targetDir,
-                                   "(filtered) " + f.getName() + "." + extension));
-                        } else
-                           plsdejai.io.ImageIO.fileStore(bi, new File(targetDir,
-                                   "(filtered) " + f.getName()));
-
-
-                        this.firePropertyChange(LogDialog.LOG_PROPERTY, null,
-                             "OK --\n");
-
-                     }  else break;
-
-                  } // On failure the called FileLister should take care of info messages
+                  });
+               } // On failure the called FileLister should take care of info messages
 
                this.firePropertyChange(LogDialog.LOG_PROPERTY, null,
                        "******************* DONE *******************\n");
@@ -1,6 +1,10 @@
 package plsdejai;
 
+import plsdejai.optimizer.Checkpoint;
+import plsdejai.optimizer.Optimizer;
 import plsdejai.optimizer.SA;
+import plsdejai.optimizer.Sweep;
+import plsdejai.optimizer.TPE;
 import plsdejai.filter.LowerProfileOfZeroTriadsOp;
 import java.awt.image.ImagingOpException;
 import java.awt.image.BufferedImage;
@@ -17,6 +21,7 @@ import javax.swing.border.EtchedBorder;
 import javax.swing.JLabel;
 import java.awt.event.ActionEvent;
 import plsdejai.widgets.FilterListComboBox;
+import plsdejai.widgets.NumericTextField;
 import java.util.ArrayList;
 import java.util.List;
 import javax.swing.JTextField;
@@ -26,6 +31,7 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Container;
 import java.awt.Dimension;
+import java.awt.GridLayout;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemListener;
 import java.awt.event.WindowAdapter;
@@ -43,6 +49,7 @@ import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
@@ -159,9 +166,23 @@ public class Main extends JFrame
    private JButton addGTImagesButton = null;
    private JButton addSynthImagesButton = null;
    private JButton optimizeButton = null;
+   private JComboBox<String> optimizerComboBox = null;
    private File[] groundTruthImageFiles;
    private File [] syntheticImageFiles;
    private File feedbackLogFile;
+
+   // The options of the optimizers, that are set in the options dialog:
+   // the number of neighbours that the simulated annealing evaluates concurrently
+   private int numOfAnnealingWorkers = 1;
+   // the racing mode, which rejects a state before all its images are evaluated
+   private boolean isRacing = false;
+   // the multi-fidelity mode: the number of new states that are screened at
+   // each step on downsampled images, or 0 if it is off, and the largest
+   // downsampling factor
+   private int numOfScreenedStates = 0;
+   private int maxFidelityFactor = 4;
+   // the checkpoints, from which an optimization can be resumed
+   private boolean isCheckpointing = true;
    
    /* ************************************************** */
 
@@ -331,14 +352,25 @@ public class Main extends JFrame
                      BinaryImageComponent currentContent = canvas.getCurrentContent();
 
                      BufferedImage bi = null;
+                     boolean isCached = false;
 
                      StandardBinaryOp op = getCurrentFilter(true);
                      
                      if (isParametersValid(op)) {
                         
                         try {
-                           op.setTask(this);                     
-                           bi = op.filter(currentContent.getBufferedImage(), null);
+                           // The same image, filter and parameters give the same result
+                           String key = canvas.getResultKey(currentContent, op);
+                           bi = canvas.getCachedResult(key);
+                           isCached = (bi != null);
+
+                           if (!isCached) {
+                              op.setTask(this);
+                              bi = op.filter(currentContent.getBufferedImage(), null);
+
+                              if (!isCancelled() && bi != null)
+                                 canvas.cacheResult(key, bi);
+                           }
 
                         } catch (ImagingOpException exc) {
                            bi = null;
@@ -390,6 +422,8 @@ public class Main extends JFrame
                      else if (min > 0)
                         msg.append(hours).append(min).append("m:");
                      msg.append(secs).append(".").append(msecs).append("s");
+                     if (isCached)
+                        msg.append(" (cached)");
 
                      canvas.setProcessTime(msg.toString());
 
@@ -457,12 +491,12 @@ public class Main extends JFrame
       feedbackToolbar.setLayout(new BoxLayout(feedbackToolbar, BoxLayout.LINE_AXIS));
 
 
-      /* B.2.b.1 Optimizer using Simulated Annealing */
+      /* B.2.b.1 Optimizer using Simulated Annealing or TPE */
       JPanel optimizePane = new JPanel();
       optimizePane.setLayout(new BoxLayout(optimizePane, BoxLayout.PAGE_AXIS));
       optimizePane.setBorder(BorderFactory.createTitledBorder(
               BorderFactory.createEtchedBorder(EtchedBorder.LOWERED),
-              "Simulated Annealing Optimizer"));
+              "Optimizer"));
 
       // Adds the training dataset used to search for the optimum parameters
       JPanel optimizePane1 = new JPanel();
@@ -486,6 +520,21 @@ public class Main extends JFrame
          }
       });
 
+      optimizerComboBox = new JComboBox<String>(new String[] {"Simulated Annealing", "TPE",
+         "Parameter sweep"});
+      optimizerComboBox.setToolTipText("TPE needs fewer evaluations of the dataset; "
+              + "a parameter sweep writes the F1 of a grid of parameter values to a CSV file");
+      optimizerComboBox.setMaximumSize(optimizerComboBox.getPreferredSize());
+
+      JButton optimizerOptionsButton = new JButton("Options...");
+      optimizerOptionsButton.setToolTipText("The options of the simulated annealing");
+      optimizerOptionsButton.addActionListener(new ActionListener(){
+         public void actionPerformed(ActionEvent evt)
+         {
+            showOptimizerOptions();
+         }
+      });
+
       optimizeButton = new JButton("Optimize");
       optimizeButton.addActionListener(new ActionListener(){
          public void actionPerformed(ActionEvent evt)
@@ -520,9 +569,11 @@ public class Main extends JFrame
                      optimizeButton.setEnabled(false);
 
                      StandardBinaryOp filter = getCurrentFilter(true);
+                     String optimizerName = (String) optimizerComboBox.getSelectedItem();
 
                      StringBuilder msg = new StringBuilder();
-                     msg.append("\n--------------- Starting Simulated Annealing ...\n*** Algorithm: ")
+                     msg.append("\n--------------- Starting ").append(optimizerName)
+                             .append(" ...\n*** Algorithm: ")
                              .append(filter.getName()).append("\n*** Input images: \n");
 
                      for (int i = 0, size = groundTruthImageFiles.length; i < size; ++i) {
@@ -536,27 +587,111 @@ public class Main extends JFrame
                      this.firePropertyChange(LogDialog.LOG_PROPERTY, null, msg.toString());
 
                      try {
-                        SA sa = new SA(filter, groundTruthImageFiles,
-                                syntheticImageFiles);
+                        Optimizer optimizer;
+                        SA sa = null;
+                        // The feature vectors of the linear subspace filter are kept
+                        // on disk, so that later optimizations of the same images reuse them
+                        if ("TPE".equals(optimizerName)) {
+                           TPE tpe = new TPE(filter, groundTruthImageFiles,
+                                   syntheticImageFiles);
+                           tpe.setFeatureCacheDirectory(Environment.FEATURES_DIR);
+                           optimizer = tpe;
+
+                        } else if ("Parameter sweep".equals(optimizerName)) {
+                           Sweep sweep = new Sweep(filter, groundTruthImageFiles,
+                                   syntheticImageFiles);
+                           sweep.setFeatureCacheDirectory(Environment.FEATURES_DIR);
+                           if (!isCheckpointing)
+                              sweep.setCheckpointDirectory(null);
+                           optimizer = sweep;
+
+                           // A grid of many parameters can take days to evaluate
+                           long numOfPoints = sweep.getNumberOfGridPoints();
+                           if (numOfPoints > Sweep.MAX_GRID_POINTS) {
+                              Object[] options = {"Latin hypercube", "Sweep the grid", "Cancel"};
+
+                              int option = JOptionPane.showOptionDialog(null,
+                                      "The grid of the parameters of " + filter.getName() + " has "
+                                      + (numOfPoints == Long.MAX_VALUE ? "too many" : String.valueOf(numOfPoints))
+                                      + " points.\nA Latin hypercube samples the same space with far fewer points.",
+                                      "Large parameter sweep", JOptionPane.DEFAULT_OPTION,
+                                      JOptionPane.WARNING_MESSAGE, null, options, options[0]);
+
+                              if (option == 0)
+                                 sweep.setDesign(Sweep.LATIN_HYPERCUBE);
+                              else if (option == 1 && numOfPoints != Long.MAX_VALUE)
+                                 sweep.setMaxGridPoints(numOfPoints);
+                              else {
+                                 this.firePropertyChange(LogDialog.LOG_PROPERTY, null,
+                                         "The sweep is cancelled\n");
+                                 optimizer = null;
+                              }
+                           }
+
+                        } else {
+                           optimizer = sa = new SA(filter, groundTruthImageFiles,
+                                   syntheticImageFiles);
+                           sa.setFeatureCacheDirectory(Environment.FEATURES_DIR);
+                           sa.setNumberOfWorkers(numOfAnnealingWorkers);
+                           sa.setRacing(isRacing);
+                           if (!isCheckpointing)
+                              sa.setCheckpointDirectory(null);
+                           if (numOfScreenedStates > 1)
+                              sa.setMultiFidelity(numOfScreenedStates, maxFidelityFactor);
+                        }
+
+                        // A previous optimization of the same filter and dataset
+                        // can be resumed, or its best state can be the initial state
+                        Checkpoint checkpoint = (sa != null) ? sa.getCheckpoint(this) : null;
+                        if (checkpoint != null) {
+                           Object[] options = checkpoint.isFinished()
+                                   ? new Object[] {"Warm start", "Start new"}
+                                   : new Object[] {"Resume", "Warm start", "Start new"};
+
+                           int option = JOptionPane.showOptionDialog(null,
+                                   (checkpoint.isFinished()
+                                       ? "A previous optimization of this filter and dataset has finished.\n"
+                                       : "A previous optimization of this filter and dataset stopped at step "
+                                           + checkpoint.getTimeStep() + ".\n")
+                                   + "Its best state: " + checkpoint.getBestEnergy(),
+                                   "Previous optimization", JOptionPane.DEFAULT_OPTION,
+                                   JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+
+                           if (option >= 0 && "Resume".equals(options[option]))
+                              sa.setStartMode(SA.RESUME);
+                           else if (option >= 0 && "Warm start".equals(options[option]))
+                              sa.setStartMode(SA.WARM_START);
+                        }
 
                         this.firePropertyChange(LogDialog.LOG_PROPERTY, null,
                                 " Processing ... :");
-                        if (sa != null) {
+                        if (optimizer != null) {
 
-                           if (sa.start(this) && !isCancelled())
+                           if (optimizer.start(this) && !isCancelled()) {
                               this.firePropertyChange(LogDialog.LOG_PROPERTY, null, "OK\n");
 
+                              if (optimizer instanceof Sweep) {
+                                 File dir = new File(Environment.WORK_DIR, "sweeps");
+                                 File f = new File(dir, "sweep-" + System.currentTimeMillis() + ".csv");
+                                 if (dir.isDirectory() || dir.mkdirs()) {
+                                    ((Sweep) optimizer).write(f);
+                                    this.firePropertyChange(LogDialog.LOG_PROPERTY, null,
+                                            "Response table: " + f + "\n");
+                                 }
+                              }
+                           }
+
                            msg.delete(0, msg.length());
                            msg.append("Optimized Parameters:\n");
 
-                           Parameter[] parameters = sa.getOptimumParameters();
+                           Parameter[] parameters = optimizer.getOptimumParameters();
                            if (parameters != null && parameters.length > 0) {
 
                               for (Parameter param : parameters) {
                                  msg.append(">>>").append(param).append("\n");
                               }
 
-                              Energy energy = sa.getOptimumEnergy();
+                              Energy energy = optimizer.getOptimumEnergy();
                               if(energy != null){
                                  msg.append(">>>").append("precision=").append(energy.getPrecision())
                                       .append(", recall=").append(energy.getRecall())
@@ -597,7 +732,7 @@ public class Main extends JFrame
                   dialogOwner.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
                }
 
-              new LogDialog(dialogOwner, "Simulated Annealing", task);
+              new LogDialog(dialogOwner, (String) optimizerComboBox.getSelectedItem(), task);
             }
          }
       });
@@ -607,6 +742,10 @@ public class Main extends JFrame
       optimizePane1.add(Box.createHorizontalStrut(4));
       optimizePane1.add(addSynthImagesButton);
       optimizePane1.add(Box.createHorizontalStrut(4));
+      optimizePane1.add(optimizerComboBox);
+      optimizePane1.add(Box.createHorizontalStrut(4));
+      optimizePane1.add(optimizerOptionsButton);
+      optimizePane1.add(Box.createHorizontalStrut(4));
       optimizePane1.add(optimizeButton);
       optimizePane1.add(Box.createHorizontalGlue());
 
@@ -1224,6 +1363,55 @@ public class Main extends JFrame
 
    }
 
+   /**
+    * Shows the dialog of the options of the optimizers, and keeps the
+    * options that are set, for the next optimizations
+    */
+   private void showOptimizerOptions()
+   {
+      JPanel panel = new JPanel(new GridLayout(0, 2, 6, 4));
+
+      // 1 is the sequential algorithm
+      NumericTextField workersField = new NumericTextField(String.valueOf(numOfAnnealingWorkers),
+              4, NumericTextField.INTEGER, Integer.valueOf(1), Integer.valueOf(64));
+      panel.add(new JLabel("Neighbours evaluated concurrently:"));
+      panel.add(workersField);
+
+      JCheckBox racingBox = new JCheckBox("Racing", isRacing);
+      racingBox.setToolTipText("Stops the evaluation of a state, as soon as it cannot be accepted");
+      panel.add(new JLabel("Early rejection of states:"));
+      panel.add(racingBox);
+
+      NumericTextField screenedField = new NumericTextField(String.valueOf(numOfScreenedStates),
+              4, NumericTextField.INTEGER, Integer.valueOf(0), Integer.valueOf(64));
+      screenedField.setToolTipText("0 turns the multi-fidelity mode off");
+      panel.add(new JLabel("States screened at low resolution:"));
+      panel.add(screenedField);
+
+      JComboBox<String> factorCombo = new JComboBox<String>(new String[] {"2", "4"});
+      factorCombo.setSelectedItem(String.valueOf(maxFidelityFactor));
+      panel.add(new JLabel("Lowest resolution (1/n):"));
+      panel.add(factorCombo);
+
+      JCheckBox checkpointBox = new JCheckBox("Checkpoints", isCheckpointing);
+      checkpointBox.setToolTipText("Stores the state of the optimization after each step,"
+              + " so that it can be resumed");
+      panel.add(new JLabel("Resumable optimization:"));
+      panel.add(checkpointBox);
+
+      if (JOptionPane.showConfirmDialog(null, panel, "Simulated annealing options",
+              JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION)
+         return;
+
+      if (workersField.getValue() != null)
+         numOfAnnealingWorkers = workersField.getValue().intValue();
+      isRacing = racingBox.isSelected();
+      if (screenedField.getValue() != null)
+         numOfScreenedStates = screenedField.getValue().intValue();
+      maxFidelityFactor = Integer.parseInt((String) factorCombo.getSelectedItem());
+      isCheckpointing = checkpointBox.isSelected();
+   }
+
    /**
     * Valid parameters must have a non-null value
     * @param op the StandardBinaryOp object whose parameter values are checked for validity
@@ -0,0 +1,166 @@
+package plsdejai;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import plsdejai.util.PackedBinaryRaster;
+
+/**
+ * A cache of the images that are produced by filtering, so that filtering
+ * the same image again with the same filter and parameters, e.g. when the
+ * user toggles between two parameter sets, displays the previous result
+ * instead of computing it again.
+ * A result is keyed by the content of the source image, the name of the
+ * filter and its fingerprint, which covers its parameters and, for the
+ * linear subspace filter, its model.
+ *
+ * The cache is bounded by a number of bytes, which also accounts for the
+ * images of the undo history that are not in the cache; when it is full,
+ * the least recently used results are removed.
+ */
+public class ResultCache
+{
+   // The default size of the cache, as a part of the maximum heap size
+   private static final double MEMORY_FRACTION = 0.125;
+
+   // The results, from the least to the most recently used
+   private Map<String, BufferedImage> results =
+           new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+
+   // The digests of the source images, so that an image is digested once
+   private Map<BufferedImage, String> digests = new WeakHashMap<BufferedImage, String>();
+
+   private long capacity;
+   private long size = 0;
+
+   private int hits = 0;
+   private int misses = 0;
+
+   /**
+    * Creates a cache of the default size
+    */
+   public ResultCache()
+   {
+      this((long) (Runtime.getRuntime().maxMemory() * MEMORY_FRACTION));
+   }
+
+   /**
+    * @param capacity the largest total size of the results and of the images
+    *                 of the undo history, in bytes
+    */
+   public ResultCache(long capacity)
+   {
+      this.capacity = capacity;
+   }
+
+   /**
+    * @param source the image that is filtered
+    * @param op the filter, with the parameters that are used
+    * @return the key of the result
+    */
+   public String getKey(BufferedImage source, StandardBinaryOp op)
+   {
+      String digest;
+      synchronized (this) {
+         digest = digests.get(source);
+      }
+
+      if (digest == null) {
+         digest = new PackedBinaryRaster(source.getRaster(), StandardBinaryOp.FOREGROUND).digest();
+         synchronized (this) {
+            digests.put(source, digest);
+         }
+      }
+
+      return digest + "|" + op.getName() + "|" + op.getFingerprint();
+   }
+
+   /**
+    * @param key
+    * @return the result of the key, or null if it is not in the cache
+    */
+   public synchronized BufferedImage get(String key)
+   {
+      BufferedImage bi = results.get(key);
+
+      if (bi == null)
+         ++misses;
+      else
+         ++hits;
+
+      return bi;
+   }
+
+   /**
+    * Adds a result
+    * @param key
+    * @param bi the result; it must not be modified after it is added
+    * @param history the images of the undo history
+    */
+   public synchronized void put(String key, BufferedImage bi, Collection<BufferedImage> history)
+   {
+      BufferedImage old = results.put(key, bi);
+      if (old != null)
+         size -= getMemory(old);
+      size += getMemory(bi);
+
+      trim(history);
+   }
+
+   /**
+    * Removes the least recently used results, until the results and the
+    * images of the undo history that are not results fit in the cache
+    * @param history the images of the undo history
+    */
+   public synchronized void trim(Collection<BufferedImage> history)
+   {
+      Map<BufferedImage, Boolean> cached = new IdentityHashMap<BufferedImage, Boolean>();
+      for (BufferedImage bi : results.values())
+         cached.put(bi, Boolean.TRUE);
+
+      long reserved = 0;
+      for (BufferedImage bi : history)
+         if (bi != null && !cached.containsKey(bi))
+            reserved += getMemory(bi);
+
+      for (Iterator<BufferedImage> it = results.values().iterator();
+              it.hasNext() && size + reserved > capacity;) {
+         size -= getMemory(it.next());
+         it.remove();
+      }
+   }
+
+   /**
+    * @return the total size of the results, in bytes
+    */
+   public synchronized long getSize() { return size; }
+
+   public synchronized int getHits() { return hits; }
+
+   public synchronized int getMisses() { return misses; }
+
+   /**
+    * Removes all the results
+    */
+   public synchronized void clear()
+   {
+      results.clear();
+      size = 0;
+   }
+
+   /**
+    * @return the size of the data of an image, in bytes
+    */
+   private static long getMemory(BufferedImage bi)
+   {
+      DataBuffer db = bi.getRaster().getDataBuffer();
+
+      return (long) db.getSize() * db.getNumBanks()
+              * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+   }
+}
@@ -13,6 +13,7 @@ import java.awt.image.Raster;
 import java.awt.image.RasterOp;
 import java.awt.image.WritableRaster;
 import javax.swing.SwingWorker;
+import plsdejai.util.Digests;
 import plsdejai.widgets.AbstractParameterToolbar;
 
 /**
@@ -125,6 +126,59 @@ public abstract class StandardBinaryOp
          return null;
    }
 
+   /**
+    * A length parameter is measured in pixels, so its value must be scaled
+    * when the algorithm is applied to an image of a different resolution.
+    * Subclasses override this method for their length parameters.
+    * @param name the name of the parameter
+    * @return true if the parameter is a length, otherwise false
+    */
+   public boolean isLengthParameter(String name) { return false; }
+
+   /**
+    * @return a short report of the last filtering, e.g. the decisions that the
+    *         algorithm took for the image, or null. The default is null
+    */
+   public String getReport() { return null; }
+
+   /**
+    * The fingerprint changes whenever the output of the filter may change,
+    * so that a filtered image can be reused while the fingerprint is the same
+    * @return a hex SHA-1 of the class of the filter, its code version and
+    *         its parameter values
+    */
+   public String getFingerprint()
+   {
+      return Digests.sha1(getFingerprintKey());
+   }
+
+   /**
+    * The version of the code of the filter, which is part of its fingerprint.
+    * A subclass increases it when a change of its code, e.g. a bug fix,
+    * changes its output for the same parameters, so that the images that
+    * were filtered by the old code are not reused
+    * @return the version; the default is 1
+    */
+   protected int getCodeVersion() { return 1; }
+
+   /**
+    * Subclasses, whose output depends on more than their parameters,
+    * append the rest of their state to the key
+    * @return the text from which the fingerprint is calculated
+    */
+   protected String getFingerprintKey()
+   {
+      StringBuilder key = new StringBuilder(getClass().getName());
+      key.append("|v").append(getCodeVersion());
+
+      Parameter[] params = getParameters();
+      if (params != null)
+         for (Parameter param : params)
+            key.append('|').append(param.name).append('=').append(param.value);
+
+      return key.toString();
+   }
+
 
    /**
     * Stores the color model of the input image argument of the <code>filter()</code> function
@@ -0,0 +1,519 @@
+package plsdejai.batch;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ImagingOpException;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingWorker;
+import plsdejai.StandardBinaryOp;
+import plsdejai.io.ImageIO;
+import plsdejai.util.Digests;
+
+/**
+ * Filters a batch of image files in parallel. Decoding, filtering and
+ * encoding are separate stages, each with its own threads; every filtering
+ * worker has its own clone of the filter.
+ * The images in flight are bounded by a memory budget: before an image is
+ * decoded, its memory is estimated from the header of its file, and it waits
+ * until the images that are in flight leave enough of the budget.
+ * The results are reported in the order of the files, on the thread that
+ * calls run(), so they can be logged as they come.
+ * Each directory of filtered images has a Manifest, that records from which
+ * input and filter each image was created; an incremental run skips the files
+ * whose filtered image is still valid.
+ *
+ * The usage is:
+ * - BatchEngine engine = new BatchEngine(op);
+ * - engine.run(files, targets, task, listener);
+ */
+public class BatchEngine
+{
+   /**
+    * Receives the result of each file, in the order of the files
+    */
+   public interface Listener
+   {
+      void fileProcessed(Result result);
+   }
+
+   /**
+    * The result of the filtering of a file
+    */
+   public static class Result
+   {
+      private File file;
+      private File target;
+      private String error;
+      private boolean isSkipped;
+      private String report;
+      private long time;
+
+      public File getFile() { return file; }
+
+      public File getTarget() { return target; }
+
+      /**
+       * @return the reason of the failure, or null if the file is filtered and stored
+       */
+      public String getError() { return error; }
+
+      public boolean isOK() { return error == null; }
+
+      /**
+       * @return true if the filtered image is still valid, so it is not created again
+       */
+      public boolean isSkipped() { return isSkipped; }
+
+      /**
+       * @return the report of the filter for the file, or null
+       * @see StandardBinaryOp#getReport()
+       */
+      public String getReport() { return report; }
+
+      /**
+       * @return the time in ms of the decoding, the filtering and the encoding
+       *         of the file. The time that the file waited for a decoder,
+       *         a worker or an encoder is not included
+       */
+      public long getTime() { return time; }
+   }
+
+   // The part of the maximum heap that is used by the images in flight
+   private static final double MEMORY_FRACTION = 0.5;
+   // The number of results after which the manifests are stored
+   private static final int MANIFEST_STORE_INTERVAL = 256;
+
+   private StandardBinaryOp op;
+   private int numOfWorkers = Runtime.getRuntime().availableProcessors();
+   private int numOfDecoders = Math.max(1, numOfWorkers / 2);
+   private int numOfEncoders = Math.max(1, numOfWorkers / 4);
+   private long memoryBudget = (long) (Runtime.getRuntime().maxMemory() * MEMORY_FRACTION);
+   private boolean isIncremental = false;
+
+   /**
+    * @param op the filter; it is cloned for each worker
+    */
+   public BatchEngine(StandardBinaryOp op)
+   {
+      this.op = op;
+   }
+
+   /**
+    * Sets the number of images that are filtered concurrently.
+    * The default is the number of the available processors
+    * @param n
+    */
+   public void setNumberOfWorkers(int n)
+   {
+      numOfWorkers = Math.max(1, n);
+   }
+
+   public int getNumberOfWorkers() { return numOfWorkers; }
+
+   /**
+    * Sets the number of images that are decoded concurrently
+    * @param n
+    */
+   public void setNumberOfDecoders(int n)
+   {
+      numOfDecoders = Math.max(1, n);
+   }
+
+   /**
+    * Sets the number of images that are encoded concurrently
+    * @param n
+    */
+   public void setNumberOfEncoders(int n)
+   {
+      numOfEncoders = Math.max(1, n);
+   }
+
+   /**
+    * Sets the memory, that the images in flight can use. An image that needs
+    * more than the budget is processed alone. The default is half of the heap
+    * @param bytes
+    */
+   public void setMemoryBudget(long bytes)
+   {
+      memoryBudget = Math.max(1024, bytes);
+   }
+
+   /**
+    * Sets if the files, whose filtered image is recorded in the manifest of
+    * its directory as created from the same input by the same filter and
+    * parameters, are skipped. The manifests are updated in either case
+    * @param isIncremental
+    */
+   public void setIncremental(boolean isIncremental)
+   {
+      this.isIncremental = isIncremental;
+   }
+
+   /**
+    * Filters the files, and stores the filtered images
+    * @param files the image files
+    * @param targets the file of each filtered image; the type of the image
+    *                is defined by its extension
+    * @param task the thread that runs the batch, for cancellation, or null
+    * @param listener receives the results in the order of the files, or null
+    * @return the number of the files that are filtered and stored
+    */
+   public int run(List<File> files, List<File> targets, SwingWorker task, Listener listener)
+   {
+      if (files.size() != targets.size())
+         throw new IllegalArgumentException("The number of files and targets is not the same");
+
+      int size = files.size();
+      final Job[] jobs = new Job[size];
+      for (int i = 0; i < size; ++i)
+         jobs[i] = new Job(files.get(i), targets.get(i));
+
+      final BlockingQueue<StandardBinaryOp> ops = new LinkedBlockingQueue<StandardBinaryOp>();
+      for (int i = 0; i < numOfWorkers; ++i) {
+         StandardBinaryOp clone = op.clone();
+         clone.setTask(task);
+         ops.add(clone);
+      }
+
+      final String filterName = op.getName();
+      final String fingerprint = op.getFingerprint();
+      final Map<File, Manifest> manifests = new HashMap<File, Manifest>();
+
+      final int budget = (int) Math.min(Integer.MAX_VALUE, memoryBudget >> 10);
+      final Semaphore memory = new Semaphore(budget);
+      // Bounds also the number of small images in flight
+      final Semaphore inFlight = new Semaphore(2 * numOfWorkers + numOfDecoders + numOfEncoders);
+
+      final ExecutorService decoders = Executors.newFixedThreadPool(numOfDecoders);
+      final ExecutorService workers = Executors.newFixedThreadPool(numOfWorkers);
+      final ExecutorService encoders = Executors.newFixedThreadPool(numOfEncoders);
+
+      // Submits the files to the decoders, as the budget allows
+      Thread producer = new Thread("Batch producer")
+      {
+         public void run()
+         {
+            try {
+               for (final Job job : jobs) {
+                  job.permits = (int) Math.min(budget, Math.max(1, estimateMemory(job.file) >> 10));
+
+                  inFlight.acquire();
+                  try {
+                     memory.acquire(job.permits);
+                  } catch (InterruptedException e) {
+                     inFlight.release();
+                     throw e;
+                  }
+
+                  job.release = new Runnable()
+                  {
+                     public void run()
+                     {
+                        memory.release(job.permits);
+                        inFlight.release();
+                     }
+                  };
+
+                  decoders.execute(new Stage(job)
+                  {
+                     void process()
+                     {
+                        if (!job.file.isFile()) {
+                           job.finish("not a file");
+                           return;
+                        }
+
+                        job.manifest = getManifest(manifests, job.target);
+                        try {
+                           job.inputHash = Digests.sha1(job.file);
+                        } catch (IOException e) {
+                           job.finish("cannot read the file");
+                           return;
+                        }
+
+                        if (isIncremental && job.manifest.isValid(
+                                job.target, job.inputHash, filterName, fingerprint)) {
+                           job.result.isSkipped = true;
+                           job.finish(null);
+                           return;
+                        }
+
+                        // The errors are returned in the result; a dialog
+                        // would block the decoder
+                        try {
+                           job.image = ImageIO.decode(job.file);
+                        } catch (IOException e) {
+                           job.finish(e.getMessage());
+                           return;
+                        }
+
+                        next(workers, new Stage(job)
+                        {
+                           void process() throws InterruptedException
+                           {
+                              StandardBinaryOp workerOp = ops.take();
+                              try {
+                                 job.image = workerOp.filter(job.image, null);
+                                 job.result.report = workerOp.getReport();
+                              } finally {
+                                 ops.put(workerOp);
+                              }
+
+                              if (job.image == null) {
+                                 job.finish("the filter is not ready, or it is cancelled");
+                                 return;
+                              }
+
+                              next(encoders, new Stage(job)
+                              {
+                                 void process()
+                                 {
+                                    String error = store(job.image, job.target);
+                                    if (error == null)
+                                       job.manifest.put(job.target, job.inputHash,
+                                               filterName, fingerprint);
+
+                                    job.finish(error);
+                                 }
+                              });
+                           }
+                        });
+                     }
+                  });
+               }
+
+            } catch (InterruptedException e) {
+               // cancelled
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+               // cancelled
+            }
+         }
+      };
+      producer.setDaemon(true);
+      producer.start();
+
+      int ok = 0;
+      int count = 0;
+      try {
+         for (Job job : jobs) {
+            while (!job.done.await(100, TimeUnit.MILLISECONDS)) {
+               if (task != null && task.isCancelled())
+                  return ok;
+            }
+
+            if (job.result.isOK())
+               ++ok;
+
+            if (listener != null)
+               listener.fileProcessed(job.result);
+
+            if (++count % MANIFEST_STORE_INTERVAL == 0)
+               storeManifests(manifests);
+         }
+
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+
+      } finally {
+         producer.interrupt();
+         decoders.shutdownNow();
+         workers.shutdownNow();
+         encoders.shutdownNow();
+
+         storeManifests(manifests);
+      }
+
+      return ok;
+   }
+
+   /**
+    * @return the manifest of the directory of a filtered image
+    */
+   private static Manifest getManifest(Map<File, Manifest> manifests, File target)
+   {
+      File dir = target.getAbsoluteFile().getParentFile();
+
+      synchronized (manifests) {
+         Manifest manifest = manifests.get(dir);
+         if (manifest == null) {
+            manifest = new Manifest(dir);
+            manifests.put(dir, manifest);
+         }
+
+         return manifest;
+      }
+   }
+
+   private static void storeManifests(Map<File, Manifest> manifests)
+   {
+      synchronized (manifests) {
+         for (Manifest manifest : manifests.values())
+            manifest.store();
+      }
+   }
+
+   /**
+    * Stores an image, after the directory of the file is created
+    * @return the error, or null if the image is stored
+    */
+   private static String store(BufferedImage bi, File target)
+   {
+      File dir = target.getAbsoluteFile().getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs())
+         return "cannot create the directory '" + dir + "'";
+
+      if (!ImageIO.fileStore(bi, target))
+         return "cannot store '" + target + "'";
+
+      return null;
+   }
+
+   /**
+    * Estimates the memory of an image in flight from the header of its file:
+    * the decoded image, its binary copy and the filtered image
+    * @param f
+    * @return the estimate in bytes
+    */
+   static long estimateMemory(File f)
+   {
+      ImageInputStream in = null;
+      ImageReader reader = null;
+
+      try {
+         in = javax.imageio.ImageIO.createImageInputStream(f);
+         if (in == null)
+            return f.length();
+
+         Iterator<ImageReader> it = javax.imageio.ImageIO.getImageReaders(in);
+         if (!it.hasNext())
+            return f.length();
+
+         reader = it.next();
+         reader.setInput(in, true, true);
+
+         long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+
+         int bitsPerPixel = 32;
+         ImageTypeSpecifier type = reader.getRawImageType(0);
+         if (type != null) {
+            bitsPerPixel = 0;
+            for (int size : type.getSampleModel().getSampleSize())
+               bitsPerPixel += size;
+         }
+
+         // The decoded image, and the binary images of the filtering
+         return pixels * Math.max(1, bitsPerPixel) / 8 + pixels / 2;
+
+      } catch (IOException e) {
+         return f.length();
+      } catch (RuntimeException e) {
+         return f.length();
+
+      } finally {
+         if (reader != null)
+            reader.dispose();
+         try {
+            if (in != null)
+               in.close();
+         } catch (IOException e) { }
+      }
+   }
+
+   /**
+    * A file that is processed
+    */
+   private static class Job
+   {
+      File file;
+      File target;
+      BufferedImage image;
+      // The content hash of the file, and the manifest of the target
+      String inputHash;
+      Manifest manifest;
+      // The time of the stages that are completed, and the start of the current stage
+      long time;
+      long stageStart;
+      // The memory in KB that is reserved for the image
+      int permits;
+      // Releases the reservations of the job
+      Runnable release;
+
+      Result result = new Result();
+      CountDownLatch done = new CountDownLatch(1);
+
+      Job(File file, File target)
+      {
+         this.file = file;
+         this.target = target;
+         result.file = file;
+         result.target = target;
+      }
+
+      /**
+       * Sets the result, and releases the image and its memory
+       * @param error the error, or null on success
+       */
+      void finish(String error)
+      {
+         result.error = error;
+         result.time = time + System.currentTimeMillis() - stageStart;
+         image = null;
+         release.run();
+         done.countDown();
+      }
+   }
+
+   /**
+    * A stage of the processing of a job. A failure finishes the job
+    */
+   private static abstract class Stage implements Runnable
+   {
+      Job job;
+
+      Stage(Job job) { this.job = job; }
+
+      abstract void process() throws InterruptedException;
+
+      /**
+       * Passes the job to the next stage, after the time of this stage is added
+       * to the time of the job; the job is not accessed by this stage afterwards
+       */
+      void next(ExecutorService stages, Stage next)
+      {
+         job.time += System.currentTimeMillis() - job.stageStart;
+         stages.execute(next);
+      }
+
+      public void run()
+      {
+         job.stageStart = System.currentTimeMillis();
+
+         try {
+            process();
+
+         } catch (ImagingOpException e) {
+            job.finish("not a binary image");
+         } catch (InterruptedException e) {
+            job.finish("cancelled");
+         } catch (OutOfMemoryError e) {
+            job.finish("out of memory");
+         } catch (RuntimeException e) {
+            job.finish(String.valueOf(e));
+         }
+      }
+   }
+}
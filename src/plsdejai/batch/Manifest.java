@@ -0,0 +1,143 @@
+package plsdejai.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The manifest of a directory of filtered images. It records, for each
+ * filtered image, the content hash of its input image, the name of the filter
+ * and the fingerprint of the filter, so that an image is filtered again only
+ * if its input or the filter changed.
+ *
+ * It is a text file, with a line for each filtered image:
+ *    output name TAB input SHA-1 TAB filter name TAB filter fingerprint
+ */
+public class Manifest
+{
+   public static final String FILE_NAME = ".batch-manifest";
+
+   private static final String HEADER = "# plsdejai batch manifest 1";
+
+   private File dir;
+   private Map<String, String[]> entries = new TreeMap<String, String[]>();
+   private boolean isModified = false;
+
+   /**
+    * Loads the manifest of a directory. A missing or invalid manifest
+    * is an empty one
+    * @param dir the directory of the filtered images
+    */
+   public Manifest(File dir)
+   {
+      this.dir = dir;
+
+      File f = getFile();
+      if (!f.isFile())
+         return;
+
+      BufferedReader reader = null;
+      try {
+         reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+
+         if (!HEADER.equals(reader.readLine()))
+            return;
+
+         for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length == 4)
+               entries.put(fields[0], new String[]{fields[1], fields[2], fields[3]});
+         }
+
+      } catch (IOException e) {
+         System.err.println("Cannot read the manifest " + f + ": " + e.getMessage());
+         entries.clear();
+
+      } finally {
+         try {
+            if (reader != null)
+               reader.close();
+         } catch (IOException e) { }
+      }
+   }
+
+   public File getFile() { return new File(dir, FILE_NAME); }
+
+   /**
+    * @param target a filtered image of the directory
+    * @param inputHash the content hash of its input image
+    * @param filterName
+    * @param fingerprint the fingerprint of the filter
+    * @return true if the filtered image exists, and it was created from the
+    *         same input by the same filter
+    */
+   public synchronized boolean isValid(File target, String inputHash,
+           String filterName, String fingerprint)
+   {
+      String[] entry = entries.get(target.getName());
+
+      return entry != null && entry[0].equals(inputHash) && entry[1].equals(filterName)
+              && entry[2].equals(fingerprint) && target.isFile();
+   }
+
+   /**
+    * Records a filtered image of the directory. An image, whose name cannot
+    * be written in a line of the manifest, is not recorded
+    */
+   public synchronized void put(File target, String inputHash,
+           String filterName, String fingerprint)
+   {
+      String name = target.getName();
+      if (name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0)
+         return;
+
+      entries.put(name, new String[]{inputHash, filterName, fingerprint});
+      isModified = true;
+   }
+
+   /**
+    * Stores the manifest, if it is modified. It is written to a temporary
+    * file first, so a failure does not leave an incomplete manifest
+    */
+   public synchronized void store()
+   {
+      if (!isModified)
+         return;
+
+      File f = getFile();
+      File tmp = new File(dir, FILE_NAME + ".tmp");
+
+      try {
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                 new FileOutputStream(tmp), "UTF-8"));
+         try {
+            out.print(HEADER + "\n");
+            for (Map.Entry<String, String[]> e : entries.entrySet()) {
+               String[] entry = e.getValue();
+               out.print(e.getKey() + "\t" + entry[0] + "\t" + entry[1] + "\t" + entry[2] + "\n");
+            }
+         } finally {
+            out.close();
+         }
+
+         if (out.checkError())
+            throw new IOException("write error");
+
+         if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+            throw new IOException("cannot rename " + tmp);
+
+         isModified = false;
+
+      } catch (IOException e) {
+         System.err.println("Cannot store the manifest " + f + ": " + e.getMessage());
+         tmp.delete();
+      }
+   }
+}
@@ -0,0 +1,389 @@
+package plsdejai.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import plsdejai.Parameter;
+import plsdejai.StandardBinaryOp;
+import plsdejai.batch.BatchEngine;
+import plsdejai.filter.DirectionalLocalProfileOp;
+import plsdejai.filter.LineTemplate;
+import plsdejai.filter.LowerProfileOfZeroTriadsOp;
+import plsdejai.io.ImageIO;
+import plsdejai.util.Json;
+import plsdejai.util.Messages;
+
+/**
+ * Filters a batch of images from the command line, without a display.
+ * The filter is given by its name, and its parameters by a saved parameter
+ * file, by "name=value" arguments, or by a saved subspace model.
+ *
+ * A JSON object is printed to stdout for each image, and a summary at the end:
+ *    {"file": "a.png", "status": "ok", "output": "filtered-files/(filtered) a.png", "ms": 812}
+ *    {"file": "d.png", "status": "ok", "output": "filtered-files/(filtered) d.png", "ms": 95,
+ *     "report": "prescreen: no rule lines"}
+ *    {"file": "b.txt", "status": "failed", "error": "not an image file"}
+ *    {"file": "c.png", "status": "skipped", "output": "filtered-files/(filtered) c.png"}
+ *    {"summary": {"files": 3, "ok": 2, "skipped": 1, "failed": 1, "ms": 830}}
+ * An image is skipped, if the manifest of the output directory records that
+ * it is filtered already from the same input by the same filter and parameters.
+ * The other messages are printed to stderr.
+ *
+ * The exit code is EXIT_OK if all the images are filtered, EXIT_FAILED if some
+ * of them are not, EXIT_USAGE for invalid arguments, and EXIT_ERROR if the
+ * parameters, the model or the input list cannot be read.
+ */
+public class BatchFilter
+{
+   public static final int EXIT_OK = 0;
+   public static final int EXIT_FAILED = 1;
+   public static final int EXIT_USAGE = 2;
+   public static final int EXIT_ERROR = 3;
+
+   // The subdirectory of the filtered images, if there is no output directory;
+   // it is the same as the one of the batch filter dialog of the GUI
+   public static final String TARGET_SUBDIRECTORY = "filtered-files";
+
+   private static final String USAGE =
+           "Usage: BatchFilter -filter <name> [options] <image or directory>...\n"
+           + "  -filter <name>     the name of the filter, or the name of its class\n"
+           + "  -params <file>     a saved parameter file (the filters.pref of the GUI)\n"
+           + "  -p <name>=<value>  sets a parameter; it can be repeated\n"
+           + "  -subspace <file>   a saved .subspace model of the linear subspace filter\n"
+           + "  -list <file>       a file with the paths of the images, one per line;\n"
+           + "                     '-' reads the paths from stdin\n"
+           + "  -o <directory>     the directory of the filtered images; the default is\n"
+           + "                     the '" + TARGET_SUBDIRECTORY + "' subdirectory of each image\n"
+           + "  -workers <n>       the number of images that are filtered concurrently;\n"
+           + "                     the default is the number of processors\n"
+           + "  -force             filters also the images that are filtered already\n"
+           + "  -template          reuses the rule lines of the first image for the images\n"
+           + "                     that match it (Directional Local Profile only)\n"
+           + "  -prescreen         skips the images without rule lines, and the pass of an\n"
+           + "                     orientation without rule lines (Directional Local\n"
+           + "                     Profile and Lower Profile of Zero Triads)\n"
+           + "  -reduce <2|4>      detects the rule lines in the image downsampled by the\n"
+           + "                     factor, and removes them at full resolution; for high\n"
+           + "                     resolution scans (Directional Local Profile only)\n"
+           + "  -filters           lists the filters and their parameters\n";
+
+   private PrintStream out;
+   private PrintStream err;
+
+   private StandardBinaryOp filter;
+   private File outputDir;
+   private int numOfWorkers = Runtime.getRuntime().availableProcessors();
+   private boolean isForced = false;
+   private LineTemplate template;
+   private boolean isPrescreened = false;
+   private int reduction = 1;
+   private List<File> files = new ArrayList<File>();
+
+   public BatchFilter(PrintStream out, PrintStream err)
+   {
+      this.out = out;
+      this.err = err;
+   }
+
+   public static void main(String[] args)
+   {
+      // No display is needed, even if there is one
+      if (System.getProperty("java.awt.headless") == null)
+         System.setProperty("java.awt.headless", "true");
+      Messages.setHeadless(true);
+
+      System.exit(new BatchFilter(System.out, System.err).run(args));
+   }
+
+   /**
+    * Parses the arguments, and filters the images
+    * @param args
+    * @return the exit code
+    */
+   public int run(String[] args)
+   {
+      int code = parse(args);
+      if (code != EXIT_OK || filter == null)
+         return code;
+
+      return filterFiles();
+   }
+
+   private int parse(String[] args)
+   {
+      String filterName = null;
+      File paramFile = null;
+      File subspaceFile = null;
+      List<String> assignments = new ArrayList<String>();
+      List<String> paths = new ArrayList<String>();
+      String list = null;
+
+      try {
+         for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+
+            if (arg.equals("-filter"))
+               filterName = next(args, ++i);
+            else if (arg.equals("-params"))
+               paramFile = new File(next(args, ++i));
+            else if (arg.equals("-p"))
+               assignments.add(next(args, ++i));
+            else if (arg.equals("-subspace"))
+               subspaceFile = new File(next(args, ++i));
+            else if (arg.equals("-list"))
+               list = next(args, ++i);
+            else if (arg.equals("-o"))
+               outputDir = new File(next(args, ++i));
+            else if (arg.equals("-workers")) {
+               String value = next(args, ++i);
+               try {
+                  numOfWorkers = Integer.parseInt(value);
+               } catch (NumberFormatException e) {
+                  numOfWorkers = 0;
+               }
+               if (numOfWorkers < 1)
+                  throw new IllegalArgumentException("'" + value + "' is not a valid number of workers");
+            } else if (arg.equals("-force"))
+               isForced = true;
+            else if (arg.equals("-template"))
+               template = new LineTemplate();
+            else if (arg.equals("-prescreen"))
+               isPrescreened = true;
+            else if (arg.equals("-reduce")) {
+               String value = next(args, ++i);
+               if (!value.equals("2") && !value.equals("4"))
+                  throw new IllegalArgumentException("'" + value + "' is not a valid reduction; use 2 or 4");
+               reduction = Integer.parseInt(value);
+            }
+            else if (arg.equals("-filters")) {
+               listFilters();
+               return EXIT_OK;
+            } else if (arg.equals("-h") || arg.equals("-help")) {
+               err.print(USAGE);
+               return EXIT_OK;
+            } else if (arg.startsWith("-") && arg.length() > 1)
+               throw new IllegalArgumentException("Unknown option '" + arg + "'");
+            else
+               paths.add(arg);
+         }
+
+         if (filterName == null)
+            throw new IllegalArgumentException("The filter is not set");
+
+         filter = Filters.createFilter(filterName);
+         if (filter == null)
+            throw new IllegalArgumentException("Unknown filter '" + filterName
+                    + "'; -filters lists the filters");
+
+         if (template != null) {
+            if (!(filter instanceof DirectionalLocalProfileOp))
+               throw new IllegalArgumentException("'" + filter.getName() + "' has no template mode");
+            ((DirectionalLocalProfileOp) filter).setTemplate(template);
+         }
+
+         if (isPrescreened) {
+            if (filter instanceof DirectionalLocalProfileOp)
+               ((DirectionalLocalProfileOp) filter).setPrescreened(true);
+            else if (filter instanceof LowerProfileOfZeroTriadsOp)
+               ((LowerProfileOfZeroTriadsOp) filter).setPrescreened(true);
+            else
+               throw new IllegalArgumentException("'" + filter.getName() + "' has no prescreen");
+         }
+
+         if (reduction > 1) {
+            if (!(filter instanceof DirectionalLocalProfileOp))
+               throw new IllegalArgumentException("'" + filter.getName() + "' has no coarse to fine mode");
+            ((DirectionalLocalProfileOp) filter).setReduction(reduction);
+         }
+
+      } catch (IllegalArgumentException e) {
+         err.println("Error: " + e.getMessage());
+         err.print(USAGE);
+         return EXIT_USAGE;
+      }
+
+      try {
+         if (paramFile != null)
+            Filters.loadParameters(filter, paramFile);
+
+         if (subspaceFile != null)
+            Filters.loadSubspace(filter, subspaceFile);
+
+         for (String assignment : assignments) {
+            int k = assignment.indexOf('=');
+            if (k <= 0)
+               throw new IllegalArgumentException("'" + assignment + "' is not <name>=<value>");
+
+            Filters.setParameter(filter, assignment.substring(0, k), assignment.substring(k + 1));
+         }
+
+         List<String> missing = Filters.getMissingParameters(filter);
+         if (!missing.isEmpty())
+            throw new IllegalArgumentException("The parameters " + missing + " have no value");
+
+         if (list != null)
+            paths.addAll(readList(list));
+
+         for (String path : paths)
+            addFiles(new File(path));
+
+         if (files.isEmpty())
+            throw new IllegalArgumentException("There are no images");
+
+      } catch (IllegalArgumentException e) {
+         err.println("Error: " + e.getMessage());
+         return EXIT_USAGE;
+
+      } catch (IOException e) {
+         err.println("Error: " + e.getMessage());
+         return EXIT_ERROR;
+      }
+
+      return EXIT_OK;
+   }
+
+   private static String next(String[] args, int i)
+   {
+      if (i >= args.length)
+         throw new IllegalArgumentException("'" + args[i - 1] + "' needs a value");
+
+      return args[i];
+   }
+
+   /**
+    * @param list a file, or "-" for stdin
+    * @return the non-empty lines of the list
+    */
+   private static List<String> readList(String list) throws IOException
+   {
+      InputStream in = list.equals("-") ? System.in : new FileInputStream(list);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+      List<String> paths = new ArrayList<String>();
+
+      try {
+         for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            line = line.trim();
+            if (line.length() > 0)
+               paths.add(line);
+         }
+
+      } finally {
+         if (in != System.in)
+            reader.close();
+      }
+
+      return paths;
+   }
+
+   /**
+    * Adds a file, or the images of a directory, in the order of their names
+    */
+   private void addFiles(File f)
+   {
+      if (!f.isDirectory()) {
+         files.add(f);
+         return;
+      }
+
+      Set<String> suffixes = new HashSet<String>();
+      for (String suffix : javax.imageio.ImageIO.getReaderFileSuffixes())
+         suffixes.add(suffix.toLowerCase());
+
+      File[] children = f.listFiles();
+      if (children == null)
+         return;
+
+      Arrays.sort(children);
+      for (File child : children) {
+         String extension = ImageIO.getExtension(child);
+         if (child.isFile() && !child.isHidden()
+                 && extension != null && suffixes.contains(extension))
+            files.add(child);
+      }
+   }
+
+   private void listFilters()
+   {
+      for (StandardBinaryOp op : Filters.createDefaultFilters()) {
+         out.println(op.getName() + " (" + op.getClass().getSimpleName() + ")");
+         for (Parameter param : op.getParameters())
+            out.println("   " + param.name + " [" + param.min + ", " + param.max
+                    + "], default " + param.value);
+      }
+   }
+
+   /**
+    * Filters the images in parallel, and prints a line for each of them,
+    * in the order of the images
+    * @return the exit code
+    */
+   private int filterFiles()
+   {
+      long start = System.currentTimeMillis();
+
+      List<File> targets = new ArrayList<File>();
+      for (File f : files)
+         targets.add(getTarget(f));
+
+      BatchEngine engine = new BatchEngine(filter);
+      engine.setNumberOfWorkers(numOfWorkers);
+      engine.setIncremental(!isForced);
+
+      final int[] skipped = {0};
+      int ok = engine.run(files, targets, null, new BatchEngine.Listener()
+      {
+         public void fileProcessed(BatchEngine.Result result)
+         {
+            if (result.isSkipped()) {
+               ++skipped[0];
+               out.println("{\"file\": " + Json.quote(result.getFile().getPath())
+                       + ", \"status\": \"skipped\", \"output\": " + Json.quote(result.getTarget().getPath()) + "}");
+            } else if (result.isOK())
+               out.println("{\"file\": " + Json.quote(result.getFile().getPath())
+                       + ", \"status\": \"ok\", \"output\": " + Json.quote(result.getTarget().getPath())
+                       + ", \"ms\": " + result.getTime()
+                       + ((result.getReport() != null) ? ", \"report\": " + Json.quote(result.getReport()) : "")
+                       + "}");
+            else
+               out.println("{\"file\": " + Json.quote(result.getFile().getPath())
+                       + ", \"status\": \"failed\", \"error\": " + Json.quote(result.getError()) + "}");
+         }
+      });
+
+      if (template != null)
+         err.println("Template: " + template.getHits() + " passes reused the lines of the reference image, "
+                 + template.getMisses() + " fell back to the full detection");
+
+      out.println("{\"summary\": {\"files\": " + files.size() + ", \"ok\": " + (ok - skipped[0])
+              + ", \"skipped\": " + skipped[0] + ", \"failed\": " + (files.size() - ok) + ", \"ms\": "
+              + (System.currentTimeMillis() - start) + "}}");
+
+      return (ok == files.size()) ? EXIT_OK : EXIT_FAILED;
+   }
+
+   /**
+    * @return the file of the filtered image. It has the extension of the image,
+    *         or png if the image cannot be stored in the same format
+    */
+   private File getTarget(File f)
+   {
+      File dir = (outputDir != null) ? outputDir
+              : new File(f.getAbsoluteFile().getParentFile(), TARGET_SUBDIRECTORY);
+
+      String extension = ImageIO.getExtension(f);
+      String name = "(filtered) " + f.getName();
+      if (!ImageIO.isValidImageExtensionName(extension))
+         name += ".png";
+
+      return new File(dir, name);
+   }
+}
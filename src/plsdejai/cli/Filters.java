@@ -0,0 +1,186 @@
+package plsdejai.cli;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import plsdejai.Parameter;
+import plsdejai.StandardBinaryOp;
+import plsdejai.filter.DirectionalLocalProfileOp;
+import plsdejai.filter.LowerProfileOfZeroTriadsOp;
+import plsdejai.filter.linearsubspace.LSubspaceOfCentralMomentsOp;
+import plsdejai.widgets.AbstractDefaultParameterToolbar;
+import plsdejai.widgets.LSubspaceParameterToolbar;
+import plsdejai.widgets.NumericTextField;
+
+/**
+ * Creates the filters and sets their parameters without the GUI:
+ * from a saved parameter file, from "name=value" arguments,
+ * or from a saved subspace model.
+ */
+public class Filters
+{
+   /**
+    * @return new instances of the filters that are supported by default
+    */
+   public static List<StandardBinaryOp> createDefaultFilters()
+   {
+      List<StandardBinaryOp> filters = new ArrayList<StandardBinaryOp>();
+
+      filters.add(new DirectionalLocalProfileOp());
+      filters.add(new LowerProfileOfZeroTriadsOp());
+      filters.add(new LSubspaceOfCentralMomentsOp());
+
+      return filters;
+   }
+
+   /**
+    * Only the requested filter is created, since the constructor of a filter
+    * builds its toolbar, and some toolbars need the resources of the GUI
+    * @param name the name of a filter, as it is shown by the GUI,
+    *             or the name of its class, case insensitive
+    * @return a new instance of the filter, or null if there is no such filter
+    */
+   public static StandardBinaryOp createFilter(String name)
+   {
+      if (isFilter(name, DirectionalLocalProfileOp.NAME, DirectionalLocalProfileOp.class))
+         return new DirectionalLocalProfileOp();
+      if (isFilter(name, LowerProfileOfZeroTriadsOp.NAME, LowerProfileOfZeroTriadsOp.class))
+         return new LowerProfileOfZeroTriadsOp();
+      if (isFilter(name, LSubspaceOfCentralMomentsOp.NAME, LSubspaceOfCentralMomentsOp.class))
+         return new LSubspaceOfCentralMomentsOp();
+
+      return null;
+   }
+
+   /**
+    * @return true if name is the name of the filter, or the name of its class
+    */
+   private static boolean isFilter(String name, String filterName, Class<?> c)
+   {
+      return filterName.equalsIgnoreCase(name) || c.getSimpleName().equalsIgnoreCase(name)
+              || c.getName().equals(name);
+   }
+
+   /**
+    * Sets the parameters of a filter to the values that are saved in a
+    * parameter file, which has the format of the filters preferences
+    * of the GUI: pairs of a filter name and its Parameter[] array
+    * @param filter
+    * @param f
+    * @throws IOException if the file cannot be read, or it has no
+    *         parameters for the filter
+    */
+   public static void loadParameters(StandardBinaryOp filter, File f) throws IOException
+   {
+      ObjectInputStream in = new ObjectInputStream(
+              new GZIPInputStream(new FileInputStream(f)));
+
+      try {
+         for (;;) {
+            String name = (String) in.readObject();
+            Parameter[] params = (Parameter[]) in.readObject();
+
+            if (!filter.getName().equals(name) || params == null)
+               continue;
+
+            AbstractDefaultParameterToolbar toolbar =
+                    (AbstractDefaultParameterToolbar) filter.getToolbar();
+
+            for (Parameter param : params) {
+               toolbar.setMinimumParameterValue(param.name, param.min);
+               toolbar.setMaximumParameterValue(param.name, param.max);
+               filter.setParameterValue(param.name, param.value);
+            }
+
+            if (toolbar instanceof LSubspaceParameterToolbar)
+               ((LSubspaceParameterToolbar) toolbar).createNewSubspace();
+
+            return;
+         }
+
+      } catch (EOFException e) {
+         throw new IOException("'" + f.getName() + "' has no parameters of '"
+                 + filter.getName() + "'");
+      } catch (ClassNotFoundException e) {
+         throw new IOException("'" + f.getName() + "' is not a parameter file");
+      } catch (ClassCastException e) {
+         throw new IOException("'" + f.getName() + "' is not a parameter file");
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Sets a parameter of a filter
+    * @param filter
+    * @param name the name of the parameter
+    * @param value the value, as text
+    * @throws IllegalArgumentException if there is no such parameter,
+    *         or the value is not valid
+    */
+   public static void setParameter(StandardBinaryOp filter, String name, String value)
+   {
+      for (Parameter param : filter.getParameters()) {
+         if (!param.name.equals(name))
+            continue;
+
+         Number n;
+         try {
+            n = (param.type == NumericTextField.INTEGER)
+                    ? (Number) Integer.valueOf(value.trim())
+                    : (Number) Double.valueOf(value.trim());
+
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + value + "' is not a valid value of '"
+                    + name + "'");
+         }
+
+         if ((param.min != null && n.doubleValue() < param.min.doubleValue())
+                 || (param.max != null && n.doubleValue() > param.max.doubleValue()))
+            throw new IllegalArgumentException("The value of '" + name + "' must be in ["
+                    + param.min + ", " + param.max + "]");
+
+         filter.setParameterValue(name, n);
+         return;
+      }
+
+      throw new IllegalArgumentException("'" + filter.getName()
+              + "' has no parameter '" + name + "'");
+   }
+
+   /**
+    * Loads a saved subspace to a linear subspace filter
+    * @param filter
+    * @param f the .subspace file
+    * @throws IOException if the file is not a valid subspace file
+    * @throws IllegalArgumentException if the filter is not a linear subspace filter
+    */
+   public static void loadSubspace(StandardBinaryOp filter, File f) throws IOException
+   {
+      if (!(filter instanceof LSubspaceOfCentralMomentsOp))
+         throw new IllegalArgumentException("'" + filter.getName()
+                 + "' has no subspace model");
+
+      ((LSubspaceParameterToolbar) filter.getToolbar()).loadSubspace(f);
+   }
+
+   /**
+    * @return the names of the parameters of a filter that have no value
+    */
+   public static List<String> getMissingParameters(StandardBinaryOp filter)
+   {
+      List<String> names = new ArrayList<String>();
+
+      for (Parameter param : filter.getParameters()) {
+         if (param.value == null)
+            names.add(param.name);
+      }
+
+      return names;
+   }
+}
@@ -21,6 +21,7 @@ import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 
 import plsdejai.util.DynamicArray2D;
+import plsdejai.util.PackedBinaryRaster;
 
 /**
  * This class implements the method described in:
@@ -34,6 +35,9 @@ import plsdejai.util.DynamicArray2D;
 public class DirectionalLocalProfileOp extends StandardBinaryOp
 {
    /* *************************** CONSTANTS ******************************* */
+   /** The name of the filter, that getName returns */
+   public final static String NAME = "Directional Local Profile";
+
    /** Labels in labels array are sequential starting from 0. The special value
     *  UNLABELED = -1 means no label, i.e. it corresponds to a background pixel */
    private final static int UNLABELED = -1;
@@ -51,6 +55,21 @@ public class DirectionalLocalProfileOp extends StandardBinaryOp
 
    /* ********************************************************** */
 
+   /** The reference lines of template mode, or null */
+   private LineTemplate template;
+
+   /** If true, the passes of the orientations without rule lines are skipped */
+   private boolean isPrescreened = false;
+
+   /** The orientations of the last page, or -1 if it was not prescreened */
+   private int orientations = -1;
+
+   /** The lines are detected in the page downsampled by this factor: 1, 2 or 4 */
+   private int reduction = 1;
+
+   /** The products of the stages of the line detection, or null */
+   private StageCache stageCache;
+
    /** Constructor */
    public DirectionalLocalProfileOp()
    {
@@ -89,7 +108,7 @@ public class DirectionalLocalProfileOp extends StandardBinaryOp
     *         The returned string should have at most than 40 characters
     * @see <code>getName</code> method in StandardBinaryOp
     */
-   public final String getName() { return "Directional Local Profile"; }
+   public final String getName() { return NAME; }
 
    /**
     * Implementation of the abstract <code>getParameterNames</code> method in StandardBinaryOp
@@ -109,6 +128,87 @@ public class DirectionalLocalProfileOp extends StandardBinaryOp
       return names;
    }
 
+   /**
+    * @return true for the skipped background pixels and the window size,
+    *         which are measured in pixels
+    * @see <code>isLengthParameter</code> method in StandardBinaryOp
+    */
+   public boolean isLengthParameter(String name)
+   {
+      return KEY_MAX_NUM_OF_SKIPPED_BACKGROUND_PIXELS.equals(name)
+              || KEY_HALF_WINDOW.equals(name);
+   }
+
+   /**
+    * Sets template mode, for batches of the same printed form: the lines
+    * that are detected in the first page are reused for the pages that
+    * match it. The clones of this object share the template
+    * @param template the template, or null for the full detection in every page
+    */
+   public void setTemplate(LineTemplate template) { this.template = template; }
+
+   public LineTemplate getTemplate() { return template; }
+
+   /**
+    * Sets the prescreen of the pages: a page without rule lines is not
+    * filtered, and only the pass of the orientation of its lines runs
+    * for a page with lines of one orientation
+    * @see RuleLinePrescreen
+    */
+   public void setPrescreened(boolean isPrescreened) { this.isPrescreened = isPrescreened; }
+
+   public boolean isPrescreened() { return isPrescreened; }
+
+   /**
+    * Sets coarse to fine mode, for high resolution scans: the lines are
+    * detected in the page downsampled by a factor, and they are removed from
+    * the page at full resolution. The length parameters are scaled to the
+    * downsampled page
+    * @param factor 1 for the detection at full resolution, 2 or 4
+    */
+   public void setReduction(int factor)
+   {
+      if (factor != 1 && factor != 2 && factor != 4)
+         throw new IllegalArgumentException("The reduction must be 1, 2 or 4");
+
+      reduction = factor;
+   }
+
+   public int getReduction() { return reduction; }
+
+   /**
+    * Sets a cache of the fuzzy runlengths, the binarized maps and the lines
+    * of the pages, so that when only the parameters of the later stages
+    * change, the earlier stages do not run again for the same page.
+    * The clones of this object share the cache
+    * @param cache the cache, or null for no caching
+    */
+   public void setStageCache(StageCache cache) { this.stageCache = cache; }
+
+   public StageCache getStageCache() { return stageCache; }
+
+   /**
+    * @return the decision of the prescreen for the last page, or null
+    * @see <code>getReport</code> method in StandardBinaryOp
+    */
+   public String getReport()
+   {
+      return (orientations < 0) ? null : "prescreen: " + RuleLinePrescreen.toString(orientations);
+   }
+
+   /**
+    * The lines of template mode and of coarse to fine mode are not exactly
+    * the lines that the full detection would find, so the modes are a part
+    * of the fingerprint
+    * @see <code>getFingerprintKey</code> method in StandardBinaryOp
+    */
+   protected String getFingerprintKey()
+   {
+      return super.getFingerprintKey() + ((template != null) ? "|template" : "")
+              + (isPrescreened ? "|prescreen" : "")
+              + ((reduction > 1) ? "|reduction=" + reduction : "");
+   }
+
    /**
     * Implementation of the <code>filter</code> method in StandardBinaryOp
     * @param src The <code>Raster</code> to be filtered
@@ -147,16 +247,109 @@ public class DirectionalLocalProfileOp extends StandardBinaryOp
               src.getPixels(0, 0, width, height, (int[]) null));
       
 
+      orientations = isPrescreened ? RuleLinePrescreen.screen(dst) : -1;
+      int passes = isPrescreened ? orientations : RuleLinePrescreen.BOTH;
+
       for (int j = 0; j < 2; ++j) {
          if(task != null && task.isCancelled())
             return null;
 
-         // Executes the fuzzy runlength, in order to get the connectivity map
-         double[][] dArr = fuzzyRunLength(dst);
+         // The vertical pass runs in the rotated page; without it, no rotation is needed
+         if (j == 0 && (passes & RuleLinePrescreen.HORIZONTAL) == 0) {
+            if ((passes & RuleLinePrescreen.VERTICAL) == 0)
+               break;
+
+            dst = rotate90(dst, false);
+            continue;
+         }
+
+         // In template mode, the lines of the reference page are reused,
+         // if the page matches it
+         List<double[]> bestFitLines = null;
+         if (template != null)
+            bestFitLines = template.match(j, dst);
+
+         if (bestFitLines == null) {
+            bestFitLines = detectLines(dst);
+            if (bestFitLines == null) // cancelled
+               return null;
+
+            if (template != null)
+               template.setReference(j, dst, bestFitLines);
+         }
+
+         /* Remove rule lines */
+         removeRuleLines(dst, bestFitLines);
 
          if(task != null && task.isCancelled())
             return null;
 
+         if (j == 0 && (passes & RuleLinePrescreen.VERTICAL) == 0)
+            break;
+
+         dst = rotate90(dst, (j == 0) ? false : true);
+
+          System.gc();
+      }
+
+      /* ************************************************************ */
+
+      return dst;
+   }
+
+   /**
+    * Detects the rule lines of a page. With a stage cache, the product of a
+    * stage is reused, if the page and the parameters of the stage and of the
+    * stages before it have not changed
+    * @param page the page, as it is processed in a pass
+    * @return the best fitting lines, or null if the task is cancelled
+    */
+   private List<double[]> detectLines(Raster page)
+   {
+      PackedBinaryRaster bits = (reduction > 1 || stageCache != null)
+              ? new PackedBinaryRaster(page, FOREGROUND) : null;
+
+      String fuzzyKey = null;
+      String binaryKey = null;
+      String linesKey = null;
+      double[][] dArr = null;
+      int[][] binaryArr = null;
+
+      if (stageCache != null) {
+         fuzzyKey = bits.digest() + "|" + reduction
+                 + "|" + getLengthValue(KEY_MAX_NUM_OF_SKIPPED_BACKGROUND_PIXELS);
+         binaryKey = fuzzyKey + "|" + getLengthValue(KEY_HALF_WINDOW)
+                 + "|" + toolbar.getParameterValue(KEY_K1)
+                 + "|" + toolbar.getParameterValue(KEY_K2)
+                 + "|" + toolbar.getParameterValue(KEY_K3);
+         // The labelling and the line fitting have no parameters
+         linesKey = binaryKey + "|lines";
+
+         double[][] lines = (double[][]) stageCache.get(linesKey);
+         if (lines != null)
+            return new ArrayList<double[]>(Arrays.asList(lines));
+
+         binaryArr = (int[][]) stageCache.get(binaryKey);
+         if (binaryArr == null)
+            dArr = (double[][]) stageCache.get(fuzzyKey);
+      }
+
+      if (binaryArr == null) {
+         if (dArr == null) {
+            // In coarse to fine mode, the lines are detected in the downsampled page
+            if (reduction > 1)
+               page = bits.reduce(reduction).toRaster(FOREGROUND);
+
+            // Executes the fuzzy runlength, in order to get the connectivity map
+            dArr = fuzzyRunLength(page);
+
+            if(task != null && task.isCancelled())
+               return null;
+
+            if (stageCache != null)
+               stageCache.put(fuzzyKey, dArr, 8L * dArr.length * dArr[0].length);
+         }
+
          /*
           * Binarize the matrix, by using a local adaptive thresholding algorithm,
           * described in:
@@ -166,34 +359,70 @@ public class DirectionalLocalProfileOp extends StandardBinaryOp
           *  Returns: An array of binary values, of the same size as the input array
           */
 
-         int[][] binaryArr = binarize(dArr);
+         binaryArr = binarize(dArr);
          if(task != null && task.isCancelled())
             return null;
 
-         /* Connected Component Analysis */
-         int[][] labels = cca(binaryArr);
-         if(task != null && task.isCancelled())
-            return null;
+         if (stageCache != null)
+            stageCache.put(binaryKey, binaryArr, 4L * binaryArr.length * binaryArr[0].length);
+      }
 
-         /* Get Best Fitting Lines */
-         List<double[]> bestFitLines = getBestFittingLines(labels);
-         if(task != null && task.isCancelled())
-            return null;
+      /* Connected Component Analysis */
+      int[][] labels = cca(binaryArr);
+      if(task != null && task.isCancelled())
+         return null;
 
-         /* Remove rule lines */
-         removeRuleLines(dst, bestFitLines);
+      /* Get Best Fitting Lines */
+      List<double[]> bestFitLines = getBestFittingLines(labels);
+      if(task != null && task.isCancelled())
+         return null;
 
-         if(task != null && task.isCancelled())
-            return null;
+      if (reduction > 1)
+         bestFitLines = scaleLines(bestFitLines, reduction);
 
-         dst = rotate90(dst, (j == 0) ? false : true);
+      if (stageCache != null)
+         stageCache.put(linesKey, bestFitLines.toArray(new double[bestFitLines.size()][]),
+                 48L * bestFitLines.size());
 
-          System.gc();
-      }
+      return bestFitLines;
+   }
 
-      /* ************************************************************ */
+   /**
+    * @return the value of a length parameter, scaled to the page in which
+    *         the lines are detected
+    */
+   private int getLengthValue(String key)
+   {
+      int value = toolbar.getParameterValue(key).intValue();
 
-      return dst;
+      return (reduction == 1) ? value : (int) Math.round((double) value / reduction);
+   }
+
+   /**
+    * Scales the lines that are detected in a downsampled page to the page
+    * at full resolution. A pixel of the downsampled page is the block of
+    * factor x factor pixels, so a line of t rows in the downsampled page
+    * covers between factor * (t - 2) + 2 and factor * t rows
+    * @param lines the lines, as they are returned by <code>getBestFittingLines</code>
+    * @param factor the downsampling factor
+    * @return the lines at full resolution
+    */
+   private static List<double[]> scaleLines(List<double[]> lines, int factor)
+   {
+      List<double[]> scaled = new ArrayList<double[]>(lines.size());
+
+      for (double[] line : lines) {
+         double[] l = line.clone();
+         // The slope is not changed, and the center of a pixel is mapped
+         // to the center of its block
+         l[1] = line[1] * factor + (factor - 1) / 2.0;
+         l[2] = Math.max(1, line[2] * factor - (factor - 1));
+         l[3] = line[3] * factor;
+         l[4] = line[4] * factor + factor - 1;
+         scaled.add(l);
+      }
+
+      return scaled;
    }
 
    /**
@@ -233,8 +462,7 @@ public class DirectionalLocalProfileOp extends StandardBinaryOp
        * (or vertical position)
        */
 
-      int maxSkippedBackgroundPixels =
-              toolbar.getParameterValue(KEY_MAX_NUM_OF_SKIPPED_BACKGROUND_PIXELS).intValue();
+      int maxSkippedBackgroundPixels = getLengthValue(KEY_MAX_NUM_OF_SKIPPED_BACKGROUND_PIXELS);
       
       int cols = src.getWidth();
       int rows = src.getHeight();     
@@ -334,7 +562,7 @@ public class DirectionalLocalProfileOp extends StandardBinaryOp
       //@debug:
       //final double K4 = toolbar.getParameterValue(KEY_K4).doubleValue();
 
-      final int windowSide = toolbar.getParameterValue(KEY_HALF_WINDOW).intValue() * 2 + 1;
+      final int windowSide = getLengthValue(KEY_HALF_WINDOW) * 2 + 1;
       final int mesA1 = windowSide * windowSide; // mesA1: the area of zone A1
       /* ********************************************************* */
       double Kii, inverse_mesA1;
@@ -1183,6 +1411,11 @@ public class DirectionalLocalProfileOp extends StandardBinaryOp
          tbar.createParameter(param.name, param.desc, param.type,
                  param.min, param.max, param.value);
 
+      op.template = template;
+      op.isPrescreened = isPrescreened;
+      op.reduction = reduction;
+      op.stageCache = stageCache;
+
       return op;
    }
 
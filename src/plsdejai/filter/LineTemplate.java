@@ -0,0 +1,251 @@
+package plsdejai.filter;
+
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import plsdejai.StandardBinaryOp;
+import plsdejai.util.PackedBinaryRaster;
+
+/**
+ * The rule lines of a reference page, that are reused for the pages of a
+ * batch of the same printed form, so that the line detection of
+ * DirectionalLocalProfileOp runs only for the reference page.
+ *
+ * Only the lines that cover most of the width of the reference page are kept,
+ * because the rule lines of a form span the page, while the other lines that
+ * the detection finds are fragments of the handwriting, which must not be
+ * removed from the other pages.
+ *
+ * A page is aligned to the reference page by the vertical offset that best
+ * correlates its projection profile to the profile of the reference page. The
+ * aligned lines are accepted only if each of them is covered by the page about
+ * as well as by the reference page, and every row of the page that looks like
+ * a rule line is explained by an aligned line; otherwise the page falls back
+ * to the full detection.
+ *
+ * There is a reference for each pass of the filter: the horizontal lines,
+ * and the vertical lines in the rotated page. The first page that is filtered
+ * becomes the reference. A template is thread safe, so the clones of a filter
+ * can share it.
+ */
+public class LineTemplate
+{
+   // The largest offset of a page from the reference page, as a part of its height
+   private static final double MAX_OFFSET = 0.05;
+   // The largest difference of the size of a page from the reference page
+   private static final double MAX_SIZE_DIFFERENCE = 0.02;
+   // The least coverage of a line of the reference page, that is a rule line
+   private static final double MIN_REFERENCE_COVERAGE = 0.4;
+   // The least part of the reference coverage of a line, that a page must cover
+   private static final double MIN_COVERAGE = 0.7;
+   // A row that has at least this part of its pixels in the foreground is a rule line row
+   private static final double LINE_ROW = 0.5;
+   // The coverage of a line is measured every COLUMN_STEP columns
+   private static final int COLUMN_STEP = 4;
+
+   /**
+    * The reference of a pass
+    */
+   private static class Reference
+   {
+      int width;
+      int height;
+      // The projection profile of the reference page
+      int[] profile;
+      List<double[]> lines;
+      double[] coverage;
+   }
+
+   private Reference[] references = new Reference[2];
+   private int hits = 0;
+   private int misses = 0;
+
+   /**
+    * Aligns the reference lines of a pass to a page
+    * @param pass 0 for the horizontal lines, 1 for the vertical lines
+    * @param raster the page, as it is processed in the pass
+    * @return the aligned lines, in the format of the best fitting lines of
+    *         DirectionalLocalProfileOp, or null if there is no reference, or
+    *         the page does not match it
+    */
+   public List<double[]> match(int pass, Raster raster)
+   {
+      Reference ref;
+      synchronized (this) {
+         ref = references[pass];
+      }
+      if (ref == null)
+         return null;
+
+      List<double[]> lines = align(ref, new PackedBinaryRaster(raster, StandardBinaryOp.FOREGROUND));
+
+      synchronized (this) {
+         if (lines == null)
+            ++misses;
+         else
+            ++hits;
+      }
+
+      return lines;
+   }
+
+   private static List<double[]> align(Reference ref, PackedBinaryRaster bits)
+   {
+      int width = bits.getWidth();
+      int height = bits.getHeight();
+
+      if (Math.abs(width - ref.width) > MAX_SIZE_DIFFERENCE * ref.width
+              || Math.abs(height - ref.height) > MAX_SIZE_DIFFERENCE * ref.height)
+         return null;
+
+      int[] profile = bits.getRowProfile();
+
+      // The offset that correlates best the profile to the reference profile;
+      // the rows of the rule lines dominate the correlation
+      int maxOffset = (int) (MAX_OFFSET * height);
+      int offset = 0;
+      long best = -1;
+      for (int d = -maxOffset; d <= maxOffset; ++d) {
+         long score = 0;
+         for (int y = Math.max(0, -d), end = Math.min(ref.height, height - d); y < end; ++y)
+            score += (long) ref.profile[y] * profile[y + d];
+
+         if (score > best || (score == best && Math.abs(d) < Math.abs(offset))) {
+            best = score;
+            offset = d;
+         }
+      }
+
+      List<double[]> lines = new ArrayList<double[]>(ref.lines.size());
+      for (int i = 0; i < ref.lines.size(); ++i) {
+         double[] line = ref.lines.get(i).clone();
+         line[1] += offset;
+
+         if (getCoverage(bits, line) < MIN_COVERAGE * ref.coverage[i])
+            return null;
+
+         lines.add(line);
+      }
+
+      // A dark row, that no line explains, may be a line that is not in the reference
+      for (int y = 0; y < height; ++y)
+         if (profile[y] >= LINE_ROW * width && !isCovered(lines, y, width))
+            return null;
+
+      return lines;
+   }
+
+   /**
+    * Sets the reference of a pass, if it has none
+    * @param pass 0 for the horizontal lines, 1 for the vertical lines
+    * @param raster the page, as it is processed in the pass
+    * @param lines the lines that are detected in the page; only the rule
+    *        lines of them are kept
+    */
+   public void setReference(int pass, Raster raster, List<double[]> lines)
+   {
+      synchronized (this) {
+         if (references[pass] != null)
+            return;
+      }
+
+      PackedBinaryRaster bits = new PackedBinaryRaster(raster, StandardBinaryOp.FOREGROUND);
+
+      Reference ref = new Reference();
+      ref.width = bits.getWidth();
+      ref.height = bits.getHeight();
+      ref.lines = new ArrayList<double[]>(lines.size());
+      ref.profile = bits.getRowProfile();
+
+      double[] coverage = new double[lines.size()];
+      for (double[] line : lines) {
+         double c = getCoverage(bits, line);
+         if (c >= MIN_REFERENCE_COVERAGE) {
+            coverage[ref.lines.size()] = c;
+            ref.lines.add(line.clone());
+         }
+      }
+      ref.coverage = Arrays.copyOf(coverage, ref.lines.size());
+
+      // A reference must reuse all its lines in its own page; otherwise,
+      // e.g. if it has a dark row without a line, the next page is tried
+      if (align(ref, bits) == null)
+         return;
+
+      synchronized (this) {
+         if (references[pass] == null)
+            references[pass] = ref;
+      }
+   }
+
+   /**
+    * @return true if there is a reference for the pass
+    */
+   public synchronized boolean hasReference(int pass) { return references[pass] != null; }
+
+   /**
+    * Removes the references, so that the next page becomes the reference
+    */
+   public synchronized void clear()
+   {
+      references = new Reference[2];
+      hits = misses = 0;
+   }
+
+   /**
+    * @return the number of passes that reused the reference lines
+    */
+   public synchronized int getHits() { return hits; }
+
+   /**
+    * @return the number of passes that fell back to the full detection
+    */
+   public synchronized int getMisses() { return misses; }
+
+   /**
+    * @return the part of the columns of the page, in which the band of a line
+    *         has a foreground pixel. The lines are removed across the whole
+    *         page, and line[3], line[4] are the y limits of the points of
+    *         a line, so the coverage is measured in all the columns
+    */
+   private static double getCoverage(PackedBinaryRaster bits, double[] line)
+   {
+      int width = bits.getWidth();
+      int height = bits.getHeight();
+
+      int columns = 0;
+      int covered = 0;
+      for (int x = 0; x < width; x += COLUMN_STEP) {
+         ++columns;
+
+         double y = line[0] * x + line[1];
+         int minY = Math.max(0, (int) Math.floor(y - line[2] / 2 - 1));
+         int maxY = Math.min(height - 1, (int) Math.ceil(y + line[2] / 2 + 1));
+
+         for (int r = minY; r <= maxY; ++r)
+            if (bits.get(x, r) == 1) {
+               ++covered;
+               break;
+            }
+      }
+
+      return (columns == 0) ? 0 : (double) covered / columns;
+   }
+
+   /**
+    * @return true if row y is within the band of a line, at the middle of the page
+    */
+   private static boolean isCovered(List<double[]> lines, int y, int width)
+   {
+      for (double[] line : lines) {
+         double center = line[0] * (width / 2) + line[1];
+         double halfBand = line[2] / 2 + 2 + Math.abs(line[0]) * width / 2;
+
+         if (Math.abs(y - center) <= halfBand)
+            return true;
+      }
+
+      return false;
+   }
+}
@@ -21,6 +21,9 @@ import plsdejai.widgets.NumericTextField;
  */
 public class LowerProfileOfZeroTriadsOp extends StandardBinaryOp
 {
+   // The name of the filter, that getName returns
+   public final static String NAME = "Lower Profile of Zero Triads";
+
    // Constants for parameter names
    private final static String KEY_TOLERANCE = "tolerance";
    private final static String KEY_OFF = "off";
@@ -28,6 +31,12 @@ public class LowerProfileOfZeroTriadsOp extends StandardBinaryOp
    
    /* ***************************************************** */
 
+   /** If true, the passes of the orientations without rule lines are skipped */
+   private boolean isPrescreened = false;
+
+   /** The orientations of the last page, or -1 if it was not prescreened */
+   private int orientations = -1;
+
    public LowerProfileOfZeroTriadsOp()
    {
       toolbar = new DefaultParameterToolbar(getName());
@@ -48,7 +57,7 @@ public class LowerProfileOfZeroTriadsOp extends StandardBinaryOp
     * @return a String, which is a descriptive name for the class
     *         The returned string should have at most than 20 characters
     */
-   public final String getName(){return "Lower Profile of Zero Triads";}
+   public final String getName(){return NAME;}
 
    /**
     * @return a String which is the full description of the paper which describes
@@ -74,6 +83,42 @@ public class LowerProfileOfZeroTriadsOp extends StandardBinaryOp
       return names;
    }
 
+   /**
+    * @return true for tolerance and off, which are measured in pixels
+    * @see <code>isLengthParameter</code> method in StandardBinaryOp
+    */
+   public boolean isLengthParameter(String name)
+   {
+      return KEY_TOLERANCE.equals(name) || KEY_OFF.equals(name);
+   }
+
+
+   /**
+    * Sets the prescreen of the pages: a page without rule lines is not
+    * filtered, and only the pass of the orientation of its lines runs
+    * for a page with lines of one orientation
+    * @see RuleLinePrescreen
+    */
+   public void setPrescreened(boolean isPrescreened) { this.isPrescreened = isPrescreened; }
+
+   public boolean isPrescreened() { return isPrescreened; }
+
+   /**
+    * @return the decision of the prescreen for the last page, or null
+    * @see <code>getReport</code> method in StandardBinaryOp
+    */
+   public String getReport()
+   {
+      return (orientations < 0) ? null : "prescreen: " + RuleLinePrescreen.toString(orientations);
+   }
+
+   /**
+    * @see <code>getFingerprintKey</code> method in StandardBinaryOp
+    */
+   protected String getFingerprintKey()
+   {
+      return super.getFingerprintKey() + (isPrescreened ? "|prescreen" : "");
+   }
 
    /**
     * Performs a single-input/single-output operation from a source
@@ -223,13 +268,20 @@ public class LowerProfileOfZeroTriadsOp extends StandardBinaryOp
 
       int j = 0;   // checks the horizontal/vertical processing of the image
 
+      orientations = isPrescreened ? RuleLinePrescreen.screen(src) : -1;
+      int passes = isPrescreened ? orientations : RuleLinePrescreen.BOTH;
+
       Point p1 = null;
       Point p2 = null;
 
       while (j < 2) {
          //isLineFound = true;
 
-         int lowerRowPos = maxRow;
+         // A pass without rule lines does not scan the image
+         boolean isPassNeeded = (passes & ((j == 0)
+                 ? RuleLinePrescreen.HORIZONTAL : RuleLinePrescreen.VERTICAL)) != 0;
+
+         int lowerRowPos = isPassNeeded ? maxRow : minRow - 1;
          int offset = 0;
 
 
@@ -440,6 +492,10 @@ public class LowerProfileOfZeroTriadsOp extends StandardBinaryOp
 
          } // end of while(lowerRowPos - offset > minRow)
 
+         // Without the vertical pass, the image is not rotated
+         if (j == 0 && (passes & RuleLinePrescreen.VERTICAL) == 0)
+            break;
+
          raster1 = rotate90(raster1, (j == 0) ? true : false);
          raster2 = rotate90(raster2, (j == 0) ? true : false);
 
@@ -858,6 +914,8 @@ public class LowerProfileOfZeroTriadsOp extends StandardBinaryOp
          tbar.createParameter(param.name, param.desc, param.type,
                  param.min, param.max, param.value);
 
+      op.isPrescreened = isPrescreened;
+
       return op;
    }
 
@@ -0,0 +1,122 @@
+package plsdejai.filter;
+
+import java.awt.image.Raster;
+import java.util.Arrays;
+import plsdejai.StandardBinaryOp;
+import plsdejai.util.PackedBinaryRaster;
+
+/**
+ * A fast test for the orientations of the rule lines of a page, so that
+ * a filter can skip a page without rule lines, or run only the pass of one
+ * orientation.
+ *
+ * The page is divided to vertical strips of STRIP_WORDS words. In each strip,
+ * a band of BAND_ROWS rows is a rule line band, if most of the columns of the
+ * strip have a foreground pixel in the band; the columns are counted a word
+ * at a time, by the population count of the OR of the words of the band.
+ * A page has horizontal lines, if at least MIN_STRIPS strips have a rule line
+ * band, or all of them for a narrow page. The vertical lines are tested in
+ * the same way, in the transposed page.
+ * Rule lines cover almost all the columns of a band, while handwriting
+ * leaves gaps between the strokes; a band of dense text that passes the test
+ * only costs the pass that would run anyway.
+ */
+public class RuleLinePrescreen
+{
+   public static final int NONE = 0;
+   public static final int HORIZONTAL = 1;
+   public static final int VERTICAL = 2;
+   public static final int BOTH = HORIZONTAL | VERTICAL;
+
+   // The width of a strip in words of 64 pixels
+   private static final int STRIP_WORDS = 4;
+   // The height of a band; it allows for a skew of a few degrees in a strip
+   private static final int BAND_ROWS = 5;
+   // The part of the columns of a strip, that a rule line band covers
+   private static final double LINE_COVERAGE = 0.7;
+   // The number of strips with a rule line band, for a page with rule lines;
+   // a page of fewer strips needs all of them
+   private static final int MIN_STRIPS = 2;
+
+   /**
+    * @param raster a binary page
+    * @return the orientations of the rule lines of the page:
+    *         NONE, HORIZONTAL, VERTICAL or BOTH
+    */
+   public static int screen(Raster raster)
+   {
+      PackedBinaryRaster bits = new PackedBinaryRaster(raster, StandardBinaryOp.FOREGROUND);
+
+      int orientations = NONE;
+      if (hasLines(bits))
+         orientations |= HORIZONTAL;
+      if (hasLines(bits.transpose()))
+         orientations |= VERTICAL;
+
+      return orientations;
+   }
+
+   /**
+    * @return a description of orientations, for the logs
+    */
+   public static String toString(int orientations)
+   {
+      switch (orientations) {
+         case NONE:
+            return "no rule lines";
+         case HORIZONTAL:
+            return "horizontal rule lines only";
+         case VERTICAL:
+            return "vertical rule lines only";
+         default:
+            return "horizontal and vertical rule lines";
+      }
+   }
+
+   /**
+    * @return true if the raster has horizontal rule lines
+    */
+   private static boolean hasLines(PackedBinaryRaster bits)
+   {
+      int width = bits.getWidth();
+      int height = bits.getHeight();
+      int wordsPerRow = bits.getWordsPerRow();
+
+      if (height < BAND_ROWS)
+         return false;
+
+      int tested = 0;
+      int strips = 0;
+      for (int w0 = 0; w0 < wordsPerRow; w0 += STRIP_WORDS) {
+         int w1 = Math.min(wordsPerRow, w0 + STRIP_WORDS);
+         int stripWidth = Math.min(width, w1 << 6) - (w0 << 6);
+
+         // A narrow last strip is not tested
+         if (stripWidth < 64 && w0 > 0)
+            break;
+
+         ++tested;
+         int minCoverage = (int) Math.ceil(LINE_COVERAGE * stripWidth);
+         long[] band = new long[w1 - w0];
+
+         for (int y = 0; y + BAND_ROWS <= height; ++y) {
+            Arrays.fill(band, 0);
+            for (int r = y; r < y + BAND_ROWS; ++r)
+               for (int w = w0; w < w1; ++w)
+                  band[w - w0] |= bits.getWord(r, w);
+
+            int coverage = 0;
+            for (long word : band)
+               coverage += Long.bitCount(word);
+
+            if (coverage >= minCoverage) {
+               if (++strips >= MIN_STRIPS)
+                  return true;
+               break;
+            }
+         }
+      }
+
+      return strips > 0 && strips == tested;
+   }
+}
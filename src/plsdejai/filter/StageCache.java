@@ -0,0 +1,128 @@
+package plsdejai.filter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the intermediate products of the stages of a filter, so that
+ * when only the parameters of the later stages change, e.g. by the optimizer,
+ * the earlier stages do not run again for the same image.
+ * A product is keyed by the identity of the image and by the parameters of
+ * its stage and of the stages before it.
+ *
+ * The cache is bounded by a number of bytes; when it is full, the least
+ * recently used products are removed. A product that is larger than a part
+ * of the cache is not kept, so that it does not remove all the others.
+ * A cache is thread safe, so the clones of a filter can share it.
+ */
+public class StageCache
+{
+   // The default size of the cache, as a part of the maximum heap size
+   private static final double MEMORY_FRACTION = 0.125;
+   // The largest product, as a part of the size of the cache
+   private static final double MAX_PRODUCT_FRACTION = 0.25;
+
+   /**
+    * A product and its estimated size
+    */
+   private static class Entry
+   {
+      Object value;
+      long bytes;
+
+      Entry(Object value, long bytes)
+      {
+         this.value = value;
+         this.bytes = bytes;
+      }
+   }
+
+   // The products, from the least to the most recently used
+   private Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+   private long capacity;
+   private long size = 0;
+
+   private int hits = 0;
+   private int misses = 0;
+
+   /**
+    * Creates a cache of the default size
+    */
+   public StageCache()
+   {
+      this((long) (Runtime.getRuntime().maxMemory() * MEMORY_FRACTION));
+   }
+
+   /**
+    * @param capacity the largest total size of the products, in bytes
+    */
+   public StageCache(long capacity)
+   {
+      this.capacity = capacity;
+   }
+
+   /**
+    * @param key
+    * @return the product of the key, or null if it is not in the cache
+    */
+   public synchronized Object get(String key)
+   {
+      Entry e = entries.get(key);
+
+      if (e == null) {
+         ++misses;
+         return null;
+      }
+
+      ++hits;
+      return e.value;
+   }
+
+   /**
+    * Adds a product. A product that is larger than a quarter of the cache
+    * is not added
+    * @param key
+    * @param value the product; it must not be modified after it is added
+    * @param bytes the estimated size of the product
+    */
+   public synchronized void put(String key, Object value, long bytes)
+   {
+      Entry old = entries.remove(key);
+      if (old != null)
+         size -= old.bytes;
+
+      if (bytes > MAX_PRODUCT_FRACTION * capacity)
+         return;
+
+      // Removes the least recently used products
+      for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && size + bytes > capacity;) {
+         size -= it.next().bytes;
+         it.remove();
+      }
+
+      entries.put(key, new Entry(value, bytes));
+      size += bytes;
+   }
+
+   /**
+    * @return the total estimated size of the products, in bytes
+    */
+   public synchronized long getSize() { return size; }
+
+   public synchronized long getCapacity() { return capacity; }
+
+   public synchronized int getHits() { return hits; }
+
+   public synchronized int getMisses() { return misses; }
+
+   /**
+    * Removes all the products
+    */
+   public synchronized void clear()
+   {
+      entries.clear();
+      size = 0;
+   }
+}
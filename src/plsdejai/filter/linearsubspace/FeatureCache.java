@@ -0,0 +1,154 @@
+package plsdejai.filter.linearsubspace;
+
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+import javax.swing.SwingWorker;
+import plsdejai.StandardBinaryOp;
+import plsdejai.util.Digests;
+import plsdejai.util.PackedBinaryRaster;
+
+/**
+ * A cache of the feature matrices of images, keyed by the identity of
+ * the image, the vector size and the model parameters (window half side
+ * and moment order) of the subspace that calculates them.
+ * The reconstruction error is not a part of the key, because the feature
+ * vectors do not depend on it.
+ *
+ * The matrices are kept in memory, as long as there is enough memory,
+ * and optionally in a directory, from which they are reloaded.
+ */
+public class FeatureCache
+{
+   private Map<String, SoftReference<FeatureMatrix>> matrices =
+           new HashMap<String, SoftReference<FeatureMatrix>>();
+
+   // The directory where the matrices are stored, or null
+   private File dir;
+
+   private int hits = 0;
+   private int misses = 0;
+
+   /**
+    * Creates a cache in memory only
+    */
+   public FeatureCache() { this(null); }
+
+   /**
+    * @param dir the directory where the matrices are stored; if null,
+    *            the matrices are kept only in memory
+    */
+   public FeatureCache(File dir)
+   {
+      if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+         System.err.println("Cannot create the feature cache directory " + dir);
+         dir = null;
+      }
+
+      this.dir = dir;
+   }
+
+   /**
+    * Returns the feature matrix of an image, as calculated by a model
+    * @param imageId the identity of the image
+    * @param model
+    * @param raster the image
+    * @param isEdgePointsIncluded see LSubspace.getFeatureMatrix
+    * @param task the thread that calls this method
+    * @return the feature matrix, or null if the task is cancelled
+    */
+   public FeatureMatrix get(String imageId, LSubspace model, Raster raster,
+           boolean isEdgePointsIncluded, SwingWorker task)
+   {
+      int[] params = model.getModelParameters();
+
+      StringBuilder key = new StringBuilder(imageId);
+      key.append("|").append(model.getVectorSize());
+      for (int i = 0; i < params.length; ++i)
+         key.append("|").append(params[i]);
+      key.append(isEdgePointsIncluded ? "|all" : "|non-edge");
+
+      String k = key.toString();
+
+      FeatureMatrix features = null;
+
+      synchronized (this) {
+         SoftReference<FeatureMatrix> ref = matrices.get(k);
+         if (ref != null)
+            features = ref.get();
+      }
+
+      File f = (dir == null) ? null : new File(dir, getFilename(k));
+
+      if (features == null && f != null && f.isFile()) {
+         try {
+            features = FeatureMatrix.read(f);
+
+         } catch (IOException e) {
+            System.err.println("Invalid feature cache file " + f + ": " + e.getMessage());
+         }
+      }
+
+      if (features == null) {
+         features = model.getFeatureMatrix(
+                 new PackedBinaryRaster(raster, StandardBinaryOp.FOREGROUND),
+                 raster, isEdgePointsIncluded, task);
+
+         if (features == null) // cancelled
+            return null;
+
+         if (f != null) {
+            // The matrix is written to a temporary file, which then replaces f,
+            // so that a concurrent reader never sees a partially written file
+            File tmp = null;
+            try {
+               tmp = File.createTempFile("features", ".tmp", dir);
+               features.write(tmp);
+
+               if (!tmp.renameTo(f) && !f.isFile())
+                  throw new IOException("cannot rename " + tmp);
+
+            } catch (IOException e) {
+               System.err.println("Cannot write the feature cache file " + f + ": " + e.getMessage());
+            } finally {
+               if (tmp != null)
+                  tmp.delete();
+            }
+         }
+
+         synchronized (this) { ++misses; }
+
+      } else {
+         synchronized (this) { ++hits; }
+      }
+
+      synchronized (this) {
+         matrices.put(k, new SoftReference<FeatureMatrix>(features));
+      }
+
+      return features;
+   }
+
+   public synchronized int getHits() { return hits; }
+
+   public synchronized int getMisses() { return misses; }
+
+   /**
+    * Removes all the matrices from memory
+    */
+   public synchronized void clear()
+   {
+      matrices.clear();
+   }
+
+   /**
+    * @return a file name for a key
+    */
+   private static String getFilename(String key)
+   {
+      return Digests.sha1(key) + ".features";
+   }
+}
@@ -0,0 +1,176 @@
+package plsdejai.filter.linearsubspace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The feature vectors of the foreground pixels of an image, as they are
+ * calculated by a subspace model for a given window and moment order.
+ * The points that have the same patch share the same feature vector,
+ * which is stored only once, as a row of the matrix. The rows are kept
+ * in the order of their first point, and the points in raster order.
+ *
+ * A feature matrix does not depend on the reconstruction error of the model,
+ * so it can be reused for training and classification
+ * when only the reconstruction error changes.
+ */
+public class FeatureMatrix
+{
+   private int width;
+   private int height;
+   private int vectorSize;
+
+   // The points, as indices y * width + x, in raster order
+   private int[] points;
+   // The row of the feature vector of each point, or -1 if no
+   // feature vector could be calculated
+   private int[] rows;
+   // The rows, one after the other
+   private double[] vectors;
+   private int numOfRows;
+
+   FeatureMatrix(int width, int height, int vectorSize,
+           int[] points, int[] rows, double[] vectors, int numOfRows)
+   {
+      this.width = width;
+      this.height = height;
+      this.vectorSize = vectorSize;
+      this.points = points;
+      this.rows = rows;
+      this.vectors = vectors;
+      this.numOfRows = numOfRows;
+   }
+
+   public int getWidth() { return width; }
+
+   public int getHeight() { return height; }
+
+   public int getVectorSize() { return vectorSize; }
+
+   public int getNumberOfPoints() { return points.length; }
+
+   public int getNumberOfRows() { return numOfRows; }
+
+   public int getPointX(int i) { return points[i] % width; }
+
+   public int getPointY(int i) { return points[i] / width; }
+
+   /**
+    * @return the row of the feature vector of point i, or -1
+    */
+   public int getRow(int i) { return rows[i]; }
+
+   /**
+    * @return a copy of the feature vector of a row
+    */
+   public double[] getVector(int row)
+   {
+      double[] v = new double[vectorSize];
+      System.arraycopy(vectors, row * vectorSize, v, 0, vectorSize);
+
+      return v;
+   }
+
+   /**
+    * @return the approximate memory used by this matrix, in bytes
+    */
+   public long getSizeInBytes()
+   {
+      return 8L * points.length + 8L * numOfRows * vectorSize;
+   }
+
+   /* ************************** File format ***************************** */
+   /*  0: int MAGIC,  4: int VERSION,  8: int width, 12: int height,
+    * 16: int vectorSize, 20: int number of points, 24: int number of rows,
+    * 28: int 0, 32: int[] points, int[] rows, double[] vectors.
+    * All the values are little-endian.
+    */
+   private static final int MAGIC = 0x4D464C52; // "RLFM" in little-endian
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 32;
+
+   /**
+    * Stores the matrix to a file
+    * @param f
+    * @throws IOException
+    */
+   public void write(File f) throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.allocate((int) (HEADER_SIZE
+              + 8L * points.length + 8L * numOfRows * vectorSize)).order(ByteOrder.LITTLE_ENDIAN);
+
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height)
+              .putInt(vectorSize).putInt(points.length).putInt(numOfRows).putInt(0);
+
+      buffer.asIntBuffer().put(points).put(rows);
+      buffer.position(HEADER_SIZE + 8 * points.length);
+      buffer.asDoubleBuffer().put(vectors, 0, numOfRows * vectorSize);
+
+      buffer.rewind();
+
+      FileOutputStream out = new FileOutputStream(f);
+      try {
+         FileChannel channel = out.getChannel();
+         while (buffer.hasRemaining())
+            channel.write(buffer);
+
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Loads a matrix from a file
+    * @param f
+    * @return the matrix
+    * @throws IOException if the file cannot be read or it is not valid
+    */
+   public static FeatureMatrix read(File f) throws IOException
+   {
+      RandomAccessFile file = new RandomAccessFile(f, "r");
+
+      try {
+         long length = file.length();
+         if (length < HEADER_SIZE)
+            throw new IOException("'" + f.getName() + "' is not a feature matrix file");
+
+         MappedByteBuffer buffer = file.getChannel().map(
+                 FileChannel.MapMode.READ_ONLY, 0, length);
+         buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+         if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("'" + f.getName() + "' is not a feature matrix file");
+
+         int width = buffer.getInt(8);
+         int height = buffer.getInt(12);
+         int vectorSize = buffer.getInt(16);
+         int numOfPoints = buffer.getInt(20);
+         int numOfRows = buffer.getInt(24);
+
+         if (width < 0 || height < 0 || vectorSize < 0 || numOfPoints < 0 || numOfRows < 0
+                 || length != HEADER_SIZE + 8L * numOfPoints + 8L * numOfRows * vectorSize)
+            throw new IOException("'" + f.getName() + "' is corrupted");
+
+         int[] points = new int[numOfPoints];
+         int[] rows = new int[numOfPoints];
+         double[] vectors = new double[numOfRows * vectorSize];
+
+         buffer.position(HEADER_SIZE);
+         buffer.asIntBuffer().get(points).get(rows);
+         buffer.position(HEADER_SIZE + 8 * numOfPoints);
+         buffer.asDoubleBuffer().get(vectors);
+
+         return new FeatureMatrix(width, height, vectorSize,
+                 points, rows, vectors, numOfRows);
+
+      } finally {
+         file.close();
+      }
+   }
+}
@@ -8,20 +8,38 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.util.Arrays;
 import javax.swing.JOptionPane;
+import plsdejai.util.Messages;
 import javax.swing.SwingWorker;
 import plsdejai.StandardBinaryOp;
+import plsdejai.util.PackedBinaryRaster;
 
    /**
     * <code>LSubspace</code> implements a linear subspace, in which
@@ -104,6 +122,8 @@ public abstract class LSubspace
   
    public abstract double[] getFeatureVector(int [][] iArr, Point p);
 
+   public abstract double[] getFeatureVector(PackedBinaryRaster bits, Point p);
+
    /**
     * Wrapper method
     * @param l
@@ -153,6 +173,18 @@ public abstract class LSubspace
     * @return true if the vector is added to subspace; otherwise false.
     */
    public boolean add(double[] v)
+   {
+      return add(vectorList, v);
+   }
+
+   /**
+    * Adds a vector to the subspace that is spanned by the orthonormal
+    * vectors of <code>basis</code>, using the reconstruction error of this subspace
+    * @param basis : the orthonormal vectors of a subspace
+    * @param v : the vector that is to be added in basis
+    * @return true if the vector is added to basis; otherwise false.
+    */
+   private boolean add(List<double[]> basis, double[] v)
    {
       boolean isChanged = false;
 
@@ -164,25 +196,25 @@ public abstract class LSubspace
          return false;
       }
 
-      //int oldValue = vectorList.size();
+      //int oldValue = basis.size();
 
 
-      if (vectorList.isEmpty()) { // Initialize subspace
+      if (basis.isEmpty()) { // Initialize subspace
 
 
          if (normalizeVector_ip(v) == null) { // Vector is the 0 vector or has zero size
             return false;
          }
 
-         if (vectorList.add(v))
+         if (basis.add(v))
             isChanged = true;
 
       } else { // Increment subspace
 
-         double[] vres = getNewSubspaceVector(v);
+         double[] vres = getNewSubspaceVector(basis, v);
          if (vres != null) {
 
-            if (vectorList.add(vres))
+            if (basis.add(vres))
                isChanged = true;
 
          } 
@@ -193,26 +225,26 @@ public abstract class LSubspace
 
    /**
     * Transforms a given vector, to a vector suitable to be added to the subspace
+    * @param basis : the orthonormal vectors of the subspace
     * @param v
     * @return the appropriate vector to be added to the subspace, or <code>null</code>
     *         if the vector cannot be transformed, or if the tranformed vector
     *         already exists in the subspace.
     */   
-   private double[] getNewSubspaceVector(double[] v)
+   private double[] getNewSubspaceVector(List<double[]> basis, double[] v)
    {
       
 
       if (v == null || v.length == 0)
          return null;
 
-      if (vectorList.isEmpty()){
+      if (basis.isEmpty()){
          return null;
       }
 
-      double p[] = matrixMultiply(vectorList, true, v);
-
-      double r[] = matrixMultiply(vectorList, false, p);
+      double p[] = matrixMultiply(basis, true, v);
 
+      double r[] = matrixMultiply(basis, false, p);
       // Calculate the reconstruction error
       double e = getReconstructionError(v, r);
 
@@ -389,6 +421,60 @@ public abstract class LSubspace
     */
    protected abstract boolean isEdgePoint(Point p, Raster raster);
 
+   /**
+    * Returns a packed binary code of the neighbourhood of the point p,
+    * which is used to detect duplicate patches: two points with the same code
+    * must have exactly the same feature vector, so the feature vector must
+    * depend only on the pixels of the patch, not on its position.
+    * By default patches are not coded and so they are never deduplicated.
+    * @param bits the training image
+    * @param p a non-edge point
+    * @return the code of the patch or null
+    */
+   protected long[] getPatchCode(PackedBinaryRaster bits, Point p)
+   {
+      return null;
+   }
+
+   /* ********************************************************** */
+   // **** Training mode
+   /* ********************************************************** */
+   // If true, only the first of the training patches with the same code is used
+   private boolean isPatchDeduplicationEnabled = false;
+   // The maximum number of patches used from each training image; 0 for all.
+   // The patches are selected by reservoir sampling
+   private int maxPatchesPerImage = 0;
+   // The seed of the reservoir sampling, so that training can be repeated
+   private long samplingSeed = 0;
+
+   /* 0 -> number of training patches (non-edge foreground pixels)
+    * 1 -> number of unique patches
+    * 2 -> number of patches used, after sampling
+    * 3 -> number of vectors added to the subspace
+    */
+   private int trainingStats[] = new int[]{0, 0, 0, 0};
+
+   public void setPatchDeduplicationEnabled(boolean b) { isPatchDeduplicationEnabled = b; }
+
+   public boolean isPatchDeduplicationEnabled() { return isPatchDeduplicationEnabled; }
+
+   public void setMaxPatchesPerImage(int max) { maxPatchesPerImage = max < 0 ? 0 : max; }
+
+   public int getMaxPatchesPerImage() { return maxPatchesPerImage; }
+
+   public void setSamplingSeed(long seed) { samplingSeed = seed; }
+
+   /**
+    * @return a report of the patches that are used by the last training
+    */
+   public String getTrainingInfo()
+   {
+      return "Training patches: " + trainingStats[0]
+              + ", unique: " + trainingStats[1]
+              + ", used: " + trainingStats[2]
+              + ", added vectors: " + trainingStats[3];
+   }
+
    /**
     * Adds vectors to the subspace from a training ground truth image
     * @param bi
@@ -398,7 +484,7 @@ public abstract class LSubspace
    {
       bi = StandardBinaryOp.change2BinaryColorModel(bi);
       if (bi == null){
-         JOptionPane.showMessageDialog(null, "We can only extract training data from binary images!",
+         Messages.show("We can only extract training data from binary images!",
                  "Invalid image data", JOptionPane.INFORMATION_MESSAGE);
             return;
       }
@@ -409,257 +495,724 @@ public abstract class LSubspace
          return;
 
       int width = raster.getWidth();
-      int height = raster.getHeight();
 
-      /* 0 -> total number of processed pixels
-       * 1 -> number of edge pixels
-       * 2 -> number of pixels added to subspace
-       * 3 -> number of pixels already belonging to the subspace
-       * 4 -> number of pixels rejected because getFeature failed
-       *          (because all the pixels in the neighborhood have zero value)       *
-       */
-      int stats[] = new int[]{0, 0, 0, 0, 0};      
+      Arrays.fill(trainingStats, 0);
 
+      int oldValue = size();
 
-      int oldValue = getVectorSize();
+      PackedBinaryRaster bits = new PackedBinaryRaster(raster, StandardBinaryOp.FOREGROUND);
 
-      // Translate raster to 1 (foreground) and 0 (background)
-      int iArr[][] = new int[width][height];
+      int points[] = getTrainingPoints(bits, raster,
+              new HashSet<PatchCode>(), new Random(samplingSeed));
 
-      for (int y = 0; y < height; ++y) {
+      double[] v = null;
+
+      for (int i = 0; i < points.length; ++i) {
+
+         if (task != null && task.isCancelled()){
+            return;
+         }
+
+         Point p = new Point(points[i] % width, points[i] / width);
 
-         for (int x = 0; x < width; ++x) {
-            if (raster.getPixel(x, y, (int[]) null)[0] == StandardBinaryOp.FOREGROUND)
-               iArr[x][y] = 1;
-            else
-               iArr[x][y] = 0;
+         v = getFeatureVector(bits, p);
+
+         // if mean = 0 then there is no foreground pixel in the neighbourhood,
+         //  and no feature vector should be created
+         if (v == null) {
+            // a feature vector could not be calculated
+            // (because all the pixels in the neighbourhood have zero value)
+
+            continue;
          }
+
+         if (add(v))
+            ++trainingStats[3];
+
       }
 
-      double[] v = null;
+      int newValue = size();
+      if (oldValue != newValue)
+         firePropertyChange(SUBSPACE_SIZE_CHANGED_PROPERTY, oldValue, newValue);
+      
+   }
+
+   /**
+    * Adds vectors to the subspace from a set of training ground truth images.
+    *
+    * The feature vectors are extracted in parallel, per image and per band
+    * of rows. Each worker builds its own partial subspace, with the
+    * reconstruction error of this subspace, and keeps the feature vectors
+    * that extended it. The partial subspaces are then merged, in the order
+    * of the images and of the bands, by re-orthogonalising their union
+    * against this subspace (Gram-Schmidt, i.e. the Q of a QR decomposition),
+    * using again the same reconstruction error.
+    * Note: the union is formed by the feature vectors and not by the
+    * normalized vectors of the partial subspaces, because the reconstruction
+    * error is a threshold on the size of the feature vectors.
+    *
+    * If patch deduplication is enabled, duplicate patches are rejected
+    * across all the images.
+    *
+    * If the training is cancelled or interrupted, or a worker fails, the
+    * subspace is not changed. The failure of a worker is reported to the user.
+    *
+    * @param images the training images
+    * @param task the thread that calls this method
+    */
+   public void addTrainingData(BufferedImage[] images, final SwingWorker task)
+   {
+      if (images == null || images.length == 0)
+         return;
+
+      Arrays.fill(trainingStats, 0);
+
+      int oldValue = size();
+
+      int numOfThreads = Runtime.getRuntime().availableProcessors();
+
+      ExecutorService executor = Executors.newFixedThreadPool(numOfThreads);
+
+      // The partial subspaces of the images that are being processed.
+      // At most two images are kept in memory: while the bands of an image
+      // are merged, the bands of the next one are processed
+      LinkedList<List<Future<List<double[]>>>> pending =
+              new LinkedList<List<Future<List<double[]>>>>();
+
+      Set<PatchCode> codes = new HashSet<PatchCode>();
+      Random random = new Random(samplingSeed);
+
+      boolean isTrained = false;
+
+      try {
+         for (int i = 0; i < images.length; ++i) {
+
+            if (task != null && task.isCancelled())
+               return;
+
+            BufferedImage bi = StandardBinaryOp.change2BinaryColorModel(images[i]);
+            if (bi == null) {
+               Messages.show("We can only extract training data from binary images!",
+                       "Invalid image data", JOptionPane.INFORMATION_MESSAGE);
+               continue;
+            }
+
+            final Raster raster = bi.getRaster();
+
+            if (!isValidRaster(raster))
+               continue;
+
+            final PackedBinaryRaster bits =
+                    new PackedBinaryRaster(raster, StandardBinaryOp.FOREGROUND);
+
+            final int points[] = getTrainingPoints(bits, raster, codes, random);
+
+            // The points are in raster order, so each band is a band of rows
+            int bandSize = (points.length + numOfThreads - 1) / numOfThreads;
+
+            List<Future<List<double[]>>> bands = new ArrayList<Future<List<double[]>>>();
+
+            for (int j = 0; j < points.length; j += bandSize) {
+               final int start = j;
+               final int end = Math.min(points.length, j + bandSize);
+
+               bands.add(executor.submit(new Callable<List<double[]>>()
+               {
+                  public List<double[]> call()
+                  {
+                     return getPartialSubspace(bits, raster, points, start, end, task);
+                  }
+               }));
+            }
+
+            pending.addLast(bands);
+
+            if (pending.size() > 1 && !merge(pending.removeFirst()))
+               return;
+         }
+
+         while (!pending.isEmpty()) {
+            if (!merge(pending.removeFirst()))
+               return;
+         }
+
+         isTrained = true;
+
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+
+      } catch (ExecutionException e) {
+         Messages.show("The training failed, and the subspace is not changed:\n"
+                 + e.getCause(), "Training failed", JOptionPane.ERROR_MESSAGE);
+
+      } finally {
+         executor.shutdownNow();
+
+         // A cancelled or failed training would leave a partially trained
+         // subspace, so the other workers are cancelled and the added vectors
+         // are removed; vectors are only appended, so this restores the subspace
+         if (!isTrained) {
+            for (List<Future<List<double[]>>> bands : pending)
+               for (Future<List<double[]>> band : bands)
+                  band.cancel(true);
+
+            vectorList.subList(oldValue, vectorList.size()).clear();
+            trainingStats[3] = 0;
+         }
+
+         int newValue = size();
+         if (oldValue != newValue)
+            firePropertyChange(SUBSPACE_SIZE_CHANGED_PROPERTY, oldValue, newValue);
+      }
+
+   }
+
+   /**
+    * Merges to this subspace the partial subspaces of the bands of an image
+    * @param bands the feature vectors that extended each partial subspace
+    * @return false if the training was cancelled
+    */
+   private boolean merge(List<Future<List<double[]>>> bands)
+           throws InterruptedException, ExecutionException
+   {
+      for (Iterator<Future<List<double[]>>> it = bands.iterator(); it.hasNext();) {
+         List<double[]> vectors = it.next().get();
+
+         if (vectors == null) // cancelled
+            return false;
+
+         for (Iterator<double[]> vIt = vectors.iterator(); vIt.hasNext();) {
+            if (add(vIt.next()))
+               ++trainingStats[3];
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Builds the partial subspace of the training points [start, end)
+    * @param bits the training image
+    * @param raster
+    * @param points the training points, as returned by getTrainingPoints
+    * @param start
+    * @param end
+    * @param task the thread that calls this method
+    * @return the feature vectors that extended the partial subspace, in the order
+    *         they were added, or null if the task is cancelled.
+    */
+   private List<double[]> getPartialSubspace(PackedBinaryRaster bits, Raster raster,
+           int[] points, int start, int end, SwingWorker task)
+   {
+      List<double[]> basis = new ArrayList<double[]>(vectorSize);
+      List<double[]> vectors = new ArrayList<double[]>(vectorSize);
+
+      int width = raster.getWidth();
+
+      for (int i = start; i < end; ++i) {
+
+         if (task != null && task.isCancelled())
+            return null;
+
+         double[] v = getFeatureVector(bits, new Point(points[i] % width, points[i] / width));
+
+         if (v == null)
+            continue;
+
+         // add() may normalize v in place
+         double[] vCopy = v.clone();
+
+         if (add(basis, v))
+            vectors.add(vCopy);
+      }
+
+      return vectors;
+   }
 
+   /**
+    * Selects the training points of an image: all the non-edge foreground
+    * points, or, depending on the training mode, only the points of unique
+    * patches and/or a reservoir sample of them.
+    * @param bits the training image
+    * @param raster
+    * @param codes the codes of the patches that have been already used
+    * @param random the random generator of the reservoir sampling
+    * @return the points, as indices y * width + x, in raster order
+    */
+   private int[] getTrainingPoints(PackedBinaryRaster bits, Raster raster,
+           Set<PatchCode> codes, Random random)
+   {
+      int width = raster.getWidth();
+      int height = raster.getHeight();
+
+      int[] points = new int[64];
+      int numOfPoints = 0;
+      // The number of points the reservoir has seen
+      int numOfSeen = 0;
 
       for (int y = 0; y < height; ++y) {
+         for (int x = bits.nextSetBit(0, y); x >= 0; x = bits.nextSetBit(x + 1, y)) {
 
-         if (task != null && task.isCancelled()){
-            return;
+            Point p = new Point(x, y);
+
+            if (isEdgePoint(p, raster))
+               continue;
+
+            ++trainingStats[0];
+
+            if (isPatchDeduplicationEnabled) {
+               long[] code = getPatchCode(bits, p);
+               if (code != null && !codes.add(new PatchCode(code)))
+                  continue;
+            }
+
+            ++trainingStats[1];
+
+            int index = y * width + x;
+
+            if (maxPatchesPerImage > 0 && numOfSeen >= maxPatchesPerImage) {
+               // Reservoir sampling: replace a random point of the reservoir
+               int r = random.nextInt(++numOfSeen);
+               if (r < maxPatchesPerImage)
+                  points[r] = index;
+
+               continue;
+            }
+
+            ++numOfSeen;
+
+            if (numOfPoints == points.length)
+               points = Arrays.copyOf(points, 2 * numOfPoints);
+
+            points[numOfPoints++] = index;
          }
+      }
+
+      points = Arrays.copyOf(points, numOfPoints);
+
+      // Restore the raster order of a sample
+      if (maxPatchesPerImage > 0 && numOfSeen > maxPatchesPerImage)
+         Arrays.sort(points);
 
-         for (int x = 0; x < width; ++x) {
+      trainingStats[2] += numOfPoints;
 
-            if (iArr[x][y] == 1){ // A foreground pixel
+      return points;
+   }
 
-               if (!isEdgePoint(new Point(x, y), raster)) { // Non-edge points
+   /**
+    * Calculates the feature vectors of the foreground points of an image
+    * @param bits the image
+    * @param raster the image
+    * @param isEdgePointsIncluded if false, only the non-edge points are used,
+    *        as in training; otherwise all the points are used, as in filtering
+    * @param task the thread that calls this method
+    * @return the feature matrix, or null if the task is cancelled
+    */
+   public FeatureMatrix getFeatureMatrix(PackedBinaryRaster bits, Raster raster,
+           boolean isEdgePointsIncluded, SwingWorker task)
+   {
+      int width = bits.getWidth();
+      int height = bits.getHeight();
 
-                  v = getFeatureVector(iArr, new Point(x, y));
+      int[] points = new int[1024];
+      int[] rows = new int[1024];
+      int numOfPoints = 0;
 
-                  // if mean = 0 then there is no foreground pixel in the neighbourhood,
-                  //  and no feature vector should be created
-                  if (v == null) {
-                     // a feature vector could not be calculated
-                     // (because all the pixels in the neighbourhood have zero value)
+      double[] vectors = new double[64 * vectorSize];
+      int numOfRows = 0;
 
-                     continue;
-                  }
+      // The rows of the patches
+      Map<PatchCode, Integer> codes = new HashMap<PatchCode, Integer>();
 
+      for (int y = 0; y < height; ++y) {
 
-                  add(v);
+         if (task != null && task.isCancelled())
+            return null;
 
+         for (int x = bits.nextSetBit(0, y); x >= 0; x = bits.nextSetBit(x + 1, y)) {
+
+            Point p = new Point(x, y);
+
+            boolean isEdge = isEdgePoint(p, raster);
+            if (isEdge && !isEdgePointsIncluded)
+               continue;
+
+            PatchCode code = null;
+            Integer row = null;
+
+            if (!isEdge) {
+               long[] c = getPatchCode(bits, p);
+               if (c != null) {
+                  code = new PatchCode(c);
+                  row = codes.get(code);
+               }
+            }
+
+            if (row == null) {
+               double[] v = getFeatureVector(bits, p);
+
+               if (v == null)
+                  row = Integer.valueOf(-1);
+               else {
+                  if ((numOfRows + 1) * vectorSize > vectors.length)
+                     vectors = Arrays.copyOf(vectors, 2 * vectors.length);
+
+                  System.arraycopy(v, 0, vectors, numOfRows * vectorSize, vectorSize);
+                  row = Integer.valueOf(numOfRows++);
                }
-               /* ************************************************** */
 
+               if (code != null)
+                  codes.put(code, row);
+            }
+
+            if (numOfPoints == points.length) {
+               points = Arrays.copyOf(points, 2 * numOfPoints);
+               rows = Arrays.copyOf(rows, 2 * numOfPoints);
             }
 
+            points[numOfPoints] = y * width + x;
+            rows[numOfPoints++] = row.intValue();
          }
       }
 
-      int newValue = getVectorSize();
+      return new FeatureMatrix(width, height, vectorSize,
+              Arrays.copyOf(points, numOfPoints), Arrays.copyOf(rows, numOfPoints),
+              Arrays.copyOf(vectors, numOfRows * vectorSize), numOfRows);
+   }
+
+   /**
+    * Adds vectors to the subspace from the feature matrix of a training image.
+    * Only the first point of each patch is used, since its duplicates
+    * cannot change the subspace.
+    * @param features a matrix of the non-edge points of the image,
+    *        with the vector size of this subspace
+    * @param task the thread that calls this method
+    */
+   public void addTrainingData(FeatureMatrix features, SwingWorker task)
+   {
+      if (features.getVectorSize() != vectorSize)
+         throw new IllegalArgumentException("Feature matrix has vector size "
+                 + features.getVectorSize() + " instead of " + vectorSize);
+
+      int oldValue = size();
+
+      for (int row = 0, len = features.getNumberOfRows(); row < len; ++row) {
+
+         if (task != null && task.isCancelled())
+            break;
+
+         add(features.getVector(row));
+      }
+
+      int newValue = size();
       if (oldValue != newValue)
          firePropertyChange(SUBSPACE_SIZE_CHANGED_PROPERTY, oldValue, newValue);
-      
    }
 
 
-   
-
    /* ********************************************************** */
    // **** Functions that should be overrided
    /* ********************************************************** */
    /**
-    * Note: the methods writeubspaceHeaders, readSubspaceHeaders,
-    *       and isValidHeaders should be overriden altogether
-    * 
-    * This function stores the headers, which are the values
-    * that identify the subspace.
+    * The parameters of the model, other than the <code>vectorSize</code>
+    * and <code>error</code>, that are stored in the header of a subspace file.
+    * The base class has no such parameters.
     *
-    * The two values that should always included is the
-    * <code>vectorSize</code> and <code>error</code>.
-    *
-    * This method should be overriden, in order to add more headers.
-    * The proper way to override this method is to always start
-    * with super.storeSubspaceHeader()
+    * Note: the methods getModelParameters and setModelParameters
+    *       should be overriden altogether
+    * @return an array of MODEL_PARAMETERS values
     */
-   protected void writeSubspaceHeaders( ObjectOutputStream out )
-           throws EOFException, IOException
+   protected int[] getModelParameters()
    {
-      out.writeInt(vectorSize);
-      out.writeDouble(error);      
+      return new int[MODEL_PARAMETERS];
    }
 
    /**
-    * Note: the methods writeSubspaceHeaders, readSubspaceHeaders,
-    *       and isValidHeaders should be overriden altogether
-    *
-    * This function reads the headers, which are the values that identify
-    * the subspace, from a file in which a subspace is stored, and sets
-    * the corresponding values of this subspace.
-    *
-    * The two values that should always included and set
-    * is the <code>vectorSize</code> and <code>error</code>.
+    * Sets the parameters of the model, that are read from the header
+    * of a subspace file. It is called after the vectorSize and error are set.
+    * @param params an array of MODEL_PARAMETERS values
+    * @throws IOException if the parameters are not valid for this model
+    */
+   protected void setModelParameters(int[] params) throws IOException { }
+
+   /**
+    * Checks the parameters of the model that are read from the header of
+    * a subspace file, before any of them is set, so that an invalid file
+    * does not change the current subspace.
     *
-    * By setting the vectorSize, the subspace automatically rejects (clears)
-    * all the vectors in the subspace
+    * Note: it should be overriden together with setModelParameters
+    * @param vSize the vector size of the file
+    * @param params an array of MODEL_PARAMETERS values
+    * @throws IOException if the parameters are not valid for this model
+    */
+   protected void checkModelParameters(int vSize, int[] params) throws IOException { }
+
+   /**
+    * Reads the parameters of the model from the headers of a file of the
+    * old format, which follow the <code>vectorSize</code> and <code>error</code>.
+    * The base class has no such parameters.
     *
-    * This method should be overriden, in order to add more headers.
-    * The proper way to override this method is to always start
-    * with super.storeSubspaceHeader()
+    * Note: it should be overriden together with setModelParameters
+    * @param in
+    * @param vSize the vector size of the file
+    * @return an array of MODEL_PARAMETERS values
+    * @throws IOException
     */
-   protected void readSubspaceHeaders( ObjectInputStream in )
-           throws EOFException, IOException
+   protected int[] readOldModelParameters(ObjectInputStream in, int vSize) throws IOException
    {
-      // this also calls subspace.clear(), so you is better to call it first!
-      setVectorSize(in.readInt());
+      return new int[MODEL_PARAMETERS];
+   }
+   /* ********************************************************** */
 
-      setError(in.readDouble());
 
-   }
+   /* ********************************************************** */
+   // **** The subspace file format
+   /* ********************************************************** */
+   /* A file starts with a header of HEADER_SIZE bytes,
+    *    0: int    MAGIC
+    *    4: int    VERSION
+    *    8: int    HEADER_SIZE
+    *   12: int    vectorSize
+    *   16: double error
+    *   24: int[MODEL_PARAMETERS] e.g. window half side and moment order
+    *   32: int    number of vectors
+    *   36: int    0
+    *   40: long   CRC32 checksum of the matrix
+    *   48: 0 up to HEADER_SIZE
+    * followed by the matrix of the vectors, one vector after the other,
+    * as float64 values. All the values are little-endian.
+    *
+    * The old files are GZIP compressed Java object streams, so they start
+    * with the GZIP magic number and they cannot be confused with the new files.
+    */
+   private static final int MAGIC = 0x53534C52; // "RLSS" in little-endian
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 64;
+   protected static final int MODEL_PARAMETERS = 2;
 
    /**
-    * Note: the methods writeSubspaceHeaders, readSubspaceHeaders,
-    *       and isValidHeaders should be overriden altogether
-    *
-    * This function checks if the the headers, which are the values
-    * that identify the subspace, that are extracted from a file representing
-    * a subspace, are valid.
-    * The two values that should always included is the
-    * <code>vectorSize</code> and <code>error</code>.
-    *
-    * This method should be overriden, in order check additional headers.
-    * The proper way to override this method is to always start with:
-    *    if ( ! super.isValidHeaders(in) )
-    *       return false;
+    * Stores the subspace vectors to the specified file
+    * @param f
+    * @throws IOException if the file cannot be written, or the subspace
+    *         is larger than a file of this format can hold
     */
-   protected boolean isValidHeaders(ObjectInputStream in)
-           throws EOFException, IOException
+   public void storeSubspace(File f) throws IOException
    {
-      int size = in.readInt();
+      int numOfVectors = vectorList.size();
 
-      if (size != vectorSize) {
-         JOptionPane.showMessageDialog(null,
-                 "Failed, because we try to load a subspace with vector size " + size
-                 + " \nto the current subspace with vector size " + vectorSize, "Loading failure",
-                 JOptionPane.INFORMATION_MESSAGE);
-         return false;
+      long length = HEADER_SIZE + 8L * numOfVectors * vectorSize;
+      if (length > Integer.MAX_VALUE)
+         throw new IOException("The subspace of " + numOfVectors + " vectors of size "
+                 + vectorSize + " is too large to be stored");
+
+      ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+
+      // The matrix
+      buffer.position(HEADER_SIZE);
+      DoubleBuffer matrix = buffer.asDoubleBuffer();
+      for (Iterator<double[]> it = vectorList.iterator(); it.hasNext();) {
+         matrix.put(it.next());
       }
 
-      double e = in.readDouble();
+      // The header
+      int[] params = getModelParameters();
 
-      if (e != error) { // @test: change to e - error > 0.0000001
-         JOptionPane.showMessageDialog(null,
-                 "Failed, because we try to load a subspace with reconstruction error " + e
-                 + " \nto the current subspace with reconstruction error " + error, "Loading failure",
-                 JOptionPane.INFORMATION_MESSAGE);
-         return false;
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, HEADER_SIZE);
+      buffer.putInt(12, vectorSize);
+      buffer.putDouble(16, error);
+      for (int i = 0; i < MODEL_PARAMETERS; ++i)
+         buffer.putInt(24 + 4 * i, params[i]);
+      buffer.putInt(32, numOfVectors);
+      buffer.putLong(40, getChecksum(buffer));
+
+      buffer.rewind();
+
+      FileOutputStream out = new FileOutputStream(f);
+      try {
+         FileChannel channel = out.getChannel();
+         while (buffer.hasRemaining())
+            channel.write(buffer);
+
+      } finally {
+         out.close();
       }
-      
-      return true;
    }
-   /* ********************************************************** */
-
 
    /**
-    * Stores the subspace vectors to the specified file
+    * Loads the subspace stored in a file, after the current subspace is cleared.
+    * Files of the old format are also loaded. A file of the new format is
+    * mapped, but its vectors are copied once into the subspace.
     * @param f
+    * @throws IOException if the file cannot be read or it is not a valid subspace file.
+    *         In this case, the current subspace is not changed.
     */
-   public void storeSubspace(File f)
+   public void loadSubspace(File f) throws IOException
    {
+      RandomAccessFile file = new RandomAccessFile(f, "r");
 
-      ObjectOutputStream out = null;
       try {
-         out = new ObjectOutputStream(
-                 new GZIPOutputStream(
-                 new FileOutputStream(f)));
-
-         writeSubspaceHeaders(out);
-
-         for (Iterator<double[]> it = vectorList.iterator(); it.hasNext();) {
-            out.writeObject(it.next());
+         long length = file.length();
+
+         if (length >= 2) {
+            int b0 = file.read();
+            int b1 = file.read();
+            if (b0 == (GZIPInputStream.GZIP_MAGIC & 0xff)
+                    && b1 == (GZIPInputStream.GZIP_MAGIC >> 8)) {
+               loadOldSubspace(f);
+               return;
+            }
          }
 
-      } catch (EOFException e) {
-
-      } catch (IOException e) {
+         if (length < HEADER_SIZE)
+            throw new IOException("'" + f.getName() + "' is not a subspace file");
+
+         // The largest file that storeSubspace writes, and that can be mapped
+         if (length > Integer.MAX_VALUE)
+            throw new IOException("'" + f.getName() + "' is too large");
+
+         // The file is mapped, so the header and the checksum are read without
+         // a copy of the file. The vectors are still copied to double arrays,
+         // because the subspace keeps and projects its vectors as arrays
+         MappedByteBuffer buffer = file.getChannel().map(
+                 FileChannel.MapMode.READ_ONLY, 0, length);
+         buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+         if (buffer.getInt(0) != MAGIC)
+            throw new IOException("'" + f.getName() + "' is not a subspace file");
+
+         if (buffer.getInt(4) > VERSION)
+            throw new IOException("'" + f.getName() + "' has the unsupported version "
+                    + buffer.getInt(4));
+
+         int headerSize = buffer.getInt(8);
+         int vSize = buffer.getInt(12);
+         double e = buffer.getDouble(16);
+         int[] params = new int[MODEL_PARAMETERS];
+         for (int i = 0; i < MODEL_PARAMETERS; ++i)
+            params[i] = buffer.getInt(24 + 4 * i);
+         int numOfVectors = buffer.getInt(32);
+         long checksum = buffer.getLong(40);
+
+         if (headerSize < HEADER_SIZE || vSize < 0 || numOfVectors < 0
+                 || length != headerSize + 8L * vSize * numOfVectors)
+            throw new IOException("'" + f.getName() + "' is corrupted");
+
+         buffer.position(headerSize);
+         if (getChecksum(buffer) != checksum)
+            throw new IOException("'" + f.getName() + "' is corrupted (invalid checksum)");
+
+         buffer.position(headerSize);
+         DoubleBuffer matrix = buffer.asDoubleBuffer();
+
+         List<double[]> vectors = new ArrayList<double[]>(numOfVectors);
+         for (int i = 0; i < numOfVectors; ++i) {
+            double[] v = new double[vSize];
+            matrix.get(v);
+            vectors.add(v);
+         }
 
-      } catch (NullPointerException e) {
+         setSubspace(vSize, e, params, vectors);
 
       } finally {
-         try {
-            if (out != null) {
-               out.flush();
-               out.close();
-            }
-         } catch (Exception e) { }
+         file.close();
       }
-
    }
 
- 
-      /**
-       * Loads the subspace stored in a file, after the current subspace is cleared
-       * @param filename
-       */
-      public void loadSubspace(File f)
-      {
-         int oldValue = vectorList.size();
+   /**
+    * Replaces the current subspace with the subspace that is read from a file,
+    * if its model parameters are valid; otherwise the subspace is not changed
+    * @param vSize
+    * @param e
+    * @param params an array of MODEL_PARAMETERS values
+    * @param vectors the vectors, of size vSize
+    * @throws IOException if the model parameters are not valid
+    */
+   private void setSubspace(int vSize, double e, int[] params, List<double[]> vectors)
+           throws IOException
+   {
+      checkModelParameters(vSize, params);
 
-         ObjectInputStream in = null;
+      int oldValue = vectorList.size();
 
-         try {
-            in = new ObjectInputStream(
-                    new GZIPInputStream(
-                    new FileInputStream(f)));
+      // this statement also clears the subspace
+      setVectorSize(vSize);
+      setError(e);
+      setModelParameters(params);
 
-            // this statement should also clear the subspace
-            // by calling the method setVectorSize
-            readSubspaceHeaders(in );
+      vectorList.addAll(vectors);
 
-            for (;;){
-               double []v = (double []) in.readObject();
-               vectorList.add(v);
-            }
+      int newValue = vectorList.size();
+      if (newValue != oldValue)
+         firePropertyChange(SUBSPACE_SIZE_CHANGED_PROPERTY, oldValue, newValue);
+   }
 
-         } catch (EOFException e) {
+   /**
+    * @param buffer a buffer positioned at the start of the matrix
+    * @return the CRC32 checksum of the matrix
+    */
+   private static long getChecksum(ByteBuffer buffer)
+   {
+      CRC32 crc = new CRC32();
+      crc.update(buffer.duplicate());
 
-         } catch (IOException e) {
+      return crc.getValue();
+   }
 
-         } catch (ClassNotFoundException e) {
+   /**
+    * Loads a subspace stored in the old format, i.e. a GZIP compressed
+    * Java object stream of the headers and the vectors. As for the new
+    * format, the whole file is read before the current subspace is changed.
+    * @param f
+    * @throws IOException
+    */
+   private void loadOldSubspace(File f) throws IOException
+   {
+      int vSize;
+      double e;
+      int[] params;
+      List<double[]> vectors = new ArrayList<double[]>();
 
-         } catch (NullPointerException e){
+      ObjectInputStream in = null;
 
-         } finally {
-         try {
-            if (in != null)
-               in.close();
-         } catch (Exception e) { }
+      try {
+         in = new ObjectInputStream(
+                 new GZIPInputStream(
+                 new FileInputStream(f)));
+
+         vSize = in.readInt();
+         e = in.readDouble();
+         params = readOldModelParameters(in, vSize);
+
+         for (;;) {
+            Object v;
+            try {
+               v = in.readObject();
+            } catch (EOFException ex) {
+               break; // The end of the vectors
+            }
 
+            if (!(v instanceof double[]) || ((double[]) v).length != vSize)
+               throw new IOException("'" + f.getName() + "' is corrupted");
+
+            vectors.add((double[]) v);
          }
 
-         int newValue = vectorList.size();
-         if (newValue != oldValue)
-            firePropertyChange(SUBSPACE_SIZE_CHANGED_PROPERTY, oldValue, vectorList.size());
+      } catch (EOFException ex) {
+         throw new IOException("'" + f.getName() + "' is corrupted", ex);
+
+      } catch (ClassNotFoundException ex) {
+         throw new IOException("'" + f.getName() + "' is corrupted", ex);
 
+      } finally {
+         if (in != null)
+            in.close();
       }
 
+      setSubspace(vSize, e, params, vectors);
+   }
+
       /**
        *
        * @return a string representation of the subspace
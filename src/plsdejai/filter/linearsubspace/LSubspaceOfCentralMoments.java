@@ -4,13 +4,13 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.Arrays;
 import javax.swing.JOptionPane;
+import plsdejai.util.Messages;
 import javax.swing.SwingWorker;
+import plsdejai.util.PackedBinaryRaster;
 
 
 /**
@@ -99,7 +99,7 @@ public class LSubspaceOfCentralMoments extends LSubspace
    {
       // A valid raster should have at least the dimensions of window * window
       if (raster.getWidth() < windowSide || raster.getHeight() < windowSide){
-         JOptionPane.showMessageDialog(null, "Raster size is two small. No data added to the subspace",
+         Messages.show("Raster size is two small. No data added to the subspace",
                  "Invalid image", JOptionPane.INFORMATION_MESSAGE);
          return false;
       }
@@ -119,42 +119,61 @@ public class LSubspaceOfCentralMoments extends LSubspace
       return true;
    }
 
-   protected void writeSubspaceHeaders( ObjectOutputStream out )
-           throws EOFException, IOException
+   /**
+    * The code of a patch packs the (2n + 1) x (2n + 1) pixels
+    * of the neighborhood, in row order, one bit per pixel
+    */
+   protected long[] getPatchCode(PackedBinaryRaster bits, Point p)
    {
-      super.writeSubspaceHeaders(out);
+      long[] code = new long[(windowSide * windowSide + 63) / 64];
+
+      int bit = 0;
+      for (int y = p.y - windowHalfSide, yEnd = p.y + windowHalfSide; y <= yEnd; ++y) {
+         for (int x = p.x - windowHalfSide, xEnd = p.x + windowHalfSide; x <= xEnd; ++x, ++bit) {
+            if (bits.get(x, y) == 1)
+               code[bit >> 6] |= 1L << (bit & 63);
+         }
+      }
 
-      out.writeInt(windowHalfSide);
+      return code;
    }
 
-   protected void readSubspaceHeaders( ObjectInputStream in )
-           throws EOFException, IOException
+   /**
+    * The model parameters are the window half side and the moment order
+    */
+   protected int[] getModelParameters()
    {
-      super.readSubspaceHeaders(in);
-
-      setMomentMaxOrder((int) Math.sqrt(getVectorSize() - 4));
-
-      setWindowHalfSide(in.readInt());
+      return new int[]{windowHalfSide, k};
    }
 
-   protected boolean isValidHeaders(ObjectInputStream in)
-           throws EOFException, IOException
+   protected void setModelParameters(int[] params) throws IOException
    {
-      if ( ! super.isValidHeaders(in) )
-         return false;
+      checkModelParameters(getVectorSize(), params);
 
-      int hWindowSide = in.readInt();
+      setMomentMaxOrder(params[1]);
 
-      if (hWindowSide != windowHalfSide) {
-         JOptionPane.showMessageDialog(null,
-                 "Failed, because we try to load a subspace with window " + hWindowSide
-                 + " \nto the current subspace with half window side " + windowHalfSide, "Loading failure",
-                 JOptionPane.INFORMATION_MESSAGE);
-         return false;
-      }
+      setWindowHalfSide(params[0]);
+   }
 
-      return true;
+   /**
+    * The old files store only the window half side, and the moment order
+    * is found from the vector size
+    */
+   protected int[] readOldModelParameters(ObjectInputStream in, int vSize) throws IOException
+   {
+      int halfSide = in.readInt();
+
+      return new int[]{halfSide, (int) Math.sqrt(vSize - 4)};
+   }
 
+   /**
+    * The vector size of a model of moment order k is k * k + 4
+    */
+   protected void checkModelParameters(int vSize, int[] params) throws IOException
+   {
+      if (params[0] < 0 || params[1] < 0 || params[1] * params[1] + 4 != vSize)
+         throw new IOException("Invalid window half side " + params[0]
+                 + " or moment order " + params[1]);
    }
 
    /**
@@ -167,9 +186,70 @@ public class LSubspaceOfCentralMoments extends LSubspace
     */
    public final double[] getFeatureVector(int [][] iArr, Point p)
    {
+      Rectangle neighborhood = getNeighborhood(p, iArr.length, iArr[0].length);
+
+      if (neighborhood == null)
+         return null;
+
+      return getFeatureVector(iArr, 0, 0, neighborhood);
+   }
+
+   /**
+    * The same as getFeatureVector(int [][], Point), for a packed binary image
+    */
+   public final double[] getFeatureVector(PackedBinaryRaster bits, Point p)
+   {
+      return getFeatureVector(bits, p, createWindow());
+   }
+
+   /**
+    * @return a buffer of the pixels of a neighborhood, for
+    *         getFeatureVector(PackedBinaryRaster, Point, int[][])
+    */
+   public int[][] createWindow()
+   {
+      return new int[windowSide][windowSide];
+   }
+
+   /**
+    * The same as getFeatureVector(PackedBinaryRaster, Point), but the
+    * neighborhood is copied to a buffer, so that a filter can use one buffer
+    * for all the points of an image
+    * @param window a buffer of createWindow(); a new one is used if it is
+    *               smaller than the neighborhood
+    */
+   public final double[] getFeatureVector(PackedBinaryRaster bits, Point p, int[][] window)
+   {
+      Rectangle neighborhood = getNeighborhood(p, bits.getWidth(), bits.getHeight());
+
+      if (neighborhood == null)
+         return null;
+
+      if (window.length < neighborhood.width || window[0].length < neighborhood.height)
+         window = new int[neighborhood.width][neighborhood.height];
 
-      int maxWidth = iArr.length - 1;
-      int maxHeight = iArr[0].length - 1;
+      // Copy the neighborhood, which is the only data needed
+      for (int x = 0; x < neighborhood.width; ++x) {
+         for (int y = 0; y < neighborhood.height; ++y) {
+            window[x][y] = bits.get(neighborhood.x + x, neighborhood.y + y);
+         }
+      }
+
+      return getFeatureVector(window, neighborhood.x, neighborhood.y, neighborhood);
+   }
+
+   /**
+    * Calculates the rectangular neighborhood (2n + 1) x (2n + 1) around p,
+    * which is clipped for edge points
+    * @param p
+    * @param width the width of the image
+    * @param height the height of the image
+    * @return the neighborhood, or null if it is empty
+    */
+   private Rectangle getNeighborhood(Point p, int width, int height)
+   {
+      int maxWidth = width - 1;
+      int maxHeight = height - 1;
 
       // Calculate neighborhood.
       // windowHalfSide : n; windowSide = 2 * n + 1;
@@ -207,7 +287,20 @@ public class LSubspaceOfCentralMoments extends LSubspace
          return null;
       }
 
-      Rectangle neighborhood = new Rectangle(x0, y0, w, h);
+      return new Rectangle(x0, y0, w, h);
+   }
+
+   /**
+    * Calculates the feature vector of a neighborhood
+    * @param iArr the pixels (1 foreground, 0 background);
+    *             the pixel (x, y) is iArr[x - ox][y - oy]
+    * @param ox
+    * @param oy
+    * @param neighborhood
+    * @return the feature vector, or null if the neighbourhood has all of its pixels 0.
+    */
+   private double[] getFeatureVector(int[][] iArr, int ox, int oy, Rectangle neighborhood)
+   {
 
       int vSize = getVectorSize();
 
@@ -224,7 +317,7 @@ public class LSubspaceOfCentralMoments extends LSubspace
 
       for (int y = neighborhood.y, index = 0; y < yLen; ++y, ++index) {
          for (int x = neighborhood.x; x < xLen; ++x) {
-            vProfile[index] += iArr[x][y];
+            vProfile[index] += iArr[x - ox][y - oy];
          }
       }
 
@@ -256,7 +349,7 @@ public class LSubspaceOfCentralMoments extends LSubspace
 
       for (int x = neighborhood.x, index = 0; x < xLen; ++x, ++index) {
          for (int y = neighborhood.y; y < yLen; ++y) {
-            hProfile[index] += iArr[x][y];
+            hProfile[index] += iArr[x - ox][y - oy];
          }
       }
 
@@ -274,14 +367,19 @@ public class LSubspaceOfCentralMoments extends LSubspace
 
       for (int kx = 0, index = 0; kx < k; ++kx) {
          for (int ky = 0; ky < k; ++ky, ++index) {
-            v[index] = getCentralMoment(iArr, neighborhood, kx, ky);
+            v[index] = getCentralMoment(iArr, ox, oy, neighborhood, kx, ky);
          }
       }
 
       return v;
    }
 
-   private double getRawMoment(int[][] iArr, Rectangle neighborhood, int kx, int ky)
+   /**
+    * The coordinates are relative to the neighborhood, so that the moments
+    * of two equal patches are equal, wherever the patches are
+    */
+   private double getRawMoment(int[][] iArr, int ox, int oy,
+           Rectangle neighborhood, int kx, int ky)
    {
       double moment = 0;
 
@@ -290,7 +388,8 @@ public class LSubspaceOfCentralMoments extends LSubspace
 
       for (int y = neighborhood.y; y < yLen; ++y) {
          for (int x = neighborhood.x; x < xLen; ++x) {
-            moment += Math.pow(x, kx) * Math.pow(y, ky) * iArr[x][y];
+            moment += Math.pow(x - neighborhood.x, kx) * Math.pow(y - neighborhood.y, ky)
+                    * iArr[x - ox][y - oy];
          }
       }
 
@@ -301,13 +400,14 @@ public class LSubspaceOfCentralMoments extends LSubspace
     * For a given pixel (x, y) and a rectangular neighborhood around (x,y),
     * central moments are calculated in both x and y directions
     * @param iArr
-    * @param p
+    * @param ox
+    * @param oy
     * @param neighborhood
     * @param kx
     * @param ky
     * @return
     */
-   private double getCentralMoment(int[][] iArr,
+   private double getCentralMoment(int[][] iArr, int ox, int oy,
            Rectangle neighborhood, int kx, int ky)
    {
       double moment = 0;
@@ -315,32 +415,36 @@ public class LSubspaceOfCentralMoments extends LSubspace
       int yLen = neighborhood.y + neighborhood.height;
       int xLen = neighborhood.x + neighborhood.width;
 
-      double sumOfLevels = getRawMoment(iArr, neighborhood, 0, 0);
-      double meanX = getRawMoment(iArr, neighborhood, 1, 0) / sumOfLevels;
-      double meanY = getRawMoment(iArr, neighborhood, 0, 1) / sumOfLevels;
+      // The means are relative to the neighborhood, like the raw moments
+      int x0 = neighborhood.x;
+      int y0 = neighborhood.y;
+      double sumOfLevels = getRawMoment(iArr, ox, oy, neighborhood, 0, 0);
+      double meanX = getRawMoment(iArr, ox, oy, neighborhood, 1, 0) / sumOfLevels;
+      double meanY = getRawMoment(iArr, ox, oy, neighborhood, 0, 1) / sumOfLevels;
 
       if (kx == 0 && ky == 0)
          for (int y = neighborhood.y; y < yLen; ++y) {
             for (int x = neighborhood.x; x < xLen; ++x) {
-               moment += iArr[x][y];
+               moment += iArr[x - ox][y - oy];
             }
          }
       else if (kx == 0)
          for (int y = neighborhood.y; y < yLen; ++y) {
             for (int x = neighborhood.x; x < xLen; ++x) {
-               moment += Math.pow(y - meanY, ky) * iArr[x][y];
+               moment += Math.pow(y - y0 - meanY, ky) * iArr[x - ox][y - oy];
             }
          }
       else if (ky == 0)
          for (int y = neighborhood.y; y < yLen; ++y) {
             for (int x = neighborhood.x; x < xLen; ++x) {
-               moment += Math.pow(x - meanX, kx) * iArr[x][y];
+               moment += Math.pow(x - x0 - meanX, kx) * iArr[x - ox][y - oy];
             }
          }
       else // kx != 0 && ky != 0
          for (int y = neighborhood.y; y < yLen; ++y) {
             for (int x = neighborhood.x; x < xLen; ++x) {
-               moment += Math.pow(x - meanX, kx) * Math.pow(y - meanY, ky) * iArr[x][y];
+               moment += Math.pow(x - x0 - meanX, kx) * Math.pow(y - y0 - meanY, ky)
+                       * iArr[x - ox][y - oy];
             }
          }
 
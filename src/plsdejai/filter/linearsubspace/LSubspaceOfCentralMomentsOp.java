@@ -3,9 +3,12 @@ package plsdejai.filter.linearsubspace;
 import java.awt.Point;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import plsdejai.Parameter;
 import plsdejai.StandardBinaryOp;
+import plsdejai.util.Digests;
+import plsdejai.util.PackedBinaryRaster;
 import plsdejai.widgets.LSubspaceParameterToolbar;
 import plsdejai.widgets.NumericTextField;
 
@@ -18,6 +21,8 @@ import plsdejai.widgets.NumericTextField;
  */
 public class LSubspaceOfCentralMomentsOp extends StandardBinaryOp
 {
+   // The name of the filter, that getName returns
+   public final static String NAME = "Linear Subspace of central moments";
 
    // Constants for parameter names
    public final static String KEY_HALF_WINDOW = "Window size";
@@ -61,10 +66,19 @@ public class LSubspaceOfCentralMomentsOp extends StandardBinaryOp
       return names;
    }
 
+   /**
+    * @return true for the window size, which is measured in pixels
+    * @see <code>isLengthParameter</code> method in StandardBinaryOp
+    */
+   public boolean isLengthParameter(String name)
+   {
+      return KEY_HALF_WINDOW.equals(name);
+   }
+
 
    /** SEE: StandardBinaryOp class */
    public String getName() {
-      return "Linear Subspace of central moments";
+      return NAME;
    }
 
    /** SEE: StandardBinaryOp class */
@@ -97,40 +111,31 @@ public class LSubspaceOfCentralMomentsOp extends StandardBinaryOp
          return null;
       }
 
-      // Translate raster to 1 (foreground) and 0 (background)
-      int[][] iArr = new int[width][height];
-
-      for (int y = 0; y < height; ++y) {
-         for (int x = 0; x < width; ++x) {            
-            int[] p = src.getPixel(x, y, (int[]) null);
-            if (p[0] == FOREGROUND)
-               iArr[x][y] = 1;
-            else
-               iArr[x][y] = 0;
-
-         }
-      }
+      // Pack the raster: a set bit is a foreground pixel
+      PackedBinaryRaster bits = new PackedBinaryRaster(src, FOREGROUND);
 
       // Initialize destination raster
-      for (int y = 0; y < height; ++y)
-         for (int x = 0; x < width; ++x)
-            dst.setPixel(x, y, aBACKGROUND);
+      PackedBinaryRaster.fill(dst, BACKGROUND);
+
+      // The point and the window are reused for all the foreground pixels
+      Point p = new Point();
+      int[][] window = model.createWindow();
 
+      // Only the foreground pixels are visited
       for (int y = 0; y < height; ++y) {
 
          if (task != null && task.isCancelled())
             return null;
 
-         for (int x = 0; x < width; ++x) {
-            if (iArr[x][y] == 1){
+         for (int x = bits.nextSetBit(0, y); x >= 0; x = bits.nextSetBit(x + 1, y)) {
 
-               double[] v = model.getFeatureVector(iArr, new Point(x, y));
+            p.x = x;
+            p.y = y;
+            double[] v = model.getFeatureVector(bits, p, window);
 
-               if (! model.isInSubspace(v)) {
-                   
-                  dst.setPixel(x, y, aFOREGROUND);
-               }
+            if (! model.isInSubspace(v)) {
 
+               dst.setPixel(x, y, aFOREGROUND);
             }
 
          }
@@ -140,11 +145,92 @@ public class LSubspaceOfCentralMomentsOp extends StandardBinaryOp
       return dst;
    }
 
+   /**
+    * The same as filter(Raster, WritableRaster), but the feature vectors
+    * are taken from a feature matrix of the src raster, that has been calculated
+    * by a model with the same window and moment order, for all the
+    * foreground points. Each feature vector is classified only once.
+    * @param src
+    * @param dst
+    * @param features
+    * @return the filtered raster, or null
+    */
+   public WritableRaster filter(Raster src, WritableRaster dst, FeatureMatrix features)
+   {
+      if (src == null)
+         throw new NullPointerException("src image is null");
+
+      if (dst == null)
+         dst = createCompatibleDestRaster(src);
+
+      if (src.getWidth() != features.getWidth() || src.getHeight() != features.getHeight()
+              || dst.getWidth() != features.getWidth() || dst.getHeight() != features.getHeight())
+         throw new IllegalArgumentException("src, dst and features have different dimensions");
+
+      if (features.getVectorSize() != model.getVectorSize())
+         throw new IllegalArgumentException("features have a different vector size");
+
+      if (! ((LSubspaceParameterToolbar) toolbar).isReady()){
+         return null;
+      }
+
+      // Classify the rows
+      int numOfRows = features.getNumberOfRows();
+      boolean[] isInSubspace = new boolean[numOfRows];
+      for (int row = 0; row < numOfRows; ++row) {
+
+         if (task != null && task.isCancelled())
+            return null;
+
+         isInSubspace[row] = model.isInSubspace(features.getVector(row));
+      }
+
+      // Initialize destination raster
+      PackedBinaryRaster.fill(dst, BACKGROUND);
+
+      for (int i = 0, len = features.getNumberOfPoints(); i < len; ++i) {
+         int row = features.getRow(i);
+
+         if (row < 0 || !isInSubspace[row])
+            dst.setPixel(features.getPointX(i), features.getPointY(i), aFOREGROUND);
+      }
+
+      return dst;
+   }
+
    /**
     * @return the LSubspaceOfCentralMoments model
     */
    public LSubspaceOfCentralMoments getModel() { return model; }
 
+   /**
+    * The output depends also on the trained subspace, so the key includes
+    * the model parameters and a hash of the basis vectors
+    * SEE: StandardBinaryOp class
+    */
+   protected String getFingerprintKey()
+   {
+      StringBuilder key = new StringBuilder(super.getFingerprintKey());
+
+      key.append("|model=").append(model.getWindowHalfSide())
+              .append(':').append(model.getMomentMaxOrder())
+              .append(':').append(model.getError());
+
+      MessageDigest md = Digests.sha1();
+      byte[] bytes = new byte[8];
+      for (double[] v : model.getVectors())
+         for (double d : v) {
+            long bits = Double.doubleToLongBits(d);
+            for (int i = 0; i < 8; ++i)
+               bytes[i] = (byte) (bits >>> (8 * i));
+            md.update(bytes);
+         }
+
+      key.append(':').append(model.size()).append(':').append(Digests.toHex(md.digest()));
+
+      return key.toString();
+   }
+
    /**
     * @return a clone of this object
     * @overrides method clone of <code>StandardBinaryOp</code>
@@ -0,0 +1,25 @@
+package plsdejai.filter.linearsubspace;
+
+import java.util.Arrays;
+
+/**
+ * The packed binary code of a patch of an image, that can be used as a key
+ */
+class PatchCode
+{
+   private long[] code;
+   private int hash;
+
+   PatchCode(long[] code)
+   {
+      this.code = code;
+      hash = Arrays.hashCode(code);
+   }
+
+   public int hashCode() { return hash; }
+
+   public boolean equals(Object o)
+   {
+      return (o instanceof PatchCode) && Arrays.equals(code, ((PatchCode) o).code);
+   }
+}
@@ -0,0 +1,401 @@
+package plsdejai.io;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import plsdejai.StandardBinaryOp;
+import plsdejai.util.Digests;
+import plsdejai.util.PackedBinaryRaster;
+
+/**
+ * A dataset of pairs of ground truth and synthetic images, stored in a
+ * single file as packed bits, one bit per pixel.
+ * The images are decoded once, when the file is created. Then the file is
+ * memory-mapped, so that opening a dataset is fast and its images are not
+ * kept in the heap.
+ *
+ * The file is:
+ *    int MAGIC, int VERSION, int size
+ *    for each pair: UTF gtId, UTF synthId, int width, int height,
+ *                   long gtOffset, long synthOffset
+ *    the words of the images, in the layout of PackedBinaryRaster,
+ *    little-endian and aligned to 8 bytes, at the offsets of the header
+ *
+ * The usage is:
+ * - DatasetStore store = DatasetStore.get(dir, groundTruthFiles, synthFiles);
+ * - PackedBinaryRaster gt = store.getGroundTruth(i);
+ */
+public class DatasetStore
+{
+   public static final String EXTENSION = ".pbd";
+
+   private static final int MAGIC = 0x50424453; // "PBDS"
+   private static final int VERSION = 1;
+
+   // The file of the dataset, or null if it is kept in memory
+   private File file;
+   private String[] gtIds;
+   private String[] synthIds;
+   private PackedBinaryRaster[] gt;
+   private PackedBinaryRaster[] synth;
+
+   private DatasetStore(File file, int size)
+   {
+      this.file = file;
+      gtIds = new String[size];
+      synthIds = new String[size];
+      gt = new PackedBinaryRaster[size];
+      synth = new PackedBinaryRaster[size];
+   }
+
+   public File getFile() { return file; }
+
+   public int size() { return gt.length; }
+
+   /**
+    * @return the identity of the ground truth image i, see Digests.getImageId
+    */
+   public String getGroundTruthId(int i) { return gtIds[i]; }
+
+   /**
+    * @return the identity of the synthetic image i, see Digests.getImageId
+    */
+   public String getSyntheticId(int i) { return synthIds[i]; }
+
+   /**
+    * @return the ground truth image i. A set bit is a foreground pixel
+    */
+   public PackedBinaryRaster getGroundTruth(int i) { return gt[i]; }
+
+   /**
+    * @return the synthetic image i. A set bit is a foreground pixel
+    */
+   public PackedBinaryRaster getSynthetic(int i) { return synth[i]; }
+
+   /**
+    * Opens the store of a dataset in a directory, or creates it, if there is
+    * none. The name of the file depends on the identities of the images,
+    * so a store is not used after any of its images is modified
+    * @param dir the directory of the stores, or null for keeping the images in memory
+    * @param groundTruthFiles
+    * @param synthFiles
+    * @return the store
+    * @throws IOException if the images are not valid, or the store cannot be created
+    */
+   public static DatasetStore get(File dir, File[] groundTruthFiles, File[] synthFiles)
+           throws IOException
+   {
+      validateFiles(groundTruthFiles, synthFiles);
+
+      if (dir == null)
+         return create(null, groundTruthFiles, synthFiles);
+
+      File f = new File(dir, getName(groundTruthFiles, synthFiles));
+
+      if (f.isFile()) {
+         try {
+            DatasetStore store = open(f);
+            if (store.isStoreOf(groundTruthFiles, synthFiles))
+               return store;
+
+         } catch (IOException e) {
+            System.err.println("Dataset store '" + f.getName() + "' is recreated: "
+                    + e.getMessage());
+         }
+      }
+
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create the directory '" + dir + "'");
+
+      return create(f, groundTruthFiles, synthFiles);
+   }
+
+   /**
+    * Decodes the images of a dataset, and stores them to a file
+    * @param f the file, or null for keeping the images in memory
+    * @param groundTruthFiles
+    * @param synthFiles
+    * @return the store, with the file memory-mapped
+    * @throws IOException if an image is not a binary image, the images of a pair
+    *         have not the same size, or the file cannot be written
+    */
+   public static DatasetStore create(File f, File[] groundTruthFiles, File[] synthFiles)
+           throws IOException
+   {
+      validateFiles(groundTruthFiles, synthFiles);
+
+      int size = groundTruthFiles.length;
+      DatasetStore store = new DatasetStore(null, size);
+
+      for (int i = 0; i < size; ++i) {
+         store.gtIds[i] = Digests.getImageId(groundTruthFiles[i]);
+         store.synthIds[i] = Digests.getImageId(synthFiles[i]);
+      }
+
+      if (f == null) {
+         for (int i = 0; i < size; ++i) {
+            store.gt[i] = load(groundTruthFiles[i]);
+            store.synth[i] = load(synthFiles[i]);
+            validateSize(store.gt[i], store.synth[i], groundTruthFiles[i], synthFiles[i]);
+         }
+         return store;
+      }
+
+      // The header is written first with zero offsets, for finding its length
+      long[] gtOffset = new long[size];
+      long[] synthOffset = new long[size];
+      int[] width = new int[size];
+      int[] height = new int[size];
+      int headerLength = store.writeHeader(width, height, gtOffset, synthOffset).length;
+
+      File tmp = File.createTempFile("dataset", ".tmp", f.getAbsoluteFile().getParentFile());
+
+      try {
+         FileOutputStream out = new FileOutputStream(tmp);
+         try {
+            FileChannel channel = out.getChannel();
+            long offset = align(headerLength);
+
+            for (int i = 0; i < size; ++i) {
+               PackedBinaryRaster bits = load(groundTruthFiles[i]);
+               width[i] = bits.getWidth();
+               height[i] = bits.getHeight();
+               gtOffset[i] = offset;
+               offset = write(channel, offset, bits);
+
+               bits = load(synthFiles[i]);
+               validateSize(bits, width[i], height[i], groundTruthFiles[i], synthFiles[i]);
+               synthOffset[i] = offset;
+               offset = write(channel, offset, bits);
+            }
+
+            byte[] header = store.writeHeader(width, height, gtOffset, synthOffset);
+            channel.write(ByteBuffer.wrap(header), 0);
+
+         } finally {
+            out.close();
+         }
+
+         if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+            throw new IOException("Cannot replace '" + f.getName() + "'");
+
+      } finally {
+         tmp.delete();
+      }
+
+      return open(f);
+   }
+
+   /**
+    * Opens a store, and maps its images. The size of each image is validated
+    * against the length of the file
+    * @param f
+    * @return the store
+    * @throws IOException if the file cannot be read or it is not a valid store
+    */
+   public static DatasetStore open(File f) throws IOException
+   {
+      DataInputStream in = new DataInputStream(new FileInputStream(f));
+      DatasetStore store;
+      int[] width;
+      int[] height;
+      long[] gtOffset;
+      long[] synthOffset;
+
+      try {
+         if (in.readInt() != MAGIC)
+            throw new IOException("'" + f.getName() + "' is not a dataset store");
+         if (in.readInt() != VERSION)
+            throw new IOException("'" + f.getName() + "' has an unknown version");
+
+         int size = in.readInt();
+         if (size < 0)
+            throw new IOException("'" + f.getName() + "' is corrupted");
+
+         store = new DatasetStore(f, size);
+         width = new int[size];
+         height = new int[size];
+         gtOffset = new long[size];
+         synthOffset = new long[size];
+
+         for (int i = 0; i < size; ++i) {
+            store.gtIds[i] = in.readUTF();
+            store.synthIds[i] = in.readUTF();
+            width[i] = in.readInt();
+            height[i] = in.readInt();
+            gtOffset[i] = in.readLong();
+            synthOffset[i] = in.readLong();
+         }
+
+      } finally {
+         in.close();
+      }
+
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         long length = channel.size();
+
+         for (int i = 0, size = store.size(); i < size; ++i) {
+            store.gt[i] = map(channel, length, gtOffset[i], width[i], height[i], f);
+            store.synth[i] = map(channel, length, synthOffset[i], width[i], height[i], f);
+         }
+
+      } finally {
+         // The mappings remain valid after the file is closed
+         raf.close();
+      }
+
+      return store;
+   }
+
+   /**
+    * @return true if the images of the store are these files, as they are now
+    */
+   public boolean isStoreOf(File[] groundTruthFiles, File[] synthFiles)
+   {
+      if (groundTruthFiles == null || synthFiles == null
+              || groundTruthFiles.length != size() || synthFiles.length != size())
+         return false;
+
+      for (int i = 0, size = size(); i < size; ++i) {
+         if (!gtIds[i].equals(Digests.getImageId(groundTruthFiles[i]))
+                 || !synthIds[i].equals(Digests.getImageId(synthFiles[i])))
+            return false;
+      }
+
+      return true;
+   }
+
+   /**
+    * @return the name of the store of a dataset, a digest of the identities of its images
+    */
+   private static String getName(File[] groundTruthFiles, File[] synthFiles)
+   {
+      StringBuilder ids = new StringBuilder();
+      for (int i = 0; i < groundTruthFiles.length; ++i)
+         ids.append(Digests.getImageId(groundTruthFiles[i])).append('\n')
+                 .append(Digests.getImageId(synthFiles[i])).append('\n');
+
+      return Digests.sha1(ids.toString()) + EXTENSION;
+   }
+
+   private byte[] writeHeader(int[] width, int[] height, long[] gtOffset, long[] synthOffset)
+           throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(size());
+      for (int i = 0, size = size(); i < size; ++i) {
+         out.writeUTF(gtIds[i]);
+         out.writeUTF(synthIds[i]);
+         out.writeInt(width[i]);
+         out.writeInt(height[i]);
+         out.writeLong(gtOffset[i]);
+         out.writeLong(synthOffset[i]);
+      }
+      out.close();
+
+      return bytes.toByteArray();
+   }
+
+   /**
+    * Writes the words of an image at an offset of a file
+    * @return the offset after the image
+    */
+   private static long write(FileChannel channel, long offset, PackedBinaryRaster bits)
+           throws IOException
+   {
+      int wordsPerRow = bits.getWordsPerRow();
+      ByteBuffer row = ByteBuffer.allocate(wordsPerRow * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+      for (int y = 0, height = bits.getHeight(); y < height; ++y) {
+         row.clear();
+         for (int w = 0; w < wordsPerRow; ++w)
+            row.putLong(bits.getWord(y, w));
+         row.flip();
+
+         while (row.hasRemaining())
+            offset += channel.write(row, offset);
+      }
+
+      return offset;
+   }
+
+   private static PackedBinaryRaster map(FileChannel channel, long length, long offset,
+           int width, int height, File f) throws IOException
+   {
+      long bytes = 8L * ((width + 63) >> 6) * height;
+
+      if (width < 0 || height < 0 || (offset & 7) != 0 || offset < 0
+              || offset + bytes > length || bytes > Integer.MAX_VALUE)
+         throw new IOException("'" + f.getName() + "' is corrupted");
+
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+
+      return new PackedBinaryRaster(width, height,
+              buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer());
+   }
+
+   private static long align(long offset)
+   {
+      return (offset + 7) & ~7L;
+   }
+
+   /**
+    * Decodes and packs an image
+    * @throws IOException if it is not a binary image
+    */
+   private static PackedBinaryRaster load(File f) throws IOException
+   {
+      BufferedImage bi = StandardBinaryOp.change2BinaryColorModel(ImageIO.fileLoad(f));
+      if (bi == null)
+         throw new IOException("'" + f.getName() + "' is not a binary image");
+
+      return new PackedBinaryRaster(bi.getRaster(), StandardBinaryOp.FOREGROUND);
+   }
+
+   private static void validateFiles(File[] groundTruthFiles, File[] synthFiles)
+           throws IOException
+   {
+      if (groundTruthFiles == null || synthFiles == null)
+         throw new IOException("The dataset is not set");
+
+      if (groundTruthFiles.length != synthFiles.length)
+         throw new IOException("The number of ground truth and synthetic images is not the same");
+
+      for (int i = 0; i < groundTruthFiles.length; ++i) {
+         if (groundTruthFiles[i] == null || !groundTruthFiles[i].isFile())
+            throw new IOException("'" + groundTruthFiles[i] + "' is not a file");
+         if (synthFiles[i] == null || !synthFiles[i].isFile())
+            throw new IOException("'" + synthFiles[i] + "' is not a file");
+      }
+   }
+
+   private static void validateSize(PackedBinaryRaster gt, PackedBinaryRaster synth,
+           File gtFile, File synthFile) throws IOException
+   {
+      validateSize(synth, gt.getWidth(), gt.getHeight(), gtFile, synthFile);
+   }
+
+   private static void validateSize(PackedBinaryRaster synth, int width, int height,
+           File gtFile, File synthFile) throws IOException
+   {
+      if (synth.getWidth() != width || synth.getHeight() != height)
+         throw new IOException("Images '" + gtFile.getName() + "' and \n'"
+                 + synthFile.getName() + "' have not the same size");
+   }
+}
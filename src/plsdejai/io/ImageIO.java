@@ -1,13 +1,18 @@
 package plsdejai.io;
 
 import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.swing.JOptionPane;
+import plsdejai.util.Messages;
 
 import java.awt.image.BufferedImage;
 
@@ -33,11 +38,11 @@ public class ImageIO
          try {
             bi = fileLoad(f.getCanonicalPath());            
          } catch (IOException e) {
-            JOptionPane.showMessageDialog(null, "Failed path resolution for '"
+            Messages.show("Failed path resolution for '"
                     + f.getName() + "'", "File Open Error", JOptionPane.ERROR_MESSAGE);
             bi = null;
          } catch (SecurityException e) {
-            JOptionPane.showMessageDialog(null, "Security violation, during path resolution for '"
+            Messages.show("Security violation, during path resolution for '"
                     + f.getName() + "'", "File Open Error", JOptionPane.ERROR_MESSAGE);
             bi = null;
          }
@@ -59,14 +64,14 @@ public class ImageIO
       ImageReader reader = null;
 
       if (imgFile == null){
-         JOptionPane.showMessageDialog(null, "Error! null file name.");
+         Messages.show("Error! null file name.");
          return null;
       }
 
        File f = new File(imgFile);
 
       if (f == null || ! f.isFile()  ){
-         JOptionPane.showMessageDialog(null,
+         Messages.show(
                  "Error! This is not a valid file name. Could not load image"
                  + "from '" + imgFile + "'");
          return null;
@@ -82,7 +87,7 @@ public class ImageIO
          } else {
 
          
-            JOptionPane.showMessageDialog(null, "The specified file '"
+            Messages.show("The specified file '"
                     + f.getName() + "' is not an image file type.",
                     "File Open Error", JOptionPane.ERROR_MESSAGE);
 
@@ -97,7 +102,7 @@ public class ImageIO
 
 
       } catch (IOException e) {
-         JOptionPane.showMessageDialog(null, "Could not load image from file '"
+         Messages.show("Could not load image from file '"
                  + imgFile + "'", "File Open Error", JOptionPane.ERROR_MESSAGE);
          return null;
       } finally {
@@ -113,11 +118,109 @@ public class ImageIO
       return (BufferedImage) ri;
    }
 
+   /**
+    * Loads an image from its encoded bytes, e.g. the content of an image file
+    * @param bytes
+    * @return the image
+    * @throws IOException if the bytes are not an image of a supported type
+    */
+   public static BufferedImage decode(byte[] bytes) throws IOException
+   {
+      return decode(bytes, Long.MAX_VALUE);
+   }
+
+   /**
+    * Loads an image from its encoded bytes, if it is not larger than a number
+    * of pixels. The size is read from the header, before the image is decoded,
+    * because a small file can decode to an image that does not fit in memory
+    * @param bytes
+    * @param maxPixels the largest width x height
+    * @return the image
+    * @throws IOException if the bytes are not an image of a supported type,
+    *         or the image is larger
+    */
+   public static BufferedImage decode(byte[] bytes, long maxPixels) throws IOException
+   {
+      return decode(new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes)), maxPixels);
+   }
+
+   /**
+    * Loads an image from a file, as fileLoad, but the errors are not shown to
+    * the user; they are thrown, e.g. for the worker threads of a batch
+    * @param f
+    * @return the image
+    * @throws IOException if the file cannot be read, or it is not an image
+    *         of a supported type
+    */
+   public static BufferedImage decode(File f) throws IOException
+   {
+      ImageInputStream in = javax.imageio.ImageIO.createImageInputStream(f);
+      if (in == null)
+         throw new IOException("cannot read the file");
+
+      return decode(in, Long.MAX_VALUE);
+   }
+
+   /**
+    * Reads the first image of a stream, and closes the stream
+    */
+   private static BufferedImage decode(ImageInputStream in, long maxPixels) throws IOException
+   {
+      ImageReader reader = null;
+
+      try {
+         Iterator<ImageReader> it = javax.imageio.ImageIO.getImageReaders(in);
+         if (!it.hasNext())
+            throw new IOException("not an image of a supported type");
+
+         reader = it.next(); // Read using the first ImageReader
+         reader.setInput(in);
+
+         if (reader.getNumImages(true) <= 0)
+            throw new IOException("there is no image");
+
+         int width = reader.getWidth(0);
+         int height = reader.getHeight(0);
+         if ((long) width * height > maxPixels)
+            throw new IOException("the image of " + width + " x " + height
+                    + " pixels is larger than " + maxPixels + " pixels");
+
+         return reader.read(0);
+
+      } finally {
+         if (reader != null)
+            reader.dispose();
+         try {
+            in.close();
+         } catch (IOException e) { }
+      }
+   }
+
+   /**
+    * Encodes an image, as it would be stored to a file
+    * @param bi
+    * @param extension the type of the image, e.g. "png"
+    * @return the encoded image
+    * @throws IOException if the image cannot be encoded to this type
+    */
+   public static byte[] encode(BufferedImage bi, String extension) throws IOException
+   {
+      if (!isValidImageExtensionName(extension)
+              || !javax.imageio.ImageIO.getImageWriters(new ImageTypeSpecifier(bi), extension).hasNext())
+         throw new IOException("the image cannot be encoded as '" + extension + "'");
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      if (!javax.imageio.ImageIO.write(bi, extension, out))
+         throw new IOException("the image cannot be encoded as '" + extension + "'");
+
+      return out.toByteArray();
+   }
+
    
-   public static void fileStore(BufferedImage bi, File f) { fileStore(bi, f , true); }
+   public static boolean fileStore(BufferedImage bi, File f) { return fileStore(bi, f , true); }
 
-   public static void fileStore(BufferedImage bi, String extension, File f){
-      fileStore(bi, extension, f ,true);
+   public static boolean fileStore(BufferedImage bi, String extension, File f){
+      return fileStore(bi, extension, f ,true);
    }
 
    /**
@@ -126,11 +229,12 @@ public class ImageIO
     *           file name extension
     * @param f the file where the image should be stored
     * @param replaceFile if true replaces a file if it already exists
+    * @return true if the image is stored
     */
-   public static void fileStore(BufferedImage bi, File f, boolean replaceFile)
+   public static boolean fileStore(BufferedImage bi, File f, boolean replaceFile)
    {
       String extension = getExtension(f);
-      fileStore(bi, extension, f , replaceFile);
+      return fileStore(bi, extension, f , replaceFile);
    }
 
    /**
@@ -139,17 +243,18 @@ public class ImageIO
     * @param extension the type of image to be stored
     * @param f the file where the image should be stored
     * @param replaceFile if true replaces a file if it already exists
+    * @return true if the image is stored
     */
-   public static void fileStore(BufferedImage bi, String extension, File f , boolean replaceFile)
+   public static boolean fileStore(BufferedImage bi, String extension, File f , boolean replaceFile)
    {
 
       // Check if extension if valid
       if (extension == null || ! isValidImageExtensionName(extension)){
-         JOptionPane.showMessageDialog(null,
+         Messages.show(
                     "The specified extention type '" + extension
                     + "' is not a valid image file extension", "Error",
                     JOptionPane.ERROR_MESSAGE);
-         return;
+         return false;
       }
 
 
@@ -158,25 +263,26 @@ public class ImageIO
          path = f.getCanonicalPath();
 
          if (null == extension) {
-            JOptionPane.showMessageDialog(null,
+            Messages.show(
                     "The specified extention type '" + path
                     + "' is not a valid image file extension", "Error",
                     JOptionPane.ERROR_MESSAGE);
-            return;
+            return false;
          }
 
          if (javax.imageio.ImageIO.getImageWriters(new ImageTypeSpecifier(bi), extension).hasNext())
-            javax.imageio.ImageIO.write(bi, extension, f);
-         
+            return javax.imageio.ImageIO.write(bi, extension, f);
+
+         return false;
 
       } catch (IOException e) {
-         JOptionPane.showMessageDialog(null, "Failed path resolution for '"
+         Messages.show("Failed path resolution for '"
                  + f.getName() + "'", "File Open Error", JOptionPane.ERROR_MESSAGE);
-         return;
+         return false;
       } catch (SecurityException e) {
-         JOptionPane.showMessageDialog(null, "Security violation, during path resolution for '"
+         Messages.show("Security violation, during path resolution for '"
                  + f.getName() + "'", "File Open Error", JOptionPane.ERROR_MESSAGE);
-         return;
+         return false;
       }
    }
 
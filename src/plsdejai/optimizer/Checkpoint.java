@@ -0,0 +1,110 @@
+package plsdejai.optimizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The state of a Simulated Annealing optimization, which is stored
+ * periodically, so that an optimization can be resumed, or a new
+ * optimization can start from the best state of a previous one.
+ * A checkpoint belongs to a filter and a dataset, which are identified
+ * by a fingerprint.
+ */
+public class Checkpoint implements Serializable
+{
+   private static final long serialVersionUID = 1L;
+
+   // The fingerprint of the filter and the dataset
+   String fingerprint;
+   // The temperature step, from which the optimization continues
+   int timeStep;
+   // True if the optimization has finished
+   boolean isFinished;
+
+   // The current state
+   Number[] value;
+   double temp;
+   Energy energy;
+
+   // The state with the lowest energy
+   Number[] bestValue;
+   Energy bestEnergy;
+
+   // The values of the current proposal
+   Number[] newValues;
+   // The random numbers generator, with its state
+   Random random;
+   // The order in which the images are evaluated in racing mode
+   int[] imageOrder;
+   // The energies of the evaluated states
+   Map<String, Energy> energies;
+
+   public String getFingerprint() { return fingerprint; }
+
+   public int getTimeStep() { return timeStep; }
+
+   public boolean isFinished() { return isFinished; }
+
+   public Number[] getBestValues() { return bestValue.clone(); }
+
+   public Energy getBestEnergy() { return bestEnergy; }
+
+   /**
+    * Stores the checkpoint to a file. The checkpoint is written to a temporary
+    * file, which then replaces f, so that f is always a complete checkpoint
+    * @param f
+    * @throws IOException
+    */
+   public void write(File f) throws IOException
+   {
+      File tmp = File.createTempFile("checkpoint", ".tmp", f.getAbsoluteFile().getParentFile());
+
+      try {
+         ObjectOutputStream out = new ObjectOutputStream(
+                 new GZIPOutputStream(new FileOutputStream(tmp)));
+         try {
+            out.writeObject(this);
+         } finally {
+            out.close();
+         }
+
+         if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+            throw new IOException("Cannot replace '" + f.getName() + "'");
+
+      } finally {
+         tmp.delete();
+      }
+   }
+
+   /**
+    * Loads a checkpoint from a file
+    * @param f
+    * @return the checkpoint
+    * @throws IOException if the file cannot be read or it is not a checkpoint
+    */
+   public static Checkpoint read(File f) throws IOException
+   {
+      ObjectInputStream in = new ObjectInputStream(
+              new GZIPInputStream(new FileInputStream(f)));
+
+      try {
+         return (Checkpoint) in.readObject();
+
+      } catch (ClassNotFoundException e) {
+         throw new IOException("'" + f.getName() + "' is not a checkpoint file");
+      } catch (ClassCastException e) {
+         throw new IOException("'" + f.getName() + "' is not a checkpoint file");
+      } finally {
+         in.close();
+      }
+   }
+}
@@ -1,8 +1,10 @@
 package plsdejai.optimizer;
 
 import java.awt.image.Raster;
+import java.io.Serializable;
 import java.text.DecimalFormat;
 import plsdejai.StandardBinaryOp;
+import plsdejai.util.PackedBinaryRaster;
 
 /**
  * A class that implements the analogy of the energy of a state.
@@ -11,8 +13,9 @@ import plsdejai.StandardBinaryOp;
  * @author Prokopiou Konstantinos
  * @version 1.0, 23/02/2012
  */
-public class Energy implements Comparable<Energy>
+public class Energy implements Comparable<Energy>, Serializable
 {
+   private static final long serialVersionUID = 1L;
 
    private double precision;
    private double recall;
@@ -140,60 +143,61 @@ public class Energy implements Comparable<Energy>
    public static Energy calcEnergy(Raster rasterGT, Raster rasterTextOnly,
            Raster rasterSynth, Raster rasterOutput)
    {
-      Energy energy = null;
+      if (rasterOutput == null)
+         return null;
 
-      /* True positive pixel (tp): a pixel that exists in both the
-       * detections map and rule line ground truth map but not
-       * in the text only map */
-      int tp = 0;
-
-      /* False positive pixel (fp): a pixel that exists in both the
-       * detections map and the text only map */
-      int fp = 0;
-
-      /* False negative pixel (fn): a pixel that exists in the rule
-       * line map but in neither detection map nor the text only map */
-      int fn = 0;
+      int fg = StandardBinaryOp.FOREGROUND;
 
-      int height = rasterSynth.getHeight();
-      int width = rasterSynth.getWidth();
-
-      if (rasterOutput != null){
-
-         for (int row = 0; row < height; ++row) {
-            for (int col = 0; col < width; ++col) {
-               int pixelOutput = rasterOutput.getPixel(col, row, (int[]) null)[0];
+      return calcEnergy(new PackedBinaryRaster(rasterGT, fg),
+              rasterTextOnly == null ? null : new PackedBinaryRaster(rasterTextOnly, fg),
+              new PackedBinaryRaster(rasterSynth, fg),
+              new PackedBinaryRaster(rasterOutput, fg));
+   }
 
-               int pixelGT = rasterGT.getPixel(col, row, (int[]) null)[0];
+   /**
+    * Calculates and returns the energy of packed rasters, 64 pixels at a time.
+    * The rasters must have the same size.
+    * @param gt the ground truth image
+    * @param textOnly the text-only image, or null
+    * @param synth the synthetic image
+    * @param output the image resulting from the filtering operation
+    * @return
+    */
+   public static Energy calcEnergy(PackedBinaryRaster gt, PackedBinaryRaster textOnly,
+           PackedBinaryRaster synth, PackedBinaryRaster output)
+   {
+      if (output == null)
+         return null;
 
-               int pixelTextOnly = -1;
-               if (rasterTextOnly != null)
-                  pixelTextOnly = rasterTextOnly.getPixel(col, row, (int[]) null)[0];
+      int height = synth.getHeight();
+      int wordsPerRow = synth.getWordsPerRow();
 
-               int pixelSynth = rasterSynth.getPixel(col, row, (int[]) null)[0];
+      if (gt.getWidth() != synth.getWidth() || gt.getHeight() != height
+              || output.getWidth() != synth.getWidth() || output.getHeight() != height
+              || (textOnly != null && (textOnly.getWidth() != synth.getWidth()
+                                       || textOnly.getHeight() != height)))
+         throw new IllegalArgumentException("The images have not the same size");
 
-               // detection map: pixels that are detected and removed from
-               // the input image
-               if (pixelSynth == StandardBinaryOp.FOREGROUND
-                       && pixelOutput != StandardBinaryOp.FOREGROUND)
-                  if ((rasterTextOnly == null
-                          || pixelTextOnly != StandardBinaryOp.FOREGROUND)
-                          && pixelGT == StandardBinaryOp.FOREGROUND)
-                     ++tp;
-                  else // if (pixelTextOnly == StandardBinaryOp.FOREGROUND)
-                     ++fp;
-               else if (pixelGT == StandardBinaryOp.FOREGROUND
-                       && pixelTextOnly != StandardBinaryOp.FOREGROUND)
-                  ++fn;
+      int tp = 0;
+      int fp = 0;
+      int fn = 0;
 
-            }
+      for (int y = 0; y < height; ++y) {
+         for (int w = 0; w < wordsPerRow; ++w) {
+            // The pixels that are detected and removed from the input image
+            long detected = synth.getWord(y, w) & ~output.getWord(y, w);
+            // The rule line pixels, that are not text pixels
+            long line = gt.getWord(y, w);
+            if (textOnly != null)
+               line &= ~textOnly.getWord(y, w);
+
+            tp += Long.bitCount(detected & line);
+            fp += Long.bitCount(detected & ~line);
+            fn += Long.bitCount(~detected & line);
          }
-
-
-         energy = new Energy(tp, fp, fn);
       }
 
-      return energy;
+      return new Energy(tp, fp, fn);
    }
 
    public String toString()
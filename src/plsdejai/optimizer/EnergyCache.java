@@ -0,0 +1,137 @@
+package plsdejai.optimizer;
+
+import java.util.HashMap;
+import java.util.Map;
+import plsdejai.widgets.NumericTextField;
+
+/**
+ * A cache of the energies of the states that have been already evaluated.
+ * A state is identified by its canonical parameter vector: integer parameters
+ * are used as they are, and double parameters are quantised to
+ * <code>DOUBLE_LEVELS</code> levels of their range, since values that differ
+ * less than that produce practically the same filtering result.
+ * The range of a parameter that is searched in log space (see SA.isLogScale)
+ * is quantised in log space too, so that its small values, which differ
+ * relatively much, are not merged.
+ */
+public class EnergyCache
+{
+   // The number of quantisation levels of the range of a double parameter
+   public static final double DOUBLE_LEVELS = 10000;
+
+   private int[] type;
+   private double[] min;
+   private double[] quantum;
+   // The quantum of a parameter is of the logarithm of its value
+   private boolean[] isLogScale;
+
+   private Map<String, Energy> energies = new HashMap<String, Energy>();
+
+   private int hits = 0;
+   private int misses = 0;
+
+   /**
+    * @param type the types NumericTextField.INTEGER or NumericTextField.DOUBLE
+    *             of the parameters
+    * @param aBound the lower limits of the parameters
+    * @param bBound the upper limits of the parameters
+    */
+   public EnergyCache(int[] type, Number[] aBound, Number[] bBound)
+   {
+      int size = type.length;
+
+      this.type = type.clone();
+      min = new double[size];
+      quantum = new double[size];
+      isLogScale = new boolean[size];
+
+      for (int i = 0; i < size; ++i) {
+         double a = aBound[i].doubleValue();
+         double b = bBound[i].doubleValue();
+
+         isLogScale[i] = SA.isLogScale(type[i], a, b);
+         min[i] = isLogScale[i] ? Math.log(a) : a;
+         quantum[i] = ((isLogScale[i] ? Math.log(b) : b) - min[i]) / DOUBLE_LEVELS;
+      }
+   }
+
+   /**
+    * @param value the parameter values of a state
+    * @return the canonical key of the state
+    */
+   public String getKey(Number[] value)
+   {
+      StringBuilder key = new StringBuilder();
+
+      for (int i = 0; i < type.length; ++i) {
+         if (type[i] == NumericTextField.INTEGER)
+            key.append(value[i].intValue());
+         else if (isLogScale[i])
+            key.append('l').append(Math.round((Math.log(value[i].doubleValue()) - min[i]) / quantum[i]));
+         else if (quantum[i] > 0)
+            key.append('q').append(Math.round((value[i].doubleValue() - min[i]) / quantum[i]));
+         else
+            key.append(value[i].doubleValue());
+
+         key.append(';');
+      }
+
+      return key.toString();
+   }
+
+   /**
+    * @param value the parameter values of a state
+    * @return the energy of the state, or null if it has not been evaluated
+    */
+   public synchronized Energy get(Number[] value)
+   {
+      Energy e = energies.get(getKey(value));
+
+      if (e == null)
+         ++misses;
+      else
+         ++hits;
+
+      return e;
+   }
+
+   /**
+    * Adds the energy of a state, that has been completely evaluated
+    * @param value the parameter values of the state
+    * @param e
+    */
+   public synchronized void put(Number[] value, Energy e)
+   {
+      energies.put(getKey(value), e);
+   }
+
+   /**
+    * @return a copy of the energies of the states, keyed by the keys of the states
+    */
+   public synchronized Map<String, Energy> getEnergies()
+   {
+      return new HashMap<String, Energy>(energies);
+   }
+
+   /**
+    * Adds the energies of states, that have been evaluated before,
+    * for example by a previous optimization
+    * @param energies the energies, keyed by the keys of the states
+    */
+   public synchronized void putAll(Map<String, Energy> energies)
+   {
+      this.energies.putAll(energies);
+   }
+
+   public synchronized int getHits() { return hits; }
+
+   public synchronized int getMisses() { return misses; }
+
+   public synchronized int size() { return energies.size(); }
+
+   public synchronized String toString()
+   {
+      return "Energy cache [states: " + energies.size()
+              + ", hits: " + hits + ", misses: " + misses + "]";
+   }
+}
@@ -0,0 +1,32 @@
+package plsdejai.optimizer;
+
+import javax.swing.SwingWorker;
+import plsdejai.Parameter;
+
+/**
+ * An algorithm that optimizes the parameters of a filter on a dataset
+ * of ground truth and synthetic images.
+ * The usage of an optimizer is:
+ * - optimizer.start(task)
+ * - Parameter[] params = optimizer.getOptimumParameters();
+ */
+public interface Optimizer
+{
+   /**
+    * Runs the optimization
+    * @param task the thread that runs the optimization, or null
+    * @return false if the optimizer is not initialized properly,
+    *         or the optimization is stopped
+    */
+   boolean start(SwingWorker task);
+
+   /**
+    * @return the optimum parameters, or null if there are none
+    */
+   Parameter[] getOptimumParameters();
+
+   /**
+    * @return the energy of the optimum parameters
+    */
+   Energy getOptimumEnergy();
+}
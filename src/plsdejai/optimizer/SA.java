@@ -1,17 +1,41 @@
 package plsdejai.optimizer;
 
-import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JOptionPane;
+import plsdejai.util.Messages;
 import javax.swing.SwingWorker;
+import plsdejai.Environment;
 import plsdejai.Parameter;
 import plsdejai.StandardBinaryOp;
+import plsdejai.filter.DirectionalLocalProfileOp;
+import plsdejai.filter.StageCache;
+import plsdejai.filter.linearsubspace.FeatureCache;
+import plsdejai.filter.linearsubspace.FeatureMatrix;
 import plsdejai.filter.linearsubspace.LSubspaceOfCentralMoments;
+import plsdejai.io.DatasetStore;
+import plsdejai.util.Digests;
+import plsdejai.util.PackedBinaryRaster;
 import plsdejai.widgets.LSubspaceParameterToolbar;
+import plsdejai.widgets.LogDialog;
 import plsdejai.filter.linearsubspace.LSubspaceOfCentralMomentsOp;
 import plsdejai.widgets.NumericTextField;
 
@@ -28,10 +52,16 @@ import plsdejai.widgets.NumericTextField;
  * At the end we retrieve the optimized parameters with:
  * - Parameters [] params = sa.getOptimizedParameters();
  *
+ * With sa.setNumberOfWorkers(n), n > 1, each step proposes n neighbours,
+ * which are evaluated concurrently, each by its own clone of the op, and the
+ * best of them is tested for acceptance. All the random numbers are drawn
+ * by the calling thread, so that for a given seed (sa.setSeed()) and number
+ * of workers the results are always the same.
+ *
  * @author Prokopiou Konstantinos
  * @version 1.0, 23/02/2012
  */
-public class SA
+public class SA implements Optimizer
 {   
 
    /* ***************************** Constants **************************** */
@@ -45,18 +75,27 @@ public class SA
    private static final int TIME = 45;
    // The maximum best energy that is considered satisfactory
    private static final Energy E_MIN = new Energy(1.0, 1.0);
+   // The ratio of the limits of a positive double parameter, from which
+   // on its values are searched in log space
+   static final double LOG_SCALE_RATIO = 1000;
    /* ******************************************************************** */
 
    
    // The objective-function of the Simulated Annealing process
    private StandardBinaryOp op;
 
-   // The image data that are needed to calculate the energy of the states.
-   private Raster [] rasterGT;
-   private Raster [] rasterSynth;
+   // The image data that are needed to calculate the energy of the states:
+   // datasets[0] has the full resolution, and datasets[k] is downsampled
+   // by FIDELITY_FACTOR[k]
+   private Dataset[] datasets;
+   // The directory of the packed images of the datasets, see DatasetStore
+   private static final File DATASET_DIR = new File(Environment.WORK_DIR, "datasets");
    // The number of images couples that are used as the training dataset
    public int datasetSize;
 
+   // The feature vectors of the images, for the linear subspace filter
+   private FeatureCache featureCache = new FeatureCache();
+
    /* **************** Variables that depend on the Parameterization ***** */
    // The number of dimensions
    public int size;
@@ -92,6 +131,15 @@ public class SA
     *                   text-only image
     */
    public SA(StandardBinaryOp op, File [] groundTruthFiles, File [] synthFiles)
+   {
+      this(op, getDatasetStore(groundTruthFiles, synthFiles));
+   }
+
+   /**
+    * @param op the algorithm that will applied to the input images
+    * @param store the ground truth and synthetic images
+    */
+   public SA(StandardBinaryOp op, DatasetStore store)
    {
 
       this.op = op;         
@@ -101,7 +149,7 @@ public class SA
       }
          
 
-      else if (!createRasters(groundTruthFiles, synthFiles))
+      else if (!createRasters(store))
          System.err.println("Invalid image file arguments");
 
       else {
@@ -152,6 +200,13 @@ public class SA
 
       }
       
+      for (Dataset ds : datasets)
+         ds.energyCache = new EnergyCache(type, aBound, bBound);
+
+      imageOrder = new int[datasetSize];
+      for (int i = 0; i < datasetSize; ++i)
+         imageOrder[i] = i;
+
       setInitialState(value, T_start);
      
    }
@@ -177,91 +232,146 @@ public class SA
 
    
    /**
-    * Create the raster data from the file arguments
-    * @param gt : The ground truth, rule-lines only, image file.
-    * @param synth : The synthetic image file, produced by the groundTruthFile
-    *                and  text-only file. If null is specified a synthetic
-    *                image is created by using the ground truth and text-only image
-    * @return true if valid rasters for all image files are created, otherwise false
-    *              Note: either of textOnly or synth can be null, but not both
+    * Opens the store of the images of a dataset, which is created the first time
+    * that the dataset is used. If the store cannot be written, the images
+    * are kept in memory
+    * @param groundTruthFiles the ground truth, rule-lines only, image files
+    * @param synthFiles the synthetic image files
+    * @return the store, or null if the images are not valid
     */
-   private boolean createRasters(File [] groundTruthFiles, File [] synthFiles)
+   private static DatasetStore getDatasetStore(File [] groundTruthFiles, File [] synthFiles)
    {
-      if (groundTruthFiles == null || synthFiles == null)
-         return false;
-      
-      datasetSize = groundTruthFiles.length;
-      if (datasetSize != synthFiles.length)
+      try {
+         try {
+            return DatasetStore.get(DATASET_DIR, groundTruthFiles, synthFiles);
+         } catch (IOException e) {
+            if (DATASET_DIR == null)
+               throw e;
+            return DatasetStore.get(null, groundTruthFiles, synthFiles);
+         }
+
+      } catch (IOException e) {
+         Messages.show(e.getMessage(), "Invalid image",
+                 JOptionPane.INFORMATION_MESSAGE);
+         return null;
+      }
+   }
+
+   /**
+    * Creates the datasets from the images of a store
+    * @param store
+    * @return false if there is no store
+    */
+   private boolean createRasters(DatasetStore store)
+   {
+      if (store == null)
          return false;
 
-      rasterGT = new Raster[datasetSize];
-      rasterSynth = new Raster[datasetSize];
+      datasetSize = store.size();
 
-      for (int i = 0; i < datasetSize; ++i) {
+      // The downsampled datasets of the multi-fidelity mode
+      datasets = new Dataset[FIDELITY_FACTOR.length];
+      datasets[0] = new Dataset(store);
+      for (int k = 1; k < datasets.length; ++k)
+         datasets[k] = new Dataset(datasets[0], FIDELITY_FACTOR[k]);
+      
+      return true;
+   }
 
-         if (groundTruthFiles[i] == null || !groundTruthFiles[i].isFile()
-                 || synthFiles[i] == null || !synthFiles[i].isFile())
-            return false;
+   /**
+    * The images of the dataset at a resolution
+    */
+   private static class Dataset
+   {
+      // The downsampling factor of the images
+      int factor;
+      // The dataset of full resolution, if this one is downsampled
+      private Dataset source;
+      // The images, packed. The images of a downsampled dataset
+      // are created when they are used for the first time
+      private PackedBinaryRaster[] packedGT;
+      private PackedBinaryRaster[] packedSynth;
+      // The identities of the images, used as keys of the featureCache
+      String[] gtIds;
+      String[] synthIds;
+      // The energies of the states that have been evaluated on these images
+      EnergyCache energyCache;
 
-         // Load and create the images from the specified filenames
-         
-         BufferedImage bi = null;
-         File f = groundTruthFiles[i];
-         int width = 0;
-         int height = 0;
-
-         for (int j = 0; j < 2; ++j) {
-
-            WritableRaster raster = null;
-
-            if (f != null) {
-               bi = StandardBinaryOp.change2BinaryColorModel(
-                       plsdejai.io.ImageIO.fileLoad(f));
-               if (bi == null) {
-                  JOptionPane.showMessageDialog(null,
-                       "'" + f.getName() + "' is not a binary image",
-                       "Invalid image",
-                       JOptionPane.INFORMATION_MESSAGE);
-                  
-                  return false;
-               }
+      /**
+       * The dataset of full resolution. Its images are not copied, so the
+       * images of a file store remain memory-mapped
+       * @param store
+       */
+      Dataset(DatasetStore store)
+      {
+         int size = store.size();
 
-               raster = bi.getRaster();
+         factor = 1;
+         packedGT = new PackedBinaryRaster[size];
+         packedSynth = new PackedBinaryRaster[size];
+         gtIds = new String[size];
+         synthIds = new String[size];
 
-            } else {
-               JOptionPane.showMessageDialog(null,
-                       "null image filename",
-                       "Invalid image",
-                       JOptionPane.INFORMATION_MESSAGE);
-               return false;
+         for (int i = 0; i < size; ++i) {
+            packedGT[i] = store.getGroundTruth(i);
+            packedSynth[i] = store.getSynthetic(i);
+            gtIds[i] = store.getGroundTruthId(i);
+            synthIds[i] = store.getSyntheticId(i);
+         }
+      }
 
-            }
+      /**
+       * The dataset of full resolution downsampled.
+       * A pixel is a foreground pixel, if any pixel of its block is a foreground pixel
+       * @param source the dataset of full resolution
+       * @param factor
+       */
+      Dataset(Dataset source, int factor)
+      {
+         int size = source.gtIds.length;
 
-            if (j == 0) {
-               rasterGT[i] = raster;
-               width = rasterGT[i].getWidth();
-               height = rasterGT[i].getHeight();
+         this.source = source;
+         this.factor = factor;
+         packedGT = new PackedBinaryRaster[size];
+         packedSynth = new PackedBinaryRaster[size];
+         gtIds = new String[size];
+         synthIds = new String[size];
 
-               f = synthFiles[i]; // use this value in the next iteration
+         for (int i = 0; i < size; ++i) {
+            gtIds[i] = source.gtIds[i] + "|1/" + factor;
+            synthIds[i] = source.synthIds[i] + "|1/" + factor;
+         }
+      }
 
-            } else {
-               rasterSynth[i] = raster;
+      synchronized PackedBinaryRaster getGroundTruth(int i)
+      {
+         if (packedGT[i] == null)
+            packedGT[i] = source.getGroundTruth(i).reduce(factor);
+         return packedGT[i];
+      }
 
-               if (width != raster.getWidth() || height != raster.getHeight()) {
-                  JOptionPane.showMessageDialog(null,
-                       "Images '" + groundTruthFiles[i].getName() +"' and \n'"+
-                       synthFiles[i].getName() + "' have not the same size",
-                       "Invalid image",
-                       JOptionPane.INFORMATION_MESSAGE);
-                  return false;
-               }
+      synchronized PackedBinaryRaster getSynthetic(int i)
+      {
+         if (packedSynth[i] == null)
+            packedSynth[i] = source.getSynthetic(i).reduce(factor);
+         return packedSynth[i];
+      }
 
+      /**
+       * @return a new raster of the ground truth image i, for the op
+       */
+      Raster getGroundTruthRaster(int i)
+      {
+         return getGroundTruth(i).toRaster(StandardBinaryOp.FOREGROUND);
+      }
 
-            }
-         }
+      /**
+       * @return a new raster of the synthetic image i, for the op
+       */
+      Raster getSyntheticRaster(int i)
+      {
+         return getSynthetic(i).toRaster(StandardBinaryOp.FOREGROUND);
       }
-      
-      return true;
    }
    
    /**
@@ -285,6 +395,188 @@ public class SA
       return true;
    }
 
+   /**
+    * Keeps the feature vectors of the linear subspace filter also in a directory,
+    * so that they can be reused by other optimizations of the same images
+    * @param dir the directory, or null for keeping them only in memory
+    */
+   public void setFeatureCacheDirectory(File dir)
+   {
+      featureCache = new FeatureCache(dir);
+   }
+
+   /* ************************ Parallel annealing ************************ */
+   // The number of neighbours that are evaluated concurrently at each step
+   private int numOfWorkers = 1;
+   // The seed of the random numbers, if isSeedSet is true
+   private long seed;
+   private boolean isSeedSet = false;
+
+   private Random random;
+   // The threads that evaluate the neighbours
+   private ExecutorService workers;
+   // The clones of the op that are not used by a worker at the moment
+   private BlockingQueue<StandardBinaryOp> workerOps;
+
+   // The number of images of the dataset that are evaluated concurrently,
+   // or 0 for the processors that the workers leave
+   private int numOfImageWorkers = 0;
+   // The threads that evaluate the images. These are not the same as the
+   // workers, because a worker waits for the images of its state
+   private ExecutorService imageWorkers;
+   // The clones of the op that are not used by an image worker at the moment
+   private BlockingQueue<StandardBinaryOp> imageOps;
+   // The stage cache that is given to the op of the directional local profile
+   // filter while the states are evaluated, or null. The states differ in a
+   // few parameters, so the products of the earlier stages are reused
+   private StageCache stageCache;
+   /* ******************************************************************** */
+
+   /* ****************************** Racing ****************************** */
+   // The margin of the F1 bound, below which a state is rejected
+   private static final double RACING_ERROR = 0.0000000001;
+
+   private boolean isRacing = false;
+   // The order in which the images are evaluated
+   private int[] imageOrder;
+   // The minimum mean F1, for which the states that are evaluated now
+   // can be accepted
+   private double minF1 = Double.NEGATIVE_INFINITY;
+   // The number of images that are evaluated, and that are skipped by racing
+   private AtomicInteger imagesEvaluated = new AtomicInteger();
+   private AtomicInteger imagesSkipped = new AtomicInteger();
+   /* ******************************************************************** */
+
+   /* **************************** Checkpoints *************************** */
+   // How an optimization starts
+   public static final int START_NEW = 0;
+   // Continues a previous optimization from its checkpoint
+   public static final int RESUME = 1;
+   // Starts from the best state of a previous optimization
+   public static final int WARM_START = 2;
+
+   private int startMode = START_NEW;
+   // The directory of the checkpoints, or null if there are no checkpoints
+   private File checkpointDir = new File(Environment.WORK_DIR, "checkpoints");
+   private String fingerprint;
+   /* ******************************************************************** */
+
+   /* ************************** Multi-fidelity ************************** */
+   // The downsampling factors of the datasets
+   private static final int[] FIDELITY_FACTOR = { 1, 2, 4 };
+   // The number of new states that are screened at each step,
+   // or 0 if the multi-fidelity mode is off
+   private int numOfScreenedStates = 0;
+   // The number of datasets that are used; the new states are
+   // screened at datasets[numOfFidelities - 1]
+   private int numOfFidelities = 1;
+   /* ******************************************************************** */
+
+   /**
+    * Sets the seed of the random numbers, so that an optimization can be repeated
+    * @param seed
+    */
+   public void setSeed(long seed)
+   {
+      this.seed = seed;
+      isSeedSet = true;
+   }
+
+   /**
+    * Sets the number of neighbours that are proposed and evaluated concurrently
+    * at each step. The default is 1, that is the sequential algorithm
+    * @param n
+    */
+   public void setNumberOfWorkers(int n)
+   {
+      numOfWorkers = Math.max(1, n);
+   }
+
+   public int getNumberOfWorkers() { return numOfWorkers; }
+
+   /**
+    * Sets the number of images of the dataset that are evaluated concurrently,
+    * when the energy of a state is calculated. Each worker evaluates its images
+    * with these image workers, so the default divides the available processors
+    * between the workers
+    * @param n the number of image workers, or 0 for the default
+    */
+   public void setNumberOfImageWorkers(int n)
+   {
+      numOfImageWorkers = Math.max(0, n);
+   }
+
+   public int getNumberOfImageWorkers()
+   {
+      if (numOfImageWorkers > 0)
+         return numOfImageWorkers;
+
+      return Math.max(1, Runtime.getRuntime().availableProcessors() / numOfWorkers);
+   }
+
+   /**
+    * Sets the racing mode. In racing mode the random number of the acceptance
+    * test of a new state is drawn before the state is evaluated, and the
+    * evaluation of the images of the dataset, in a shuffled order, stops as soon
+    * as the mean F1 of the state cannot be high enough for the state to be accepted.
+    * Such a state is rejected without its energy being calculated.
+    * @param isRacing
+    */
+   public void setRacing(boolean isRacing)
+   {
+      this.isRacing = isRacing;
+   }
+
+   public boolean isRacing() { return isRacing; }
+
+   /**
+    * Sets the multi-fidelity mode. At each step numOfStates new states are
+    * evaluated on the images downsampled by maxFactor, and the better half of
+    * them is evaluated at the next higher resolution, until the remaining states
+    * are evaluated at the full resolution. The best of them is tested for acceptance.
+    * The length parameters of the op are scaled to the resolution of the images.
+    * @param numOfStates the number of new states of each step; 0 turns the mode off
+    * @param maxFactor the downsampling factor of the first screening, 2 or 4
+    */
+   public void setMultiFidelity(int numOfStates, int maxFactor)
+   {
+      int k = 0;
+      while (k < FIDELITY_FACTOR.length && FIDELITY_FACTOR[k] != maxFactor)
+         ++k;
+
+      if (k == 0 || k == FIDELITY_FACTOR.length)
+         throw new IllegalArgumentException("Invalid downsampling factor: " + maxFactor);
+
+      numOfScreenedStates = (numOfStates > 1) ? numOfStates : 0;
+      numOfFidelities = k + 1;
+   }
+
+   public boolean isMultiFidelity() { return numOfScreenedStates > 0; }
+
+   /**
+    * Sets how the optimization starts, if there is a checkpoint
+    * of the same filter and dataset
+    * @param mode START_NEW, RESUME or WARM_START
+    */
+   public void setStartMode(int mode)
+   {
+      if (mode != START_NEW && mode != RESUME && mode != WARM_START)
+         throw new IllegalArgumentException("Invalid start mode: " + mode);
+
+      startMode = mode;
+   }
+
+   /**
+    * Sets the directory where the state of the optimization is stored
+    * after each temperature step. The default is the directory "checkpoints"
+    * in the working directory of the program
+    * @param dir the directory, or null for no checkpoints
+    */
+   public void setCheckpointDirectory(File dir)
+   {
+      checkpointDir = dir;
+   }
+
    private SwingWorker task;
 
    /**
@@ -300,31 +592,268 @@ public class SA
 
       // Check if the parameters are set
       if (size == 0) {
-         JOptionPane.showMessageDialog(null, "The SA object has not been initialized properly",
+         Messages.show("The SA object has not been initialized properly",
                  "SA object is invalid", JOptionPane.ERROR_MESSAGE);
          return false;
       }
 
+      random = isSeedSet ? new Random(seed) : new Random();
+
+      if (isRacing) {
+         for (int i = 0; i < datasetSize; ++i)
+            imageOrder[i] = i;
+
+         for (int i = datasetSize - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int tmp = imageOrder[i];
+            imageOrder[i] = imageOrder[j];
+            imageOrder[j] = tmp;
+         }
+      }
+
+      imagesEvaluated.set(0);
+      imagesSkipped.set(0);
+
+      startWorkers();
+
+      try {
+         return anneal();
+
+      } finally {
+         stopWorkers();
+      }
+   }
+
+   /**
+    * Prepares the SA object for the evaluation of states by another optimizer,
+    * which uses the dataset, the caches and the workers of SA.
+    * The evaluation ends with endEvaluation()
+    * @param task the thread that evaluates the states
+    * @return false if the SA object is not initialized properly
+    */
+   boolean beginEvaluation(SwingWorker task)
+   {
+      if (size == 0)
+         return false;
+
+      this.task = task;
+      op.setTask(task);
+
+      startWorkers();
+
+      return true;
+   }
+
+   /**
+    * Evaluates some states at the full resolution,
+    * after beginEvaluation() has been called
+    * @param candidates the values of the states
+    * @return the states, in the order of their values
+    */
+   List<State> evaluate(List<Number[]> candidates)
+           throws InterruptedException, ExecutionException
+   {
+      return evaluate(candidates, 0, 0);
+   }
+
+   /**
+    * Releases the workers, that were created by beginEvaluation()
+    */
+   void endEvaluation()
+   {
+      stopWorkers();
+   }
+
+   /**
+    * @return the name of the op, whose parameters are optimized
+    */
+   String getOpName()
+   {
+      return op.getName();
+   }
+
+   /**
+    * @return the value of parameter i, that is nearest to x
+    */
+   Number toValue(int i, double x)
+   {
+      if (type[i] == NumericTextField.INTEGER)
+         return Integer.valueOf((int) Math.max(aBound[i].intValue(),
+                 Math.min(bBound[i].intValue(), Math.round(x))));
+      else
+         return Double.valueOf(Math.max(aBound[i].doubleValue(),
+                 Math.min(bBound[i].doubleValue(), x)));
+   }
+
+   /**
+    * The range of an integer parameter is extended by 0.5 at each side,
+    * so that all its values have the same probability to be sampled
+    * @return the extension of the range of parameter i at each side
+    */
+   double getRangeExtension(int i)
+   {
+      return (type[i] == NumericTextField.INTEGER) ? 0.5 : 0;
+   }
+
+   /**
+    * @return true if parameter i is searched in log space
+    * @see #isLogScale(int, double, double)
+    */
+   boolean isLogScale(int i)
+   {
+      return isLogScale(type[i], aBound[i].doubleValue(), bBound[i].doubleValue());
+   }
+
+   /**
+    * A double parameter, whose range is positive and spans LOG_SCALE_RATIO
+    * or more, such as 1e-6 to 100, is searched in log space; otherwise
+    * almost all of its samples would be in the last decade
+    * @param type NumericTextField.INTEGER or NumericTextField.DOUBLE
+    * @param a the lower limit of the parameter
+    * @param b the upper limit of the parameter
+    */
+   static boolean isLogScale(int type, double a, double b)
+   {
+      return type == NumericTextField.DOUBLE && a > 0 && b >= a * LOG_SCALE_RATIO;
+   }
+
+   /**
+    * @param value the parameter values of a state
+    * @return the parameters of the op, with the values of the state
+    */
+   Parameter[] getParameters(Number[] value)
+   {
+      Parameter[] params = new Parameter[size];
+
+      for (int i = 0; i < size; ++i){
+         params[i] = new Parameter();
+
+         params[i].name = name[i];
+         params[i].desc = desc[i];
+         params[i].type = type[i];
+         params[i].min = aBound[i];
+         params[i].max = bBound[i];
+         params[i].value = value[i];
+      }
+
+      return params;
+   }
+
+   /**
+    * Creates the workers and the clones of the op that they use
+    */
+   private void startWorkers()
+   {
+      // The clones share the stage cache of the op
+      if (op instanceof DirectionalLocalProfileOp
+              && ((DirectionalLocalProfileOp) op).getStageCache() == null) {
+         stageCache = new StageCache();
+         ((DirectionalLocalProfileOp) op).setStageCache(stageCache);
+      }
+
+      if (numOfWorkers > 1) {
+         workers = Executors.newFixedThreadPool(numOfWorkers);
+         workerOps = new LinkedBlockingQueue<StandardBinaryOp>();
+
+         for (int i = 0; i < numOfWorkers; ++i) {
+            StandardBinaryOp workerOp = op.clone();
+            workerOp.setTask(task);
+            workerOps.add(workerOp);
+         }
+      }
+
+      int n = Math.min(getNumberOfImageWorkers(), datasetSize);
+      if (n > 1) {
+         imageWorkers = Executors.newFixedThreadPool(n);
+         imageOps = new LinkedBlockingQueue<StandardBinaryOp>();
+
+         // The trained op of the linear subspace filter is only read by
+         // the image workers, so it does not need clones
+         if (!(op instanceof LSubspaceOfCentralMomentsOp)) {
+            for (int i = 0; i < n; ++i) {
+               StandardBinaryOp imageOp = op.clone();
+               imageOp.setTask(task);
+               imageOps.add(imageOp);
+            }
+         }
+      }
+   }
+
+   /**
+    * Stops the workers
+    */
+   private void stopWorkers()
+   {
+      if (workers != null) {
+         workers.shutdownNow();
+         workers = null;
+         workerOps = null;
+      }
+      if (imageWorkers != null) {
+         imageWorkers.shutdownNow();
+         imageWorkers = null;
+         imageOps = null;
+      }
+      if (stageCache != null) {
+         ((DirectionalLocalProfileOp) op).setStageCache(null);
+         stageCache = null;
+      }
+
+      minF1 = Double.NEGATIVE_INFINITY;
+   }
+
+   private boolean anneal()
+   {
       // Initial states and their respective energies      
       State s = initState;
       Energy e = s.energy;
 
       // keeps the states with the optimum energy
-      S_BEST = new State(s.value, s.temp);
+      S_BEST = new State(s);
       
       State sNew = null;
       Energy eNew = null;
 
-      Random random = new Random();
-      
       Number[] newValues = new Number[size];
       for (int i = 0; i < size; ++i) {
          newValues[i] = s.value[i];
       }
 
+      int t0 = 0;
+
+      Checkpoint checkpoint = (startMode == START_NEW) ? null : getCheckpoint(task);
+      if (checkpoint != null) {
+         datasets[0].energyCache.putAll(checkpoint.energies);
+         State best = new State(checkpoint.bestValue, checkpoint.temp, checkpoint.bestEnergy);
+
+         if (startMode == RESUME) {
+            s = new State(checkpoint.value, checkpoint.temp, checkpoint.energy);
+            e = s.energy;
+            S_BEST = best;
+            newValues = checkpoint.newValues.clone();
+            random = checkpoint.random;
+            imageOrder = checkpoint.imageOrder.clone();
+            t0 = checkpoint.timeStep;
+
+            log("Resuming at temperature step " + t0 + " of " + TIME + "\n");
+
+         } else if (best.energy.compareTo(e) < 0) {
+            // Warm start: the new optimization starts from the best
+            // state of the previous one
+            s = new State(best.value, s.temp, best.energy);
+            e = s.energy;
+            S_BEST = best;
+            newValues = best.value.clone();
+
+            log("Warm start from the best state of a previous optimization: "
+                    + best.energy + "\n");
+         }
+      }
+
       // While time left or there is improvement,
       // and the optimum (minimum energy) is not achieved
-      for (int t = 0; t < TIME && e.compareTo(E_MIN) > 0; ++t) {
+      int t = t0;
+      for (; t < TIME && e.compareTo(E_MIN) > 0; ++t) {
 
          double temp = getTemperature(t);
 
@@ -347,7 +876,7 @@ public class SA
                     && !(aBoundReached[dim] && bBoundReached[dim]); ++dim) {
 
                if (task != null && task.isCancelled())
-                  return false;
+                  return stop(t, s, newValues);
 
 
                // Find the range around the current value. The new neighbourhood
@@ -374,17 +903,47 @@ public class SA
                   }
                }
 
-               // Generate a new value at random from the neighbourhood
-               double newValue = newABound + random.nextDouble() * (newBBound - newABound);
+               // In racing mode the random number of the acceptance test
+               // is known before the new state is evaluated
+               double u = 0;
+               if (isRacing) {
+                  u = random.nextDouble();
+                  minF1 = getAcceptanceThreshold(e, temp, u);
+               }
+
+               if (numOfWorkers > 1 || numOfScreenedStates > 0) {
+                  // Create some new states and compare the best of them
+                  // with the original state
+                  try {
+                     sNew = getBestNeighbour(newValues, dim, newABound, newBBound, temp);
+
+                  } catch (InterruptedException ex) {
+                     return stop(t, s, newValues);
+                  } catch (ExecutionException ex) {
+                     log("The evaluation of a state failed: " + ex.getCause() + "\n");
+                     return stop(t, s, newValues);
+                  }
 
+                  if (task != null && task.isCancelled())
+                     return stop(t, s, newValues);
 
-               if (type[dim] == NumericTextField.INTEGER)
-                  newValues[dim] = Integer.valueOf((int) newValue);
-               else
-                  newValues[dim] = Double.valueOf(newValue);
+               } else {
+                  // Generate a new value at random from the neighbourhood
+                  double newValue = newABound + random.nextDouble() * (newBBound - newABound);
 
-               // Create a new state and compare it with the original state
-               sNew = new State(newValues, temp);
+
+                  if (type[dim] == NumericTextField.INTEGER)
+                     newValues[dim] = Integer.valueOf((int) newValue);
+                  else
+                     newValues[dim] = Double.valueOf(newValue);
+
+                  // Create a new state and compare it with the original state
+                  sNew = new State(newValues, temp);
+               }
+
+               // A state that is stopped by racing cannot be accepted
+               if (!sNew.isComplete)
+                  continue;
 
                eNew = sNew.energy;
 
@@ -396,7 +955,7 @@ public class SA
                   e = eNew;
 
                   if (eNew.compareTo(S_BEST.energy) < 0) {
-                     S_BEST = new State(sNew.value, sNew.temp);
+                     S_BEST = new State(sNew);
 
                   }
 
@@ -408,7 +967,7 @@ public class SA
                   double probability = sNew.temp == 0 ? 0 :
                      (sNew.temp / T_start) * Math.exp( -diffOfEnergy / sNew.temp);
      
-                  if ( probability > random.nextDouble()) {
+                  if ( probability > (isRacing ? u : random.nextDouble())) {
                      s = sNew;
                      e = eNew;
 
@@ -437,11 +996,501 @@ public class SA
 
 
 
+         if (task != null && task.isCancelled())
+            return stop(t, s, newValues);
+
+         saveCheckpoint(t + 1, s, newValues, false);
+
       } // for (t < TIME_MAX ...
 
+      saveCheckpoint(t, s, newValues, true);
+
+      log(datasets[0].energyCache + "\n");
+      for (int k = 1; k < numOfFidelities && numOfScreenedStates > 0; ++k)
+         log("1/" + FIDELITY_FACTOR[k] + " resolution: " + datasets[k].energyCache + "\n");
+      if (isRacing)
+         log("Racing: " + imagesSkipped.get() + " of "
+                 + (imagesEvaluated.get() + imagesSkipped.get())
+                 + " image evaluations saved\n");
+
+      return true;
+
+
+   }
+
+   /**
+    * Solves the acceptance test of a new state for its F1.
+    * A new state is accepted if diff = F1 - F1' <= 0, where F1, F1' the
+    * F1 of the current and of the new state, or else
+    * if (temp / T_start) * exp(-diff / temp) > u
+    * @param e the energy of the current state
+    * @param temp the temperature of the new state
+    * @param u the random number of the acceptance test
+    * @return the minimum F1 of an accepted new state
+    */
+   private static double getAcceptanceThreshold(Energy e, double temp, double u)
+   {
+      double f1 = e.getF1();
+
+      if (Double.isNaN(f1))
+         return Double.NEGATIVE_INFINITY;
+
+      if (temp == 0)
+         return f1;
+
+      return Math.min(f1, f1 + temp * Math.log(u * T_start / temp));
+   }
+
+   /**
+    * Generates new values of a dimension at random from a neighbourhood,
+    * and evaluates the respective states, concurrently if there are workers.
+    * In multi-fidelity mode the states are screened by successive halving.
+    * @param values the values of the current proposal; on return, the value of
+    *               dimension dim is the value of the best new state
+    * @param dim the dimension that changes
+    * @param a the left bound of the neighbourhood
+    * @param b the right bound of the neighbourhood
+    * @param temp the temperature of the new states
+    * @return the new state with the lowest energy; of states with equal energies,
+    *         the first one generated
+    */
+   private State getBestNeighbour(Number[] values, int dim, double a, double b,
+           double temp) throws InterruptedException, ExecutionException
+   {
+      int n = Math.max(numOfWorkers, numOfScreenedStates);
+      List<Number[]> candidates = new ArrayList<Number[]>(n);
+
+      for (int i = 0; i < n; ++i) {
+         Number[] candidate = values.clone();
+
+         double newValue = a + random.nextDouble() * (b - a);
+         if (type[dim] == NumericTextField.INTEGER)
+            candidate[dim] = Integer.valueOf((int) newValue);
+         else
+            candidate[dim] = Double.valueOf(newValue);
+
+         candidates.add(candidate);
+      }
+
+      // The better half of the states of each resolution is
+      // evaluated at the next higher resolution
+      for (int level = (numOfScreenedStates > 0) ? numOfFidelities - 1 : 0; level > 0; --level) {
+         final List<State> screened = evaluate(candidates, temp, level);
+
+         List<Integer> order = new ArrayList<Integer>(screened.size());
+         for (int i = 0; i < screened.size(); ++i)
+            order.add(Integer.valueOf(i));
+
+         Collections.sort(order, new Comparator<Integer>()
+         {
+            public int compare(Integer i, Integer j)
+            {
+               int c = Double.compare(getF1(screened.get(j)), getF1(screened.get(i)));
+               return (c != 0) ? c : i.compareTo(j);
+            }
+         });
+
+         // The remaining states are kept in the order they were generated
+         order = new ArrayList<Integer>(order.subList(0, (order.size() + 1) / 2));
+         Collections.sort(order);
+
+         List<Number[]> promoted = new ArrayList<Number[]>(order.size());
+         for (Integer i : order)
+            promoted.add(candidates.get(i.intValue()));
+         candidates = promoted;
+      }
+
+      State best = null;
+      for (State state : evaluate(candidates, temp, 0)) {
+         if (best == null || (state.isComplete
+                 && (!best.isComplete || state.energy.compareTo(best.energy) < 0)))
+            best = state;
+      }
+
+      values[dim] = best.value[dim];
+
+      return best;
+   }
+
+   /**
+    * @return the F1 of a state, or -1 if it is not a number
+    */
+   private static double getF1(State s)
+   {
+      double f1 = s.energy.getF1();
+      return Double.isNaN(f1) ? -1 : f1;
+   }
+
+   /**
+    * Evaluates some states, concurrently if there are workers
+    * @param candidates the values of the states
+    * @param temp the temperature of the states
+    * @param level the dataset on which the states are evaluated
+    * @return the states, in the order of their values
+    */
+   private List<State> evaluate(List<Number[]> candidates, final double temp,
+           final int level) throws InterruptedException, ExecutionException
+   {
+      List<State> states = new ArrayList<State>(candidates.size());
+
+      if (workers == null) {
+         for (Number[] candidate : candidates)
+            states.add(new State(candidate, temp, op, level));
+
+         return states;
+      }
+
+      List<Future<State>> futures = new ArrayList<Future<State>>(candidates.size());
+      // The states that are generated more than once are evaluated once
+      Map<String, Future<State>> submitted = new HashMap<String, Future<State>>();
+
+      for (final Number[] candidate : candidates) {
+         String key = datasets[level].energyCache.getKey(candidate);
+         Future<State> future = submitted.get(key);
+         if (future != null) {
+            futures.add(future);
+            continue;
+         }
+
+         future = workers.submit(new Callable<State>()
+         {
+            public State call() throws InterruptedException
+            {
+               StandardBinaryOp workerOp = workerOps.take();
+               try {
+                  return new State(candidate, temp, workerOp, level);
+               } finally {
+                  workerOps.put(workerOp);
+               }
+            }
+         });
+
+         submitted.put(key, future);
+         futures.add(future);
+      }
+
+      try {
+         for (Future<State> future : futures)
+            states.add(future.get());
+
+      } finally {
+         for (Future<State> future : futures)
+            future.cancel(true);
+      }
+
+      return states;
+   }
+
+   /**
+    * Evaluates an op on the images of the dataset. The images are evaluated
+    * concurrently by the image workers, if there are any.
+    * In racing mode the images are evaluated in the order of imageOrder, a batch
+    * of image workers at a time, and the evaluation stops as soon as even
+    * an F1 of 1 for the rest of the images cannot give a mean F1 of minF1.
+    * @param op the op, that has the parameter values of a state
+    * @param value the parameter values of the op
+    * @param minF1 the minimum mean F1, for which the state can be accepted
+    * @param ds the dataset
+    * @return the energies of the images, in the order of the dataset; the images
+    *         that have not been evaluated, because of racing, or because
+    *         the task is cancelled or the thread is interrupted, have a null energy
+    */
+   private Energy[] evaluateImages(StandardBinaryOp op, Number[] value, double minF1,
+           Dataset ds)
+   {
+      Energy[] energies = new Energy[datasetSize];
+
+      int batchSize = datasetSize;
+      if (isRacing)
+         batchSize = (imageWorkers == null) ? 1 : Math.min(getNumberOfImageWorkers(), datasetSize);
+
+      double f1 = 0; // the sum of the F1 of the evaluated images
+
+      for (int k = 0; k < datasetSize; k += batchSize) {
+         int end = Math.min(k + batchSize, datasetSize);
+
+         if (!evaluateImages(op, value, ds, k, end, energies))
+            return energies;
+
+         for (int j = k; j < end; ++j)
+            f1 += energies[imageOrder[j]].getF1();
+
+         if (isRacing && end < datasetSize
+                 && (f1 + (datasetSize - end)) / datasetSize < minF1 - RACING_ERROR) {
+            imagesSkipped.addAndGet(datasetSize - end);
+            return energies;
+         }
+      }
+
+      return energies;
+   }
+
+   /**
+    * Evaluates the images imageOrder[k], ..., imageOrder[end - 1]
+    * @param energies the energies of the images, in the order of the dataset
+    * @return false if an image could not be evaluated, because the task
+    *         is cancelled or the thread is interrupted
+    */
+   private boolean evaluateImages(final StandardBinaryOp op, final Number[] value,
+           final Dataset ds, int k, int end, Energy[] energies)
+   {
+      if (imageWorkers == null || end - k == 1) {
+         for (int j = k; j < end; ++j) {
+            if (task != null && task.isCancelled())
+               return false;
+
+            int i = imageOrder[j];
+            energies[i] = evaluateImage(op, ds, i);
+            if (energies[i] == null)
+               return false;
+         }
+
+         return true;
+      }
+
+      List<Future<Energy>> futures = new ArrayList<Future<Energy>>(end - k);
+
+      for (int j = k; j < end; ++j) {
+         final int index = imageOrder[j];
+
+         futures.add(imageWorkers.submit(new Callable<Energy>()
+         {
+            public Energy call() throws InterruptedException
+            {
+               if (task != null && task.isCancelled())
+                  return null;
+
+               if (op instanceof LSubspaceOfCentralMomentsOp)
+                  return evaluateImage(op, ds, index);
+
+               StandardBinaryOp imageOp = imageOps.take();
+               try {
+                  for (int j = 0; j < size; ++j)
+                     imageOp.setParameterValue(name[j], value[j]);
+
+                  return evaluateImage(imageOp, ds, index);
+
+               } finally {
+                  imageOps.put(imageOp);
+               }
+            }
+         }));
+      }
+
+      try {
+         for (int j = k; j < end; ++j) {
+            Energy e = futures.get(j - k).get();
+            if (e == null)
+               return false;
+
+            energies[imageOrder[j]] = e;
+         }
+
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return false;
+
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof RuntimeException)
+            throw (RuntimeException) ex.getCause();
+         if (ex.getCause() instanceof Error)
+            throw (Error) ex.getCause();
+         throw new RuntimeException(ex.getCause());
+
+      } finally {
+         for (Future<Energy> future : futures)
+            future.cancel(true);
+      }
+
       return true;
+   }
+
+   /**
+    * Filters an image of the dataset
+    * @param op
+    * @param ds the dataset
+    * @param i the index of the image
+    * @return the energy of the output of the op
+    */
+   private Energy evaluateImage(StandardBinaryOp op, Dataset ds, int i)
+   {
+      WritableRaster output; // The output of the filtering operation
+
+      Raster synth = ds.getSyntheticRaster(i);
 
+      if (op instanceof LSubspaceOfCentralMomentsOp) {
+         LSubspaceOfCentralMomentsOp lsOp = (LSubspaceOfCentralMomentsOp) op;
+         FeatureMatrix features = featureCache.get(ds.synthIds[i], lsOp.getModel(),
+                 synth, true, task);
 
+         output = (features == null) ? null : lsOp.filter(synth, null, features);
+
+      } else
+         output = op.filter(synth, null);
+
+      if (output == null)
+         return null;
+
+      return Energy.calcEnergy(ds.getGroundTruth(i), null, ds.getSynthetic(i),
+              new PackedBinaryRaster(output, StandardBinaryOp.FOREGROUND));
+   }
+
+   /**
+    * Scales the length parameters of the op to images downsampled by a factor
+    * @param value the parameter values of a state
+    * @param factor
+    * @return the parameter values of the op for the downsampled images
+    */
+   private Number[] getScaledValues(Number[] value, int factor)
+   {
+      if (factor == 1)
+         return value;
+
+      Number[] scaled = value.clone();
+
+      for (int i = 0; i < size; ++i) {
+         if (!op.isLengthParameter(name[i]))
+            continue;
+
+         scaled[i] = toValue(i, value[i].doubleValue() / factor);
+      }
+
+      return scaled;
+   }
+
+   /**
+    * Sends a message to the log of the task, or to stderr if there is no task
+    * @param msg
+    */
+   private void log(String msg)
+   {
+      log(task, msg);
+   }
+
+   /**
+    * Sends a message to the log of a task, or to stderr if there is no task
+    * @param task
+    * @param msg
+    */
+   static void log(SwingWorker task, String msg)
+   {
+      if (task != null)
+         task.firePropertyChange(LogDialog.LOG_PROPERTY, null, msg);
+      else
+         System.err.print(msg);
+   }
+
+   /**
+    * @return the cache of the energies of the evaluated states
+    */
+   public EnergyCache getEnergyCache() { return datasets[0].energyCache; }
+
+   /**
+    * Stores a checkpoint, and stops the optimization
+    * @return false
+    */
+   private boolean stop(int t, State s, Number[] newValues)
+   {
+      saveCheckpoint(t, s, newValues, false);
+      return false;
+   }
+
+   /**
+    * Stores the state of the optimization, if there is a checkpoint directory
+    * @param t the temperature step, from which the optimization continues
+    * @param s the current state
+    * @param newValues the values of the current proposal
+    * @param isFinished true if the optimization has finished
+    */
+   private void saveCheckpoint(int t, State s, Number[] newValues, boolean isFinished)
+   {
+      File f = getCheckpointFile();
+      if (f == null)
+         return;
+
+      Checkpoint checkpoint = new Checkpoint();
+      checkpoint.fingerprint = getFingerprint();
+      checkpoint.timeStep = t;
+      checkpoint.isFinished = isFinished;
+      checkpoint.value = s.value.clone();
+      checkpoint.temp = s.temp;
+      checkpoint.energy = s.energy;
+      checkpoint.bestValue = S_BEST.value.clone();
+      checkpoint.bestEnergy = S_BEST.energy;
+      checkpoint.newValues = newValues.clone();
+      checkpoint.random = random;
+      checkpoint.imageOrder = imageOrder.clone();
+      checkpoint.energies = datasets[0].energyCache.getEnergies();
+
+      try {
+         if (!checkpointDir.isDirectory() && !checkpointDir.mkdirs())
+            throw new IOException("Cannot create the directory " + checkpointDir);
+
+         checkpoint.write(f);
+
+      } catch (IOException ex) {
+         log("Cannot store the checkpoint: " + ex.getMessage() + "\n");
+      }
+   }
+
+   /**
+    * @param task the task, to whose log an invalid checkpoint is reported,
+    *             or null for stderr
+    * @return the checkpoint of a previous optimization of the same filter and
+    *         dataset, or null if there is none
+    */
+   public Checkpoint getCheckpoint(SwingWorker task)
+   {
+      File f = getCheckpointFile();
+      if (f == null || !f.isFile())
+         return null;
+
+      try {
+         Checkpoint checkpoint = Checkpoint.read(f);
+         if (getFingerprint().equals(checkpoint.fingerprint)
+                 && checkpoint.value.length == size)
+            return checkpoint;
+
+      } catch (IOException ex) {
+         log(task, "Invalid checkpoint " + f + ": " + ex.getMessage() + "\n");
+      }
+
+      return null;
+   }
+
+   /**
+    * @return the file of the checkpoints of the filter and the dataset,
+    *         or null if there are no checkpoints
+    */
+   private File getCheckpointFile()
+   {
+      if (checkpointDir == null || size == 0)
+         return null;
+
+      return new File(checkpointDir, getFingerprint() + ".sa");
+   }
+
+   /**
+    * The fingerprint identifies the filter, the ranges of its parameters,
+    * and the files of the dataset
+    * @return the fingerprint of the optimization
+    */
+   public String getFingerprint()
+   {
+      if (fingerprint != null)
+         return fingerprint;
+
+      StringBuilder key = new StringBuilder(op.getName());
+      for (int i = 0; i < size; ++i)
+         key.append('|').append(name[i]).append(':').append(type[i])
+                 .append(':').append(aBound[i]).append(':').append(bBound[i]);
+      for (int i = 0; i < datasetSize; ++i)
+         key.append('|').append(datasets[0].gtIds[i])
+                 .append('|').append(datasets[0].synthIds[i]);
+
+      fingerprint = Digests.sha1(key.toString());
+
+      return fingerprint;
    }
 
    /**
@@ -474,20 +1523,7 @@ public class SA
       if (S_BEST == null)
          return null;
 
-      Parameter[] params = new Parameter[size];
-
-      for (int i = 0; i < size; ++i){
-         params[i] = new Parameter();
-
-         params[i].name = name[i];
-         params[i].desc = desc[i];
-         params[i].type = type[i];
-         params[i].min = aBound[i];
-         params[i].max = bBound[i];
-         params[i].value = S_BEST.value[i];
-      }
-
-      return params;
+      return getParameters(S_BEST.value);
    }
 
    /**
@@ -510,6 +1546,11 @@ public class SA
       public double temp;
       // The energy associated with this state
       public Energy energy;
+      // False if the calculation of the energy was stopped by racing;
+      // then the energy is a lower bound
+      public boolean isComplete = true;
+      // The dataset on which the energy is calculated; 0 is the full resolution
+      public int level = 0;
 
       /**
        * Constructs a new state with the given values and temperature
@@ -517,19 +1558,60 @@ public class SA
        * @param temp
        */
       public State(Number[] val, double temp)
+      {
+         this(val, temp, op, 0);
+      }
+
+      /**
+       * Constructs a new state with the given values and temperature,
+       * which is evaluated by a given op
+       * @param val
+       * @param temp
+       * @param evalOp an op of the same class and parameters as the op of SA
+       * @param level the dataset on which the energy is calculated
+       */
+      private State(Number[] val, double temp, StandardBinaryOp evalOp, int level)
       {
          this.value = new Number[size];
-         setState(val, temp);
+         this.level = level;
+         setState(val, temp, evalOp);
       }
 
 
+      /**
+       * Constructs a state, that has been evaluated before
+       * @param val
+       * @param temp
+       * @param energy
+       */
+      private State(Number[] val, double temp, Energy energy)
+      {
+         this.value = val.clone();
+         this.temp = temp;
+         this.energy = energy;
+      }
+
+      /**
+       * Constructs a copy of a state, without recalculating the energy
+       * @param s
+       */
+      public State(State s)
+      {
+         this.value = s.value.clone();
+         this.temp = s.temp;
+         this.energy = s.energy;
+         this.isComplete = s.isComplete;
+         this.level = s.level;
+      }
+
       /**
        * Sets the whole state. By calling this function we can use the same
        * variables to regenerate a state, and of course recalculate the energy.
        * @param val
        * @param temp
+       * @param evalOp the op that evaluates the state
        */
-      private void setState(Number[] val, double temp)
+      private void setState(Number[] val, double temp, StandardBinaryOp evalOp)
       {
          // Temperature must have values greater or equal to 0
          if (temp < 0)
@@ -547,7 +1629,17 @@ public class SA
             else
                this.value[i] = aBound[i];
          }
-         calcEnergy();
+
+         // A state that has been already evaluated is not evaluated again
+         EnergyCache energyCache = datasets[level].energyCache;
+         energy = energyCache.get(this.value);
+         if (energy == null) {
+            calcEnergy(evalOp);
+
+            if (isComplete && (task == null || !task.isCancelled())
+                    && !Thread.currentThread().isInterrupted())
+               energyCache.put(this.value, energy);
+         }
       }
 
       /**
@@ -557,43 +1649,64 @@ public class SA
        */
       public Energy calcEnergy()
       {
+         return calcEnergy(op);
+      }
+
+      /**
+       * Calculates the energy of the state by using a given op
+       * @param op
+       * @return the energy
+       */
+      private Energy calcEnergy(StandardBinaryOp op)
+      {
+         Dataset ds = datasets[level];
+         Number[] opValue = getScaledValues(value, ds.factor);
+
          for (int i = 0; i < size; ++i) {
-            op.setParameterValue(name[i], value[i]);
+            op.setParameterValue(name[i], opValue[i]);
          }
 
          if (op instanceof LSubspaceOfCentralMomentsOp){
 
 	    LSubspaceOfCentralMoments model = ((LSubspaceOfCentralMomentsOp)op).getModel();
             ((LSubspaceParameterToolbar) op.getToolbar()).createNewSubspace();       
-            
+
+            // The feature vectors depend only on the window and the moment order,
+            // so they are extracted once and then taken from the cache
             for (int i = 0; i < datasetSize; ++i) {
-               int w = rasterGT[i].getWidth();
-               int h = rasterGT[i].getHeight();
-               BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY);
-               bi.getRaster().setPixels(0, 0, w, h,
-                       rasterGT[i].getPixels(0, 0, w, h, (int[]) null));               
+               FeatureMatrix features = featureCache.get(ds.gtIds[i], model,
+                       ds.getGroundTruthRaster(i), false, task);
+               if (features == null) // cancelled
+                  break;
 
-               model.addTrainingData(bi, task);
+               model.addTrainingData(features, task);
             }
             
          }
 
+         // The energies are added in the order of the dataset, so that
+         // the result does not depend on the order of their calculation
+         Energy[] e = evaluateImages(op, opValue,
+                 (level == 0) ? minF1 : Double.NEGATIVE_INFINITY, ds);
+
+         // The images that are not evaluated count as perfect
+         isComplete = true;
          double precision = 0;
          double recall = 0;
          double f1 = 0;
-         Energy e;
          for (int i = 0; i < datasetSize; ++i) {
-            e = Energy.calcEnergy(rasterGT[i], rasterSynth[i],
-                 op.filter(rasterSynth[i], null)); // The output of the filtering operation
-
-            System.gc();
+            if (e[i] == null) {
+               isComplete = false;
+               precision += 1;
+               recall += 1;
+               f1 += 1;
+               continue;
+            }
 
-            if (task != null && task.isCancelled())
-               break;
-            
-            precision += e.getPrecision();
-            recall += e.getRecall();
-            f1 += e.getF1();
+            imagesEvaluated.incrementAndGet();
+            precision += e[i].getPrecision();
+            recall += e[i].getRecall();
+            f1 += e[i].getF1();
          }
      
          energy = new Energy(precision / datasetSize, recall / datasetSize, f1 / datasetSize);
@@ -0,0 +1,522 @@
+package plsdejai.optimizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingWorker;
+import plsdejai.Parameter;
+import plsdejai.StandardBinaryOp;
+import plsdejai.io.DatasetStore;
+import plsdejai.util.Json;
+import plsdejai.widgets.NumericTextField;
+
+/**
+ * A parameter sweep: the F1 of a filter is evaluated on the points of
+ * a grid, or of a Latin hypercube, of its parameter space, and the
+ * response table is written to a CSV or JSON file.
+ *
+ * The dataset, the caches and the concurrent evaluation of the points are
+ * those of the SA class. The energies of a checkpoint of the same filter
+ * and dataset are used, so the points that SA has evaluated are not
+ * evaluated again. The usage is:
+ * - Sweep sweep = new Sweep(op, groundTruthFiles, synthFiles);
+ * - sweep.setNumberOfLevels("off", 7);
+ * - sweep.start(task);
+ * - sweep.write(new File("response.csv"));
+ */
+public class Sweep implements Optimizer
+{
+   /* ***************************** Constants **************************** */
+   // The points are the nodes of a grid
+   public static final int GRID = 0;
+   // The points are a Latin hypercube sample
+   public static final int LATIN_HYPERCUBE = 1;
+
+   // The default number of values of each parameter in a grid
+   private static final int NUM_OF_LEVELS = 5;
+   // The default number of points of a Latin hypercube
+   private static final int NUM_OF_SAMPLES = 50;
+   // The default largest number of points of a grid; the size of a grid is
+   // exponential in the number of parameters, e.g. 5 levels of 7 parameters
+   // are 78125 points, so a larger grid is refused instead of running for days
+   public static final long MAX_GRID_POINTS = 10000;
+   // The number of points that are evaluated between two progress messages
+   private static final int BATCH_SIZE = 16;
+   /* ******************************************************************** */
+
+   // Evaluates the points
+   private SA sa;
+
+   private int design = GRID;
+   private int numOfSamples = NUM_OF_SAMPLES;
+   // The number of values of each parameter in a grid;
+   // a parameter with 1 value keeps its current value
+   private int[] numOfLevels;
+   private long maxGridPoints = MAX_GRID_POINTS;
+   // The range of each parameter that is swept
+   private Number[] min;
+   private Number[] max;
+
+   private long seed;
+   private boolean isSeedSet = false;
+
+   private SwingWorker task;
+
+   // The evaluated points, in the order of their generation
+   private List<SA.State> states = new ArrayList<SA.State>();
+   // The point with the highest F1
+   private SA.State best;
+
+   /**
+    * @param op the filter, whose response is evaluated
+    * @param groundTruthFiles the ground truth, rule-lines only, image files
+    * @param synthFiles the synthetic image files
+    */
+   public Sweep(StandardBinaryOp op, File[] groundTruthFiles, File[] synthFiles)
+   {
+      this(new SA(op, groundTruthFiles, synthFiles));
+   }
+
+   /**
+    * @param op the filter, whose response is evaluated
+    * @param store the ground truth and synthetic images
+    */
+   public Sweep(StandardBinaryOp op, DatasetStore store)
+   {
+      this(new SA(op, store));
+   }
+
+   private Sweep(SA sa)
+   {
+      this.sa = sa;
+      sa.setNumberOfWorkers(Runtime.getRuntime().availableProcessors());
+
+      numOfLevels = new int[sa.size];
+      min = new Number[sa.size];
+      max = new Number[sa.size];
+
+      for (int i = 0; i < sa.size; ++i) {
+         numOfLevels[i] = NUM_OF_LEVELS;
+         min[i] = sa.aBound[i];
+         max[i] = sa.bBound[i];
+      }
+   }
+
+   /**
+    * Sets how the points are generated
+    * @param design GRID or LATIN_HYPERCUBE
+    */
+   public void setDesign(int design)
+   {
+      if (design != GRID && design != LATIN_HYPERCUBE)
+         throw new IllegalArgumentException("Invalid design: " + design);
+
+      this.design = design;
+   }
+
+   /**
+    * Sets the number of points of a Latin hypercube
+    * @param n
+    */
+   public void setNumberOfSamples(int n)
+   {
+      numOfSamples = Math.max(1, n);
+   }
+
+   /**
+    * Sets the number of values of every parameter in a grid
+    * @param n
+    */
+   public void setNumberOfLevels(int n)
+   {
+      for (int i = 0; i < sa.size; ++i)
+         numOfLevels[i] = Math.max(1, n);
+   }
+
+   /**
+    * Sets the number of values of a parameter in a grid. A parameter with
+    * 1 value is not swept, but keeps its current value
+    * @param name the name of the parameter
+    * @param n
+    */
+   public void setNumberOfLevels(String name, int n)
+   {
+      numOfLevels[indexOf(name)] = Math.max(1, n);
+   }
+
+   /**
+    * Sets the largest number of points of a grid, above which start()
+    * refuses to sweep it
+    * @param n
+    */
+   public void setMaxGridPoints(long n)
+   {
+      maxGridPoints = Math.max(1, n);
+   }
+
+   /**
+    * The size of the grid is calculated from the levels, without generating
+    * its points
+    * @return the number of points of the grid, or Long.MAX_VALUE if it
+    *         does not fit in a long
+    */
+   public long getNumberOfGridPoints()
+   {
+      long n = 1;
+      for (int i = 0; i < sa.size; ++i) {
+         int k = (numOfLevels[i] == 1) ? 1 : getLevels(i).length;
+         if (n > Long.MAX_VALUE / k)
+            return Long.MAX_VALUE;
+         n *= k;
+      }
+
+      return n;
+   }
+
+   /**
+    * Restricts the range of a parameter that is swept. The range is clamped
+    * to the limits of the parameter
+    * @param name the name of the parameter
+    * @param min
+    * @param max
+    */
+   public void setRange(String name, Number min, Number max)
+   {
+      int i = indexOf(name);
+
+      if (min.doubleValue() > max.doubleValue())
+         throw new IllegalArgumentException("Invalid range of '" + name + "'");
+
+      this.min[i] = sa.toValue(i, min.doubleValue());
+      this.max[i] = sa.toValue(i, max.doubleValue());
+   }
+
+   /**
+    * Sets the seed of the random numbers of a Latin hypercube
+    * @param seed
+    */
+   public void setSeed(long seed)
+   {
+      this.seed = seed;
+      isSeedSet = true;
+   }
+
+   /**
+    * @see SA.setNumberOfWorkers
+    */
+   public void setNumberOfWorkers(int n)
+   {
+      sa.setNumberOfWorkers(n);
+   }
+
+   /**
+    * @see SA.setNumberOfImageWorkers
+    */
+   public void setNumberOfImageWorkers(int n)
+   {
+      sa.setNumberOfImageWorkers(n);
+   }
+
+   /**
+    * @see SA.setFeatureCacheDirectory
+    */
+   public void setFeatureCacheDirectory(File dir)
+   {
+      sa.setFeatureCacheDirectory(dir);
+   }
+
+   /**
+    * @see SA.setCheckpointDirectory
+    */
+   public void setCheckpointDirectory(File dir)
+   {
+      sa.setCheckpointDirectory(dir);
+   }
+
+   private int indexOf(String name)
+   {
+      for (int i = 0; i < sa.size; ++i) {
+         if (sa.name[i].equals(name))
+            return i;
+      }
+
+      throw new IllegalArgumentException("Unknown parameter '" + name + "'");
+   }
+
+   public boolean start(SwingWorker task)
+   {
+      this.task = task;
+
+      if (sa.getInitialState() == null)
+         return false;
+
+      if (design == GRID) {
+         long n = getNumberOfGridPoints();
+         if (n > maxGridPoints) {
+            SA.log(task, "Sweep: the grid has "
+                    + (n == Long.MAX_VALUE ? "too many" : String.valueOf(n)) + " points, more than the limit of " + maxGridPoints
+                    + "; use fewer levels or a Latin hypercube\n");
+            return false;
+         }
+      }
+
+      // The points that SA has evaluated are taken from its checkpoint
+      Checkpoint checkpoint = sa.getCheckpoint(task);
+      if (checkpoint != null)
+         sa.getEnergyCache().putAll(checkpoint.energies);
+
+      if (!sa.beginEvaluation(task))
+         return false;
+
+      List<Number[]> points = (design == GRID) ? getGridPoints()
+              : getLatinHypercubePoints(isSeedSet ? new Random(seed) : new Random());
+
+      SA.log(task, "Sweep: " + points.size() + " points\n");
+
+      states.clear();
+      best = null;
+
+      try {
+         for (int k = 0, size = points.size(); k < size; k += BATCH_SIZE) {
+
+            if (task != null && task.isCancelled())
+               return false;
+
+            for (SA.State s : sa.evaluate(points.subList(k, Math.min(size, k + BATCH_SIZE)))) {
+               states.add(s);
+               if (s.isComplete && (best == null || s.energy.compareTo(best.energy) < 0))
+                  best = s;
+            }
+
+            if (task != null && task.isCancelled())
+               return false;
+
+            SA.log(task, "Sweep: " + states.size() + " of " + size + " points"
+                    + (best == null ? "" : ", best " + best.energy) + "\n");
+         }
+
+      } catch (InterruptedException ex) {
+         return false;
+
+      } catch (ExecutionException ex) {
+         SA.log(task, "The evaluation of a point failed: " + ex.getCause() + "\n");
+         return false;
+
+      } finally {
+         sa.endEvaluation();
+      }
+
+      SA.log(task, sa.getEnergyCache() + "\n");
+
+      return true;
+   }
+
+   /**
+    * @return the nodes of the grid, with the last parameter changing fastest
+    */
+   private List<Number[]> getGridPoints()
+   {
+      Number[][] levels = new Number[sa.size][];
+      for (int i = 0; i < sa.size; ++i)
+         levels[i] = getLevels(i);
+
+      List<Number[]> points = new ArrayList<Number[]>();
+      int[] index = new int[sa.size];
+
+      for (;;) {
+         Number[] value = new Number[sa.size];
+         for (int i = 0; i < sa.size; ++i)
+            value[i] = levels[i][index[i]];
+         points.add(value);
+
+         int i = sa.size - 1;
+         while (i >= 0 && ++index[i] == levels[i].length)
+            index[i--] = 0;
+
+         if (i < 0)
+            return points;
+      }
+   }
+
+   /**
+    * @return the values of parameter i in a grid, equally spaced in its range.
+    *         The values of an integer parameter are rounded, and are not repeated
+    */
+   private Number[] getLevels(int i)
+   {
+      if (numOfLevels[i] == 1)
+         return new Number[] { sa.getInitialState().value[i] };
+
+      double a = min[i].doubleValue();
+      double b = max[i].doubleValue();
+
+      List<Number> levels = new ArrayList<Number>(numOfLevels[i]);
+      Set<Number> used = new HashSet<Number>();
+
+      for (int k = 0; k < numOfLevels[i]; ++k) {
+         Number value = sa.toValue(i, a + k * (b - a) / (numOfLevels[i] - 1));
+         if (used.add(value))
+            levels.add(value);
+      }
+
+      return levels.toArray(new Number[levels.size()]);
+   }
+
+   /**
+    * A Latin hypercube: the range of each parameter is divided to numOfSamples
+    * strata, and each stratum has exactly one of the points
+    * @return the points
+    */
+   private List<Number[]> getLatinHypercubePoints(Random random)
+   {
+      Number[][] values = new Number[numOfSamples][sa.size];
+
+      for (int i = 0; i < sa.size; ++i) {
+         double a = min[i].doubleValue() - sa.getRangeExtension(i);
+         double b = max[i].doubleValue() + sa.getRangeExtension(i);
+
+         int[] stratum = new int[numOfSamples];
+         for (int k = 0; k < numOfSamples; ++k)
+            stratum[k] = k;
+
+         for (int k = numOfSamples - 1; k > 0; --k) {
+            int j = random.nextInt(k + 1);
+            int tmp = stratum[k];
+            stratum[k] = stratum[j];
+            stratum[j] = tmp;
+         }
+
+         for (int k = 0; k < numOfSamples; ++k) {
+            values[k][i] = (numOfLevels[i] == 1)
+                    ? sa.getInitialState().value[i]
+                    : sa.toValue(i, a + (stratum[k] + random.nextDouble()) * (b - a) / numOfSamples);
+         }
+      }
+
+      List<Number[]> points = new ArrayList<Number[]>(numOfSamples);
+      for (Number[] value : values)
+         points.add(value);
+
+      return points;
+   }
+
+   /**
+    * Writes the response table, as JSON if the name of the file ends
+    * with ".json", otherwise as CSV
+    * @param f
+    * @throws IOException
+    */
+   public void write(File f) throws IOException
+   {
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(
+              new FileOutputStream(f), "UTF-8"));
+
+      try {
+         if (f.getName().toLowerCase().endsWith(".json"))
+            writeJSON(out);
+         else
+            writeCSV(out);
+
+         if (out.checkError())
+            throw new IOException("Cannot write '" + f.getName() + "'");
+
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Writes a row for each point: its parameter values, precision, recall and F1.
+    * The header has the names of the parameters, which are quoted as RFC 4180
+    * requires, since they can have commas
+    * @param out
+    */
+   public void writeCSV(PrintWriter out)
+   {
+      for (int i = 0; i < sa.size; ++i)
+         out.print(quoteCSV(sa.name[i]) + ",");
+      out.print("precision,recall,F1\n");
+
+      for (SA.State s : states) {
+         if (!s.isComplete)
+            continue;
+
+         for (int i = 0; i < sa.size; ++i)
+            out.print(format(i, s.value[i]) + ",");
+
+         out.print(s.energy.getPrecision() + "," + s.energy.getRecall() + ","
+                 + s.energy.getF1() + "\n");
+      }
+   }
+
+   /**
+    * Writes an object with the filter, its parameter ranges, and the points
+    * @param out
+    */
+   public void writeJSON(PrintWriter out)
+   {
+      out.print("{\n  \"filter\": " + Json.quote(sa.getOpName()) + ",\n  \"parameters\": [\n");
+      for (int i = 0; i < sa.size; ++i) {
+         out.print("    {\"name\": " + Json.quote(sa.name[i]) + ", \"type\": "
+                 + (sa.type[i] == NumericTextField.INTEGER ? "\"integer\"" : "\"double\"")
+                 + ", \"min\": " + format(i, min[i]) + ", \"max\": " + format(i, max[i]) + "}"
+                 + (i < sa.size - 1 ? ",\n" : "\n"));
+      }
+
+      out.print("  ],\n  \"points\": [");
+      String separator = "\n";
+      for (SA.State s : states) {
+         if (!s.isComplete)
+            continue;
+
+         out.print(separator + "    {");
+         for (int i = 0; i < sa.size; ++i)
+            out.print(Json.quote(sa.name[i]) + ": " + format(i, s.value[i]) + ", ");
+
+         out.print("\"precision\": " + Json.number(s.energy.getPrecision())
+                 + ", \"recall\": " + Json.number(s.energy.getRecall())
+                 + ", \"F1\": " + Json.number(s.energy.getF1()) + "}");
+         separator = ",\n";
+      }
+      out.print("\n  ]\n}\n");
+   }
+
+   /**
+    * @return the field, in double quotes if it has a comma, a double quote
+    *         or a line break, with its double quotes doubled
+    */
+   private static String quoteCSV(String field)
+   {
+      if (field.indexOf(',') < 0 && field.indexOf('"') < 0
+              && field.indexOf('\n') < 0 && field.indexOf('\r') < 0)
+         return field;
+
+      return '"' + field.replace("\"", "\"\"") + '"';
+   }
+
+   private String format(int i, Number value)
+   {
+      return (sa.type[i] == NumericTextField.INTEGER)
+              ? String.valueOf(value.intValue()) : String.valueOf(value.doubleValue());
+   }
+
+   public Parameter[] getOptimumParameters()
+   {
+      return (best == null) ? null : sa.getParameters(best.value);
+   }
+
+   public Energy getOptimumEnergy() { return (best == null) ? null : best.energy; }
+
+   /**
+    * @return the number of the evaluated points
+    */
+   public int getNumberOfEvaluations() { return states.size(); }
+}
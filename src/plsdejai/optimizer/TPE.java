@@ -0,0 +1,444 @@
+package plsdejai.optimizer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingWorker;
+import plsdejai.Parameter;
+import plsdejai.StandardBinaryOp;
+import plsdejai.io.DatasetStore;
+
+/**
+ * Tree-structured Parzen Estimator.
+ * A sample-efficient optimizer: the evaluated states are split into the
+ * good ones, the GAMMA part with the highest F1, and the bad ones. For each
+ * parameter a density l(x) of the good and g(x) of the bad values is estimated,
+ * and the new states are the samples of l(x) with the highest l(x) / g(x).
+ * The densities of a parameter, whose range spans some decades, are estimated
+ * on the logarithms of its values (see SA.isLogScale).
+ * The states are proposed in batches, which are evaluated concurrently.
+ *
+ * The dataset, the caches and the evaluation of the states are
+ * those of the SA class. The usage is:
+ * - TPE tpe = new TPE(op, groundTruthFiles, synthFiles);
+ * - tpe.start(task);
+ * - Parameter[] params = tpe.getOptimumParameters();
+ */
+public class TPE implements Optimizer
+{
+   /* ***************************** Constants **************************** */
+   // The part of the states that are considered good
+   private static final double GAMMA = 0.25;
+   // The number of samples of l(x), from which a new state is chosen
+   private static final int NUM_OF_SAMPLES = 24;
+   // The default number of states that are evaluated
+   private static final int MAX_EVALUATIONS = 60;
+   // The default number of random states, before the estimators are used
+   private static final int NUM_OF_STARTUP_STATES = 10;
+   // The default number of states of a batch
+   private static final int BATCH_SIZE = 4;
+   /* ******************************************************************** */
+
+   // Evaluates the states
+   private SA sa;
+
+   private int maxEvaluations = MAX_EVALUATIONS;
+   private int numOfStartupStates = NUM_OF_STARTUP_STATES;
+   private int batchSize = BATCH_SIZE;
+
+   private long seed;
+   private boolean isSeedSet = false;
+
+   private SwingWorker task;
+
+   // The evaluated states, in the order of their evaluation
+   private List<SA.State> states = new ArrayList<SA.State>();
+   // The state with the highest F1
+   private SA.State best;
+
+   /**
+    * @param op the algorithm, whose parameters are optimized
+    * @param groundTruthFiles the ground truth, rule-lines only, image files
+    * @param synthFiles the synthetic image files
+    */
+   public TPE(StandardBinaryOp op, File[] groundTruthFiles, File[] synthFiles)
+   {
+      this(new SA(op, groundTruthFiles, synthFiles));
+   }
+
+   /**
+    * @param op the algorithm, whose parameters are optimized
+    * @param store the ground truth and synthetic images
+    */
+   public TPE(StandardBinaryOp op, DatasetStore store)
+   {
+      this(new SA(op, store));
+   }
+
+   private TPE(SA sa)
+   {
+      this.sa = sa;
+      sa.setCheckpointDirectory(null);
+      sa.setNumberOfWorkers(batchSize);
+   }
+
+   /**
+    * Sets the seed of the random numbers, so that an optimization can be repeated
+    * @param seed
+    */
+   public void setSeed(long seed)
+   {
+      this.seed = seed;
+      isSeedSet = true;
+   }
+
+   /**
+    * Sets the number of states that are evaluated, including the initial state
+    * @param n
+    */
+   public void setMaxEvaluations(int n)
+   {
+      maxEvaluations = Math.max(1, n);
+   }
+
+   /**
+    * Sets the number of random states, that are evaluated before the
+    * estimators are used
+    * @param n
+    */
+   public void setNumberOfStartupStates(int n)
+   {
+      numOfStartupStates = Math.max(1, n);
+   }
+
+   /**
+    * Sets the number of states that are proposed, and evaluated concurrently,
+    * at a time
+    * @param n
+    */
+   public void setBatchSize(int n)
+   {
+      batchSize = Math.max(1, n);
+      sa.setNumberOfWorkers(batchSize);
+   }
+
+   /**
+    * @see SA.setNumberOfImageWorkers
+    */
+   public void setNumberOfImageWorkers(int n)
+   {
+      sa.setNumberOfImageWorkers(n);
+   }
+
+   /**
+    * @see SA.setFeatureCacheDirectory
+    */
+   public void setFeatureCacheDirectory(File dir)
+   {
+      sa.setFeatureCacheDirectory(dir);
+   }
+
+   public boolean start(SwingWorker task)
+   {
+      this.task = task;
+
+      if (sa.getInitialState() == null || !sa.beginEvaluation(task))
+         return false;
+
+      Random random = isSeedSet ? new Random(seed) : new Random();
+
+      states.clear();
+      best = sa.getInitialState();
+      states.add(best);
+
+      try {
+         while (states.size() < maxEvaluations && best.energy.getF1() < 1) {
+
+            if (task != null && task.isCancelled())
+               return false;
+
+            int n = Math.min(batchSize, maxEvaluations - states.size());
+
+            List<Number[]> batch = (states.size() < numOfStartupStates)
+                    ? getRandomValues(n, random) : propose(n, random);
+
+            for (SA.State s : sa.evaluate(batch)) {
+               if (!s.isComplete)
+                  continue;
+
+               states.add(s);
+               if (s.energy.compareTo(best.energy) < 0)
+                  best = s;
+            }
+
+            if (task != null && task.isCancelled())
+               return false;
+
+            SA.log(task, "TPE: " + states.size() + " evaluations, best " + best.energy + "\n");
+         }
+
+      } catch (InterruptedException ex) {
+         return false;
+
+      } catch (ExecutionException ex) {
+         SA.log(task, "The evaluation of a state failed: " + ex.getCause() + "\n");
+         return false;
+
+      } finally {
+         sa.endEvaluation();
+      }
+
+      SA.log(task, sa.getEnergyCache() + "\n");
+
+      return true;
+   }
+
+   /**
+    * @return n states chosen uniformly from the ranges of the parameters
+    */
+   private List<Number[]> getRandomValues(int n, Random random)
+   {
+      List<Number[]> values = new ArrayList<Number[]>(n);
+
+      for (int k = 0; k < n; ++k) {
+         Number[] value = new Number[sa.size];
+
+         for (int i = 0; i < sa.size; ++i) {
+            double a = getLowerLimit(i);
+            double b = getUpperLimit(i);
+
+            value[i] = fromSearchSpace(i, a + random.nextDouble() * (b - a));
+         }
+
+         values.add(value);
+      }
+
+      return values;
+   }
+
+   /**
+    * Proposes new states, by using the estimators of the good and the bad states
+    * @param n the number of the states
+    * @return the values of the states
+    */
+   private List<Number[]> propose(int n, Random random)
+   {
+      // Sort the states by F1, in descending order; the sort is stable,
+      // so that the result does not depend on anything but the states
+      List<SA.State> sorted = new ArrayList<SA.State>(states);
+      Collections.sort(sorted, new Comparator<SA.State>()
+      {
+         public int compare(SA.State s1, SA.State s2)
+         {
+            return Double.compare(getF1(s2), getF1(s1));
+         }
+      });
+
+      int numOfGood = Math.max(1, (int) Math.ceil(GAMMA * sorted.size()));
+
+      ParzenEstimator[] l = new ParzenEstimator[sa.size];
+      ParzenEstimator[] g = new ParzenEstimator[sa.size];
+
+      for (int i = 0; i < sa.size; ++i) {
+         double[] good = new double[numOfGood];
+         double[] bad = new double[sorted.size() - numOfGood];
+
+         for (int k = 0; k < sorted.size(); ++k) {
+            double v = toSearchSpace(i, sorted.get(k).value[i].doubleValue());
+            if (k < numOfGood)
+               good[k] = v;
+            else
+               bad[k - numOfGood] = v;
+         }
+
+         l[i] = new ParzenEstimator(good, getLowerLimit(i), getUpperLimit(i));
+         g[i] = new ParzenEstimator(bad, getLowerLimit(i), getUpperLimit(i));
+      }
+
+      // The keys of the states that are evaluated or proposed
+      Set<String> keys = new HashSet<String>();
+      for (SA.State s : states)
+         keys.add(sa.getEnergyCache().getKey(s.value));
+
+      List<Number[]> values = new ArrayList<Number[]>(n);
+
+      for (int k = 0; k < n; ++k) {
+         Number[] bestValue = null;
+         double bestScore = Double.NEGATIVE_INFINITY;
+
+         for (int j = 0; j < NUM_OF_SAMPLES; ++j) {
+            Number[] value = new Number[sa.size];
+            double score = 0;
+
+            for (int i = 0; i < sa.size; ++i) {
+               value[i] = fromSearchSpace(i, l[i].sample(random));
+
+               double x = toSearchSpace(i, value[i].doubleValue());
+               score += l[i].logDensity(x) - g[i].logDensity(x);
+            }
+
+            if (score > bestScore && !keys.contains(sa.getEnergyCache().getKey(value))) {
+               bestScore = score;
+               bestValue = value;
+            }
+         }
+
+         // All the samples have been evaluated before
+         if (bestValue == null)
+            bestValue = getRandomValues(1, random).get(0);
+
+         keys.add(sa.getEnergyCache().getKey(bestValue));
+         values.add(bestValue);
+      }
+
+      return values;
+   }
+
+   /**
+    * @return the coordinate of the value v of parameter i, on which
+    *         the densities are estimated
+    */
+   private double toSearchSpace(int i, double v)
+   {
+      return sa.isLogScale(i) ? Math.log(v) : v;
+   }
+
+   /**
+    * @return the value of parameter i, that is nearest to the coordinate x
+    */
+   private Number fromSearchSpace(int i, double x)
+   {
+      return sa.toValue(i, sa.isLogScale(i) ? Math.exp(x) : x);
+   }
+
+   private double getLowerLimit(int i)
+   {
+      return toSearchSpace(i, sa.aBound[i].doubleValue()) - sa.getRangeExtension(i);
+   }
+
+   private double getUpperLimit(int i)
+   {
+      return toSearchSpace(i, sa.bBound[i].doubleValue()) + sa.getRangeExtension(i);
+   }
+
+   /**
+    * @return the F1 of a state, or -1 if it is not a number
+    */
+   private static double getF1(SA.State s)
+   {
+      double f1 = s.energy.getF1();
+      return Double.isNaN(f1) ? -1 : f1;
+   }
+
+   public Parameter[] getOptimumParameters()
+   {
+      return (best == null) ? null : sa.getParameters(best.value);
+   }
+
+   public Energy getOptimumEnergy() { return (best == null) ? null : best.energy; }
+
+   /**
+    * @return the number of the evaluated states
+    */
+   public int getNumberOfEvaluations() { return states.size(); }
+
+   /**
+    * A mixture of normal distributions, truncated to [a, b], one for each
+    * observed value and one for the prior, which is centered on the range.
+    * The deviation of each distribution is the larger distance to its neighbours.
+    */
+   private static class ParzenEstimator
+   {
+      private double a;
+      private double b;
+      private double[] mu;
+      private double[] sigma;
+      // The probability of [a, b] for each distribution
+      private double[] mass;
+
+      ParzenEstimator(double[] values, double a, double b)
+      {
+         this.a = a;
+         this.b = b;
+
+         int n = values.length;
+         double range = Math.max(b - a, Double.MIN_NORMAL);
+         double minSigma = range / 100;
+
+         mu = new double[n + 1];
+         sigma = new double[n + 1];
+         mass = new double[n + 1];
+
+         System.arraycopy(values, 0, mu, 0, n);
+         Arrays.sort(mu, 0, n);
+
+         for (int k = 0; k < n; ++k) {
+            double left = (k == 0) ? mu[k] - a : mu[k] - mu[k - 1];
+            double right = (k == n - 1) ? b - mu[k] : mu[k + 1] - mu[k];
+
+            sigma[k] = Math.max(minSigma, Math.min(range, Math.max(left, right)));
+         }
+
+         // The prior
+         mu[n] = (a + b) / 2;
+         sigma[n] = range;
+
+         for (int k = 0; k <= n; ++k)
+            mass[k] = Math.max(Double.MIN_NORMAL,
+                    phi((b - mu[k]) / sigma[k]) - phi((a - mu[k]) / sigma[k]));
+      }
+
+      /**
+       * @return a random value of the distribution
+       */
+      double sample(Random random)
+      {
+         int k = random.nextInt(mu.length);
+
+         for (int tries = 0; tries < 100; ++tries) {
+            double x = mu[k] + sigma[k] * random.nextGaussian();
+            if (x >= a && x <= b)
+               return x;
+         }
+
+         return Math.max(a, Math.min(b, mu[k]));
+      }
+
+      /**
+       * @return the logarithm of the density of the distribution at x
+       */
+      double logDensity(double x)
+      {
+         double p = 0;
+
+         for (int k = 0; k < mu.length; ++k) {
+            double z = (x - mu[k]) / sigma[k];
+            p += Math.exp(-0.5 * z * z) / (sigma[k] * Math.sqrt(2 * Math.PI) * mass[k]);
+         }
+
+         return Math.log(p / mu.length + Double.MIN_VALUE);
+      }
+
+      /**
+       * @return the cumulative distribution function of the standard
+       *         normal distribution, by the approximation 7.1.26 of the error
+       *         function of Abramowitz and Stegun
+       */
+      private static double phi(double z)
+      {
+         double x = Math.abs(z) / Math.sqrt(2);
+         double t = 1 / (1 + 0.3275911 * x);
+         double erf = 1 - ((((1.061405429 * t - 1.453152027) * t + 1.421413741) * t
+                 - 0.284496736) * t + 0.254829592) * t * Math.exp(-x * x);
+
+         return (z >= 0) ? (1 + erf) / 2 : (1 - erf) / 2;
+      }
+   }
+}
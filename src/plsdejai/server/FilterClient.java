@@ -0,0 +1,102 @@
+package plsdejai.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+
+/**
+ * A connection to a FilterDaemon. The connection is kept open, so that
+ * the requests do not pay the connection set up. It is not thread safe;
+ * concurrent requests need a client each.
+ */
+public class FilterClient
+{
+   /**
+    * A request that the daemon rejected or failed to serve
+    */
+   public static class FilterException extends IOException
+   {
+      private static final long serialVersionUID = 1L;
+
+      private int status;
+
+      public FilterException(int status, String message)
+      {
+         super(message);
+         this.status = status;
+      }
+
+      /**
+       * @return FilterDaemon.STATUS_BAD_REQUEST or FilterDaemon.STATUS_FAILED
+       */
+      public int getStatus() { return status; }
+   }
+
+   private Socket socket;
+   private DataInputStream in;
+   private DataOutputStream out;
+
+   /**
+    * Connects to a daemon of this host
+    * @param port
+    * @throws IOException
+    */
+   public FilterClient(int port) throws IOException
+   {
+      socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+   }
+
+   /**
+    * Filters an encoded image
+    * @param filterName the name of the filter, or the name of its class
+    * @param params the parameters that are overridden, or null
+    * @param image the encoded image
+    * @param extension the type of the filtered image, e.g. "png"
+    * @return the encoded filtered image
+    * @throws FilterException if the daemon rejected or failed the request
+    * @throws IOException if the connection failed
+    */
+   public byte[] filter(String filterName, Map<String, String> params,
+           byte[] image, String extension) throws IOException
+   {
+      out.writeInt(FilterDaemon.MAGIC);
+      out.writeUTF(filterName);
+      out.writeUTF(extension);
+
+      if (params == null)
+         out.writeInt(0);
+      else {
+         out.writeInt(params.size());
+         for (Map.Entry<String, String> param : params.entrySet()) {
+            out.writeUTF(param.getKey());
+            out.writeUTF(param.getValue());
+         }
+      }
+
+      out.writeInt(image.length);
+      out.write(image);
+      out.flush();
+
+      int status = in.readInt();
+      if (status != FilterDaemon.STATUS_OK)
+         throw new FilterException(status, in.readUTF());
+
+      byte[] filtered = new byte[in.readInt()];
+      in.readFully(filtered);
+
+      return filtered;
+   }
+
+   public void close() throws IOException
+   {
+      socket.close();
+   }
+}
@@ -0,0 +1,332 @@
+package plsdejai.server;
+
+import java.awt.image.ImagingOpException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import plsdejai.StandardBinaryOp;
+import plsdejai.util.Messages;
+
+/**
+ * A daemon that keeps the filters loaded and warmed up, and serves filtering
+ * requests over a loopback TCP connection, so that a request does not pay
+ * the start up of the JVM, of the GUI and of the filters.
+ * Each connection is served by its own thread, and it can carry many
+ * requests, one after the other. The number of open connections is bounded;
+ * the next connections wait to be accepted. The concurrent filtering of the
+ * requests is bounded by the pools of the FilterService.
+ *
+ * The protocol is binary, in the byte order of DataInputStream.
+ * A request is:
+ *    int MAGIC, UTF filter name, UTF type of the filtered image (e.g. "png"),
+ *    int number of parameters, (UTF name, UTF value) for each parameter,
+ *    int length of the image, the bytes of the encoded image
+ * A response is:
+ *    int STATUS_OK, int length of the filtered image, the bytes of the image
+ * or
+ *    int STATUS_BAD_REQUEST or STATUS_FAILED, UTF message
+ * The parameters of the request override the configured parameters.
+ * FilterClient implements the client side of the protocol.
+ */
+public class FilterDaemon
+{
+   public static final int MAGIC = 0x52554C52; // "RULR"
+
+   public static final int STATUS_OK = 0;
+   public static final int STATUS_BAD_REQUEST = 1;
+   public static final int STATUS_FAILED = 2;
+
+   public static final int DEFAULT_PORT = 7077;
+   public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+   // The largest encoded image of a request
+   static final int MAX_IMAGE_LENGTH = 256 << 20;
+   // The largest decoded image of a request, in pixels, e.g. an A3 page at
+   // 600 dpi has 70M pixels. A compressed image of a few MB can decode to far
+   // more, and the filters need several bytes for each pixel
+   static final long MAX_IMAGE_PIXELS = 128L << 20;
+   static final int MAX_PARAMETERS = 64;
+
+   private static final String USAGE =
+           "Usage: FilterDaemon [options]\n"
+           + "  -filter <name>     a filter that is served; it can be repeated.\n"
+           + "                     The default is all the filters\n"
+           + "  -params <file>     a saved parameter file (the filters.pref of the GUI)\n"
+           + "  -subspace <file>   a saved .subspace model of the linear subspace filter\n"
+           + "  -port <port>       the loopback port; the default is " + DEFAULT_PORT + "\n"
+           + "  -workers <n>       the number of requests of a filter that are filtered\n"
+           + "                     concurrently; the default is the number of processors\n"
+           + "  -connections <n>   the number of open connections; the default is "
+           + DEFAULT_MAX_CONNECTIONS + "\n"
+           + "  -warmup <n>        the number of warm up runs of each filter; the default is 5\n";
+
+   private FilterService service;
+   private ServerSocket serverSocket;
+   private ExecutorService connections = Executors.newCachedThreadPool();
+   // A connection holds a thread, and the image of its request
+   private Semaphore connectionSlots;
+
+   public FilterDaemon(FilterService service)
+   {
+      this(service, DEFAULT_MAX_CONNECTIONS);
+   }
+
+   /**
+    * @param service the filters
+    * @param maxConnections the number of connections that are open at a time
+    */
+   public FilterDaemon(FilterService service, int maxConnections)
+   {
+      this.service = service;
+      this.connectionSlots = new Semaphore(Math.max(1, maxConnections));
+   }
+
+   /**
+    * Binds to a loopback port, and starts to accept connections
+    * @param port the port, or 0 for any free port
+    * @throws IOException if the port cannot be bound
+    */
+   public void start(int port) throws IOException
+   {
+      serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+
+      Thread acceptor = new Thread("Filter daemon")
+      {
+         public void run()
+         {
+            while (!serverSocket.isClosed())
+               try {
+                  // The next connections wait in the backlog of the socket
+                  connectionSlots.acquire();
+
+                  final Socket socket;
+                  try {
+                     socket = serverSocket.accept();
+                  } catch (IOException e) {
+                     connectionSlots.release();
+                     throw e;
+                  }
+
+                  connections.execute(new Runnable()
+                  {
+                     public void run()
+                     {
+                        try {
+                           serve(socket);
+                        } finally {
+                           connectionSlots.release();
+                        }
+                     }
+                  });
+
+               } catch (InterruptedException e) {
+                  return;
+               } catch (IOException e) {
+                  if (!serverSocket.isClosed())
+                     System.err.println("Accept failed: " + e.getMessage());
+               }
+         }
+      };
+      acceptor.start();
+   }
+
+   /**
+    * @return the bound port
+    */
+   public int getPort() { return serverSocket.getLocalPort(); }
+
+   /**
+    * Stops accepting connections, and closes the open connections
+    */
+   public void stop()
+   {
+      try {
+         serverSocket.close();
+      } catch (IOException e) { }
+
+      connections.shutdownNow();
+   }
+
+   /**
+    * Serves the requests of a connection, until the client closes it
+    */
+   private void serve(Socket socket)
+   {
+      try {
+         socket.setTcpNoDelay(true);
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+         for (;;) {
+            int magic;
+            try {
+               magic = in.readInt();
+            } catch (EOFException e) {
+               return;
+            }
+
+            if (magic != MAGIC) {
+               writeError(out, STATUS_BAD_REQUEST, "Not a filtering request");
+               return;
+            }
+
+            String name = in.readUTF();
+            String extension = in.readUTF();
+
+            int n = in.readInt();
+            if (n < 0 || n > MAX_PARAMETERS) {
+               writeError(out, STATUS_BAD_REQUEST, "Invalid number of parameters " + n);
+               return;
+            }
+
+            Map<String, String> params = new LinkedHashMap<String, String>();
+            for (int i = 0; i < n; ++i)
+               params.put(in.readUTF(), in.readUTF());
+
+            int length = in.readInt();
+            if (length < 0 || length > MAX_IMAGE_LENGTH) {
+               writeError(out, STATUS_BAD_REQUEST, "Invalid image length " + length);
+               return;
+            }
+
+            byte[] image = new byte[length];
+            in.readFully(image);
+
+            byte[] filtered;
+            try {
+               filtered = service.filter(name, params, image, extension);
+
+            } catch (IllegalArgumentException e) {
+               writeError(out, STATUS_BAD_REQUEST, e.getMessage());
+               continue;
+            } catch (ImagingOpException e) {
+               writeError(out, STATUS_BAD_REQUEST, "Not a binary image");
+               continue;
+            } catch (IOException e) {
+               writeError(out, STATUS_BAD_REQUEST, e.getMessage());
+               continue;
+            } catch (IllegalStateException e) {
+               writeError(out, STATUS_FAILED, e.getMessage());
+               continue;
+            } catch (OutOfMemoryError e) {
+               writeError(out, STATUS_FAILED, "Out of memory");
+               continue;
+            } catch (RuntimeException e) {
+               writeError(out, STATUS_FAILED, String.valueOf(e));
+               continue;
+            }
+
+            out.writeInt(STATUS_OK);
+            out.writeInt(filtered.length);
+            out.write(filtered);
+            out.flush();
+         }
+
+      } catch (InterruptedException e) {
+         // stopped
+      } catch (SocketException e) {
+         // closed
+      } catch (IOException e) {
+         System.err.println("Connection failed: " + e.getMessage());
+
+      } finally {
+         try {
+            socket.close();
+         } catch (IOException e) { }
+      }
+   }
+
+   private static void writeError(DataOutputStream out, int status, String message)
+           throws IOException
+   {
+      out.writeInt(status);
+      out.writeUTF(message == null ? "" : message);
+      out.flush();
+   }
+
+   public static void main(String[] args)
+   {
+      if (System.getProperty("java.awt.headless") == null)
+         System.setProperty("java.awt.headless", "true");
+      Messages.setHeadless(true);
+
+      List<String> names = new ArrayList<String>();
+      File paramFile = null;
+      File subspaceFile = null;
+      int port = DEFAULT_PORT;
+      int workers = Runtime.getRuntime().availableProcessors();
+      int maxConnections = DEFAULT_MAX_CONNECTIONS;
+      int warmUp = 5;
+
+      try {
+         for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+
+            if (arg.equals("-filter"))
+               names.add(next(args, ++i));
+            else if (arg.equals("-params"))
+               paramFile = new File(next(args, ++i));
+            else if (arg.equals("-subspace"))
+               subspaceFile = new File(next(args, ++i));
+            else if (arg.equals("-port"))
+               port = Integer.parseInt(next(args, ++i));
+            else if (arg.equals("-workers"))
+               workers = Integer.parseInt(next(args, ++i));
+            else if (arg.equals("-connections"))
+               maxConnections = Integer.parseInt(next(args, ++i));
+            else if (arg.equals("-warmup"))
+               warmUp = Integer.parseInt(next(args, ++i));
+            else if (arg.equals("-h") || arg.equals("-help")) {
+               System.err.print(USAGE);
+               return;
+            } else
+               throw new IllegalArgumentException("Unknown option '" + arg + "'");
+         }
+
+         List<StandardBinaryOp> filters =
+                 FilterService.createFilters(names, paramFile, subspaceFile);
+
+         FilterService service = new FilterService(filters, workers);
+         service.warmUp(warmUp);
+
+         FilterDaemon daemon = new FilterDaemon(service, maxConnections);
+         daemon.start(port);
+         System.err.println("Serving on 127.0.0.1:" + daemon.getPort());
+
+      } catch (NumberFormatException e) {
+         System.err.println("Error: invalid number " + e.getMessage());
+         System.err.print(USAGE);
+         System.exit(2);
+      } catch (IllegalArgumentException e) {
+         System.err.println("Error: " + e.getMessage());
+         System.err.print(USAGE);
+         System.exit(2);
+      } catch (IOException e) {
+         System.err.println("Error: " + e.getMessage());
+         System.exit(3);
+      }
+   }
+
+   private static String next(String[] args, int i)
+   {
+      if (i >= args.length)
+         throw new IllegalArgumentException("'" + args[i - 1] + "' needs a value");
+
+      return args[i];
+   }
+}
@@ -0,0 +1,401 @@
+package plsdejai.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImagingOpException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import plsdejai.Parameter;
+import plsdejai.StandardBinaryOp;
+import plsdejai.io.ImageIO;
+import plsdejai.util.Json;
+import plsdejai.util.Messages;
+import plsdejai.widgets.NumericTextField;
+
+/**
+ * An HTTP service of the filters:
+ *    GET  /filters               lists the filters and the bounds of their parameters, as JSON
+ *    POST /filter/{filterName}   filters the image of the request body, and
+ *                                returns the filtered image
+ * The query of a filtering request overrides the parameters of the filter,
+ * e.g. /filter/LowerProfileOfZeroTriadsOp?part=40&tolerance=2, and its
+ * "format" sets the type of the filtered image; the default is png.
+ *
+ * Each request runs on its own thread, so slow clients do not block the
+ * others, but the filtering itself is bounded by a semaphore of the number
+ * of processors; the decoding and encoding of the images are not. The number
+ * of filtering requests that are served at a time is bounded too, because each
+ * of them holds its image; the next ones are refused with 503.
+ */
+public class FilterHttpServer
+{
+   public static final int DEFAULT_PORT = 8077;
+   public static final int DEFAULT_MAX_REQUESTS = 32;
+
+   // The query parameter for the type of the filtered image
+   public static final String FORMAT = "format";
+
+   private static final String USAGE =
+           "Usage: FilterHttpServer [options]\n"
+           + "  -filter <name>     a filter that is served; it can be repeated.\n"
+           + "                     The default is all the filters\n"
+           + "  -params <file>     a saved parameter file (the filters.pref of the GUI)\n"
+           + "  -subspace <file>   a saved .subspace model of the linear subspace filter\n"
+           + "  -host <address>    the bound address; the default is 127.0.0.1\n"
+           + "  -port <port>       the port; the default is " + DEFAULT_PORT + "\n"
+           + "  -cpus <n>          the number of requests that are filtered concurrently;\n"
+           + "                     the default is the number of processors\n"
+           + "  -connections <n>   the number of filtering requests that are served at a\n"
+           + "                     time; the default is " + DEFAULT_MAX_REQUESTS + "\n"
+           + "  -warmup <n>        the number of warm up runs of each filter; the default is 5\n";
+
+   private FilterService service;
+   private Semaphore cpus;
+   private Semaphore requests;
+   private HttpServer server;
+   private ExecutorService executor;
+
+   /**
+    * @param service the filters
+    * @param numOfCpus the number of requests that are filtered concurrently
+    */
+   public FilterHttpServer(FilterService service, int numOfCpus)
+   {
+      this(service, numOfCpus, DEFAULT_MAX_REQUESTS);
+   }
+
+   /**
+    * @param service the filters
+    * @param numOfCpus the number of requests that are filtered concurrently
+    * @param maxRequests the number of filtering requests that are served at a time
+    */
+   public FilterHttpServer(FilterService service, int numOfCpus, int maxRequests)
+   {
+      this.service = service;
+      this.cpus = new Semaphore(Math.max(1, numOfCpus), true);
+      this.requests = new Semaphore(Math.max(1, maxRequests));
+   }
+
+   /**
+    * Binds to the address, and starts to serve the requests
+    * @param address the address, e.g. new InetSocketAddress("127.0.0.1", 0)
+    *                for any free port of the loopback interface
+    * @throws IOException if the address cannot be bound
+    */
+   public void start(InetSocketAddress address) throws IOException
+   {
+      server = HttpServer.create(address, 0);
+
+      server.createContext("/filters", new HttpHandler()
+      {
+         public void handle(HttpExchange exchange) throws IOException
+         {
+            try {
+               if (!exchange.getRequestMethod().equals("GET"))
+                  sendError(exchange, 405, "Use GET");
+               else if (!exchange.getRequestURI().getPath().equals("/filters"))
+                  sendError(exchange, 404, "Not found");
+               else
+                  send(exchange, 200, "application/json", listFilters().getBytes("UTF-8"));
+            } finally {
+               exchange.close();
+            }
+         }
+      });
+
+      server.createContext("/filter/", new HttpHandler()
+      {
+         public void handle(HttpExchange exchange) throws IOException
+         {
+            try {
+               if (!exchange.getRequestMethod().equals("POST"))
+                  sendError(exchange, 405, "Use POST");
+               else if (!requests.tryAcquire())
+                  sendError(exchange, 503, "Too many requests");
+               else
+                  try {
+                     filter(exchange);
+                  } finally {
+                     requests.release();
+                  }
+            } finally {
+               exchange.close();
+            }
+         }
+      });
+
+      // A thread for each request. Virtual threads would be cheaper, but they
+      // need JDK 21 and the application is built for JDK 17. The filtering
+      // waits on the cpus semaphore anyway, and the refused requests end at
+      // once, so a cached pool of platform threads is enough
+      executor = Executors.newCachedThreadPool();
+      server.setExecutor(executor);
+      server.start();
+   }
+
+   /**
+    * @return the bound port
+    */
+   public int getPort() { return server.getAddress().getPort(); }
+
+   /**
+    * Stops the server; the requests in progress are given a second to complete
+    */
+   public void stop()
+   {
+      server.stop(1);
+      executor.shutdownNow();
+   }
+
+   private void filter(HttpExchange exchange) throws IOException
+   {
+      String name = URLDecoder.decode(
+              exchange.getRequestURI().getRawPath().substring("/filter/".length()), "UTF-8");
+      if (service.getFilter(name) == null) {
+         sendError(exchange, 404, "Unknown filter '" + name + "'");
+         return;
+      }
+
+      Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+      String extension = params.containsKey(FORMAT) ? params.remove(FORMAT) : "png";
+
+      byte[] image = readBody(exchange.getRequestBody());
+      if (image == null) {
+         sendError(exchange, 413, "The image is larger than "
+                 + (FilterDaemon.MAX_IMAGE_LENGTH >> 20) + " MB");
+         return;
+      }
+
+      byte[] filtered;
+      try {
+         BufferedImage bi = ImageIO.decode(image, FilterDaemon.MAX_IMAGE_PIXELS);
+
+         cpus.acquire();
+         try {
+            bi = service.filter(name, params, bi);
+         } finally {
+            cpus.release();
+         }
+
+         filtered = ImageIO.encode(bi, extension);
+
+      } catch (IllegalArgumentException e) {
+         sendError(exchange, 400, e.getMessage());
+         return;
+      } catch (ImagingOpException e) {
+         sendError(exchange, 400, "Not a binary image");
+         return;
+      } catch (IOException e) {
+         sendError(exchange, 400, e.getMessage());
+         return;
+      } catch (IllegalStateException e) {
+         sendError(exchange, 503, e.getMessage());
+         return;
+      } catch (InterruptedException e) {
+         sendError(exchange, 503, "The server is stopped");
+         return;
+      } catch (OutOfMemoryError e) {
+         sendError(exchange, 500, "Out of memory");
+         return;
+      } catch (RuntimeException e) {
+         sendError(exchange, 500, String.valueOf(e));
+         return;
+      }
+
+      send(exchange, 200, "image/" + (extension.equalsIgnoreCase("jpg") ? "jpeg" : extension.toLowerCase()),
+              filtered);
+   }
+
+   /**
+    * @return the filters and their parameters as a JSON object
+    */
+   private String listFilters()
+   {
+      StringBuilder json = new StringBuilder("{\"filters\": [");
+
+      List<StandardBinaryOp> filters = service.getFilters();
+      for (int i = 0; i < filters.size(); ++i) {
+         StandardBinaryOp op = filters.get(i);
+         if (i > 0)
+            json.append(", ");
+
+         json.append("{\"name\": ").append(Json.quote(op.getName()))
+                 .append(", \"class\": ").append(Json.quote(op.getClass().getSimpleName()))
+                 .append(", \"parameters\": [");
+
+         Parameter[] params = op.getParameters();
+         for (int k = 0; params != null && k < params.length; ++k) {
+            Parameter param = params[k];
+            if (k > 0)
+               json.append(", ");
+
+            json.append("{\"name\": ").append(Json.quote(param.name))
+                    .append(", \"type\": ").append(param.type == NumericTextField.INTEGER
+                    ? "\"integer\"" : "\"double\"")
+                    .append(", \"min\": ").append(toJson(param.min))
+                    .append(", \"max\": ").append(toJson(param.max))
+                    .append(", \"value\": ").append(toJson(param.value)).append('}');
+         }
+         json.append("]}");
+      }
+
+      return json.append("]}\n").toString();
+   }
+
+   private static String toJson(Number n)
+   {
+      if (n == null)
+         return "null";
+
+      if (n instanceof Integer || n instanceof Long)
+         return n.toString();
+
+      return Json.number(n.doubleValue());
+   }
+
+   /**
+    * @return the decoded name=value pairs of a raw query
+    */
+   private static Map<String, String> parseQuery(String query) throws IOException
+   {
+      Map<String, String> params = new LinkedHashMap<String, String>();
+      if (query == null || query.length() == 0)
+         return params;
+
+      for (String pair : query.split("&")) {
+         if (pair.length() == 0)
+            continue;
+
+         int k = pair.indexOf('=');
+         if (k < 0)
+            params.put(URLDecoder.decode(pair, "UTF-8"), "");
+         else
+            params.put(URLDecoder.decode(pair.substring(0, k), "UTF-8"),
+                    URLDecoder.decode(pair.substring(k + 1), "UTF-8"));
+      }
+
+      return params;
+   }
+
+   /**
+    * @return the body, or null if it is larger than the largest image
+    */
+   private static byte[] readBody(InputStream in) throws IOException
+   {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[65536];
+
+      for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+         if (body.size() + n > FilterDaemon.MAX_IMAGE_LENGTH)
+            return null;
+         body.write(buffer, 0, n);
+      }
+
+      return body.toByteArray();
+   }
+
+   private static void send(HttpExchange exchange, int code, String contentType, byte[] body)
+           throws IOException
+   {
+      exchange.getResponseHeaders().set("Content-Type", contentType);
+      exchange.sendResponseHeaders(code, body.length);
+
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+   }
+
+   private static void sendError(HttpExchange exchange, int code, String message)
+           throws IOException
+   {
+      send(exchange, code, "application/json",
+              ("{\"error\": " + Json.quote(message) + "}\n").getBytes("UTF-8"));
+   }
+
+   public static void main(String[] args)
+   {
+      if (System.getProperty("java.awt.headless") == null)
+         System.setProperty("java.awt.headless", "true");
+      Messages.setHeadless(true);
+
+      List<String> names = new ArrayList<String>();
+      File paramFile = null;
+      File subspaceFile = null;
+      String host = "127.0.0.1";
+      int port = DEFAULT_PORT;
+      int numOfCpus = Runtime.getRuntime().availableProcessors();
+      int maxRequests = DEFAULT_MAX_REQUESTS;
+      int warmUp = 5;
+
+      try {
+         for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+
+            if (arg.equals("-filter"))
+               names.add(next(args, ++i));
+            else if (arg.equals("-params"))
+               paramFile = new File(next(args, ++i));
+            else if (arg.equals("-subspace"))
+               subspaceFile = new File(next(args, ++i));
+            else if (arg.equals("-host"))
+               host = next(args, ++i);
+            else if (arg.equals("-port"))
+               port = Integer.parseInt(next(args, ++i));
+            else if (arg.equals("-cpus"))
+               numOfCpus = Integer.parseInt(next(args, ++i));
+            else if (arg.equals("-connections"))
+               maxRequests = Integer.parseInt(next(args, ++i));
+            else if (arg.equals("-warmup"))
+               warmUp = Integer.parseInt(next(args, ++i));
+            else if (arg.equals("-h") || arg.equals("-help")) {
+               System.err.print(USAGE);
+               return;
+            } else
+               throw new IllegalArgumentException("Unknown option '" + arg + "'");
+         }
+
+         // A clone of each filter for each cpu
+         FilterService service = new FilterService(
+                 FilterService.createFilters(names, paramFile, subspaceFile), numOfCpus);
+         service.warmUp(warmUp);
+
+         FilterHttpServer server = new FilterHttpServer(service, numOfCpus, maxRequests);
+         server.start(new InetSocketAddress(host, port));
+         System.err.println("Serving on http://" + host + ":" + server.getPort() + "/");
+
+      } catch (NumberFormatException e) {
+         System.err.println("Error: invalid number " + e.getMessage());
+         System.err.print(USAGE);
+         System.exit(2);
+      } catch (IllegalArgumentException e) {
+         System.err.println("Error: " + e.getMessage());
+         System.err.print(USAGE);
+         System.exit(2);
+      } catch (IOException e) {
+         System.err.println("Error: " + e.getMessage());
+         System.exit(3);
+      }
+   }
+
+   private static String next(String[] args, int i)
+   {
+      if (i >= args.length)
+         throw new IllegalArgumentException("'" + args[i - 1] + "' needs a value");
+
+      return args[i];
+   }
+}
@@ -0,0 +1,322 @@
+package plsdejai.server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import plsdejai.StandardBinaryOp;
+import plsdejai.cli.Filters;
+import plsdejai.io.ImageIO;
+import plsdejai.util.Messages;
+
+/**
+ * Checks that the FilterDaemon and the FilterHttpServer return the same
+ * images as the filters themselves, when they serve concurrent requests.
+ * Both are started on free loopback ports, with the same FilterService;
+ * a number of clients send requests of each filter at the same time, to the
+ * daemon and to the HTTP server in turn, and each filtered image is compared,
+ * pixel by pixel, with the image that filter() returns for the same page.
+ * The requests may override parameters, so that the restoring of the
+ * configured values is checked too.
+ * The exit status is 0 if all the images are equal, and 1 otherwise.
+ */
+public class FilterSelfCheck
+{
+   private static final String USAGE =
+           "Usage: FilterSelfCheck [options]\n"
+           + "  -filter <name>     a filter that is checked; it can be repeated.\n"
+           + "                     The default is all the filters\n"
+           + "  -params <file>     a saved parameter file (the filters.pref of the GUI)\n"
+           + "  -subspace <file>   a saved .subspace model of the linear subspace filter\n"
+           + "  -param name=value  a parameter that the requests override; it can be\n"
+           + "                     repeated, and it applies to all the checked filters\n"
+           + "  -image <file>      the binary page that is filtered; the default is a\n"
+           + "                     synthetic page\n"
+           + "  -clients <n>       the number of concurrent clients; the default is 4\n"
+           + "  -requests <n>      the number of requests of each client for each filter;\n"
+           + "                     the default is 4\n";
+
+   private int daemonPort;
+   private int httpPort;
+
+   /**
+    * @param daemonPort the port of a FilterDaemon of this host
+    * @param httpPort the port of a FilterHttpServer of this host
+    */
+   public FilterSelfCheck(int daemonPort, int httpPort)
+   {
+      this.daemonPort = daemonPort;
+      this.httpPort = httpPort;
+   }
+
+   /**
+    * Filters a page concurrently through the daemon and the HTTP server
+    * @param op the configured filter
+    * @param params the parameters that the requests override, or null
+    * @param page the encoded page, as png
+    * @param expected the image that filter() returns for the page
+    * @param numOfClients the number of concurrent clients
+    * @param numOfRequests the number of requests of each client
+    * @return the number of filtered images that are not equal to expected
+    */
+   public int check(final StandardBinaryOp op, final Map<String, String> params,
+           final byte[] page, final BufferedImage expected, int numOfClients, final int numOfRequests) throws InterruptedException
+   {
+      ExecutorService clients = Executors.newFixedThreadPool(numOfClients);
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+      for (int c = 0; c < numOfClients; ++c) {
+         final int client = c;
+         results.add(clients.submit(new Callable<Integer>()
+         {
+            public Integer call() throws IOException
+            {
+               int mismatches = 0;
+               FilterClient daemon = new FilterClient(daemonPort);
+
+               try {
+                  for (int i = 0; i < numOfRequests; ++i) {
+                     // The clients start on different servers
+                     boolean isHttp = (client + i) % 2 == 1;
+                     byte[] filtered = isHttp
+                             ? post(op.getClass().getSimpleName(), params, page)
+                             : daemon.filter(op.getName(), params, page, "png");
+
+                     if (!isEqual(expected, ImageIO.decode(filtered))) {
+                        System.err.println("Client " + client + ": the image of request " + i
+                                + " of '" + op.getName() + "' from the "
+                                + (isHttp ? "HTTP server" : "daemon") + " is different");
+                        ++mismatches;
+                     }
+                  }
+               } finally {
+                  daemon.close();
+               }
+
+               return mismatches;
+            }
+         }));
+      }
+
+      int mismatches = 0;
+      try {
+         for (Future<Integer> result : results)
+            try {
+               mismatches += result.get();
+            } catch (ExecutionException e) {
+               System.err.println("A request of '" + op.getName() + "' failed: " + e.getCause());
+               mismatches += numOfRequests;
+            }
+      } finally {
+         clients.shutdownNow();
+      }
+
+      return mismatches;
+   }
+
+   /**
+    * Sends a filtering request to the HTTP server
+    * @return the filtered image
+    * @throws IOException if the request failed
+    */
+   private byte[] post(String filterName, Map<String, String> params, byte[] image)
+           throws IOException
+   {
+      StringBuilder query = new StringBuilder();
+      if (params != null)
+         for (Map.Entry<String, String> param : params.entrySet())
+            query.append(query.length() == 0 ? '?' : '&')
+                    .append(URLEncoder.encode(param.getKey(), "UTF-8")).append('=')
+                    .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+
+      URL url = new URL("http://127.0.0.1:" + httpPort + "/filter/"
+              + URLEncoder.encode(filterName, "UTF-8") + query);
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(image.length);
+
+      OutputStream out = connection.getOutputStream();
+      out.write(image);
+      out.close();
+
+      int code = connection.getResponseCode();
+      if (code != HttpURLConnection.HTTP_OK)
+         throw new IOException("HTTP " + code + ": "
+                 + new String(readAll(connection.getErrorStream()), "UTF-8").trim());
+
+      return readAll(connection.getInputStream());
+   }
+
+   private static byte[] readAll(InputStream in) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      if (in == null)
+         return bytes.toByteArray();
+
+      try {
+         byte[] buffer = new byte[65536];
+         for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+            bytes.write(buffer, 0, n);
+      } finally {
+         in.close();
+      }
+
+      return bytes.toByteArray();
+   }
+
+   /**
+    * @return true if the images have the same size and the same pixels
+    */
+   private static boolean isEqual(BufferedImage a, BufferedImage b)
+   {
+      if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+         return false;
+
+      int width = a.getWidth();
+      int[] rowA = new int[width];
+      int[] rowB = new int[width];
+      for (int y = 0; y < a.getHeight(); ++y) {
+         a.getRGB(0, y, width, 1, rowA, 0, width);
+         b.getRGB(0, y, width, 1, rowB, 0, width);
+         for (int x = 0; x < width; ++x)
+            if (rowA[x] != rowB[x])
+               return false;
+      }
+
+      return true;
+   }
+
+   public static void main(String[] args)
+   {
+      if (System.getProperty("java.awt.headless") == null)
+         System.setProperty("java.awt.headless", "true");
+      Messages.setHeadless(true);
+
+      List<String> names = new ArrayList<String>();
+      File paramFile = null;
+      File subspaceFile = null;
+      File imageFile = null;
+      Map<String, String> params = new LinkedHashMap<String, String>();
+      int numOfClients = 4;
+      int numOfRequests = 4;
+
+      FilterDaemon daemon = null;
+      FilterHttpServer server = null;
+      int mismatches = 0;
+
+      try {
+         for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+
+            if (arg.equals("-filter"))
+               names.add(next(args, ++i));
+            else if (arg.equals("-params"))
+               paramFile = new File(next(args, ++i));
+            else if (arg.equals("-subspace"))
+               subspaceFile = new File(next(args, ++i));
+            else if (arg.equals("-param")) {
+               String param = next(args, ++i);
+               int k = param.indexOf('=');
+               if (k <= 0)
+                  throw new IllegalArgumentException("'" + param + "' is not name=value");
+               params.put(param.substring(0, k), param.substring(k + 1));
+            } else if (arg.equals("-image"))
+               imageFile = new File(next(args, ++i));
+            else if (arg.equals("-clients"))
+               numOfClients = Math.max(1, Integer.parseInt(next(args, ++i)));
+            else if (arg.equals("-requests"))
+               numOfRequests = Math.max(1, Integer.parseInt(next(args, ++i)));
+            else if (arg.equals("-h") || arg.equals("-help")) {
+               System.err.print(USAGE);
+               return;
+            } else
+               throw new IllegalArgumentException("Unknown option '" + arg + "'");
+         }
+
+         BufferedImage page;
+         if (imageFile == null)
+            page = FilterService.createWarmUpPage();
+         else if ((page = ImageIO.fileLoad(imageFile)) == null)
+            throw new IOException("'" + imageFile + "' cannot be loaded");
+         byte[] encodedPage = ImageIO.encode(page, "png");
+
+         // A clone of each filter for each client, so that the requests
+         // are filtered concurrently
+         FilterService service = new FilterService(
+                 FilterService.createFilters(names, paramFile, subspaceFile), numOfClients);
+
+         daemon = new FilterDaemon(service);
+         daemon.start(0);
+         server = new FilterHttpServer(service, numOfClients);
+         server.start(new InetSocketAddress("127.0.0.1", 0));
+
+         FilterSelfCheck selfCheck = new FilterSelfCheck(daemon.getPort(), server.getPort());
+
+         for (StandardBinaryOp op : service.getFilters()) {
+            StandardBinaryOp reference = op.clone();
+            for (Map.Entry<String, String> param : params.entrySet())
+               Filters.setParameter(reference, param.getKey(), param.getValue());
+
+            BufferedImage expected = reference.filter(page, null);
+            if (expected == null) {
+               System.err.println("Skipped '" + op.getName() + "': it is not ready");
+               continue;
+            }
+
+            long t = System.currentTimeMillis();
+            int n = selfCheck.check(op, params, encodedPage, expected, numOfClients, numOfRequests);
+            mismatches += n;
+
+            System.err.println((n == 0 ? "OK     " : "FAILED ") + "'" + op.getName() + "': "
+                    + (numOfClients * numOfRequests - n) + " of " + numOfClients * numOfRequests
+                    + " images are equal (" + numOfClients + " clients, "
+                    + (System.currentTimeMillis() - t) + " ms)");
+         }
+
+      } catch (NumberFormatException e) {
+         System.err.println("Error: invalid number " + e.getMessage());
+         System.err.print(USAGE);
+         System.exit(2);
+      } catch (IllegalArgumentException e) {
+         System.err.println("Error: " + e.getMessage());
+         System.err.print(USAGE);
+         System.exit(2);
+      } catch (IOException e) {
+         System.err.println("Error: " + e.getMessage());
+         System.exit(3);
+      } catch (InterruptedException e) {
+         System.exit(3);
+      } finally {
+         if (daemon != null)
+            daemon.stop();
+         if (server != null)
+            server.stop();
+      }
+
+      System.exit(mismatches == 0 ? 0 : 1);
+   }
+
+   private static String next(String[] args, int i)
+   {
+      if (i >= args.length)
+         throw new IllegalArgumentException("'" + args[i - 1] + "' needs a value");
+
+      return args[i];
+   }
+}
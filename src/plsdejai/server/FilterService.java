@@ -0,0 +1,240 @@
+package plsdejai.server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import plsdejai.Parameter;
+import plsdejai.StandardBinaryOp;
+import plsdejai.cli.Filters;
+import plsdejai.filter.linearsubspace.LSubspaceOfCentralMomentsOp;
+import plsdejai.io.ImageIO;
+
+/**
+ * Keeps a set of configured filters loaded, with a pool of clones of each
+ * filter, so that filtering requests are served concurrently without the cost
+ * of creating and configuring the filters. The filters can be warmed up,
+ * so that the first requests do not run interpreted code.
+ *
+ * A request may override the parameters of a filter; the overridden values
+ * are valid only for the request.
+ */
+public class FilterService
+{
+   // The size of the image that is filtered for the warm up
+   private static final int WARM_UP_WIDTH = 600;
+   private static final int WARM_UP_HEIGHT = 800;
+
+   // The configured filters, by name
+   private Map<String, StandardBinaryOp> filters = new LinkedHashMap<String, StandardBinaryOp>();
+   // The clones of each filter, that are not in use
+   private Map<String, BlockingQueue<StandardBinaryOp>> pools =
+           new LinkedHashMap<String, BlockingQueue<StandardBinaryOp>>();
+
+   /**
+    * @param ops the configured filters
+    * @param poolSize the number of clones of each filter, i.e. the number of
+    *                 requests of a filter that are served concurrently
+    */
+   public FilterService(List<StandardBinaryOp> ops, int poolSize)
+   {
+      for (StandardBinaryOp op : ops) {
+         BlockingQueue<StandardBinaryOp> pool = new LinkedBlockingQueue<StandardBinaryOp>();
+         for (int i = 0; i < Math.max(1, poolSize); ++i)
+            pool.add(op.clone());
+
+         filters.put(op.getName(), op);
+         pools.put(op.getName(), pool);
+      }
+   }
+
+   /**
+    * Creates and configures the filters of a service
+    * @param names the names of the filters; if it is empty, all the filters
+    * @param paramFile a saved parameter file, or null for the default values.
+    *                  A filter that has no parameters in it keeps the defaults
+    * @param subspaceFile a saved subspace model of the linear subspace filter, or null
+    * @return the filters
+    * @throws IllegalArgumentException if a filter is unknown
+    * @throws IOException if the subspace model cannot be loaded
+    */
+   public static List<StandardBinaryOp> createFilters(List<String> names,
+           File paramFile, File subspaceFile) throws IOException
+   {
+      List<StandardBinaryOp> ops = new ArrayList<StandardBinaryOp>();
+      if (names.isEmpty())
+         ops.addAll(Filters.createDefaultFilters());
+      else
+         for (String name : names) {
+            StandardBinaryOp op = Filters.createFilter(name);
+            if (op == null)
+               throw new IllegalArgumentException("Unknown filter '" + name + "'");
+            ops.add(op);
+         }
+
+      for (StandardBinaryOp op : ops) {
+         if (paramFile != null)
+            try {
+               Filters.loadParameters(op, paramFile);
+            } catch (IOException e) {
+               System.err.println("Warning: " + e.getMessage() + "; the defaults are used");
+            }
+
+         if (subspaceFile != null && op instanceof LSubspaceOfCentralMomentsOp)
+            Filters.loadSubspace(op, subspaceFile);
+      }
+
+      return ops;
+   }
+
+   /**
+    * @return the configured filters
+    */
+   public List<StandardBinaryOp> getFilters()
+   {
+      return new ArrayList<StandardBinaryOp>(filters.values());
+   }
+
+   /**
+    * @param name the name of a filter, or the name of its class, case insensitive
+    * @return the configured filter, or null
+    */
+   public StandardBinaryOp getFilter(String name)
+   {
+      for (StandardBinaryOp op : filters.values())
+         if (op.getName().equalsIgnoreCase(name)
+                 || op.getClass().getSimpleName().equalsIgnoreCase(name))
+            return op;
+
+      return null;
+   }
+
+   /**
+    * Filters a synthetic page, so that the filtering code is compiled before
+    * the first request. The runs are distributed to the clones of a filter,
+    * so that each clone runs at least once
+    * @param iterations the number of times that each filter filters the page
+    */
+   public void warmUp(int iterations)
+   {
+      BufferedImage page = createWarmUpPage();
+
+      for (String name : pools.keySet()) {
+         long t = System.currentTimeMillis();
+         List<StandardBinaryOp> clones = new ArrayList<StandardBinaryOp>(pools.get(name));
+
+         try {
+            for (int i = 0; i < Math.max(iterations, clones.size()); ++i)
+               clones.get(i % clones.size()).filter(page, null);
+
+         } catch (RuntimeException e) {
+            System.err.println("Warm up of '" + name + "' failed: " + e);
+         }
+
+         System.err.println("Warmed up '" + name + "' in "
+                 + (System.currentTimeMillis() - t) + " ms");
+      }
+   }
+
+   /**
+    * @return a binary page with rule lines and random strokes
+    */
+   static BufferedImage createWarmUpPage()
+   {
+      BufferedImage page = new BufferedImage(WARM_UP_WIDTH, WARM_UP_HEIGHT,
+              BufferedImage.TYPE_BYTE_BINARY);
+      Graphics2D g = page.createGraphics();
+      Random random = new Random(0);
+
+      g.setColor(Color.WHITE);
+      g.fillRect(0, 0, WARM_UP_WIDTH, WARM_UP_HEIGHT);
+      g.setColor(Color.BLACK);
+
+      for (int y = 40; y < WARM_UP_HEIGHT; y += 40) {
+         g.fillRect(0, y, WARM_UP_WIDTH, 2);
+
+         for (int x = 10; x < WARM_UP_WIDTH - 30; x += 12 + random.nextInt(10))
+            g.drawArc(x, y - 25 + random.nextInt(10), 8 + random.nextInt(12),
+                    10 + random.nextInt(20), random.nextInt(360), 180 + random.nextInt(180));
+      }
+      g.dispose();
+
+      return page;
+   }
+
+   /**
+    * Filters an image
+    * @param name the name of the filter
+    * @param params the parameters that are overridden, by name, or null
+    * @param bi
+    * @return the filtered image
+    * @throws IllegalArgumentException if there is no such filter, or the
+    *         parameters are not valid
+    * @throws IllegalStateException if the filter is not ready
+    * @throws java.awt.image.ImagingOpException if the image is not binary
+    * @throws InterruptedException
+    */
+   public BufferedImage filter(String name, Map<String, String> params, BufferedImage bi)
+           throws InterruptedException
+   {
+      StandardBinaryOp prototype = getFilter(name);
+      if (prototype == null)
+         throw new IllegalArgumentException("Unknown filter '" + name + "'");
+
+      if (params != null && !params.isEmpty() && prototype instanceof LSubspaceOfCentralMomentsOp)
+         throw new IllegalArgumentException("The parameters of '" + prototype.getName()
+                 + "' are defined by its subspace model");
+
+      BlockingQueue<StandardBinaryOp> pool = pools.get(prototype.getName());
+      StandardBinaryOp op = pool.take();
+
+      try {
+         if (params != null)
+            for (Map.Entry<String, String> param : params.entrySet())
+               Filters.setParameter(op, param.getKey(), param.getValue());
+
+         BufferedImage filtered = op.filter(bi, null);
+         if (filtered == null)
+            throw new IllegalStateException("The filter '" + prototype.getName() + "' is not ready");
+
+         return filtered;
+
+      } finally {
+         // Restore the configured values
+         if (params != null && !params.isEmpty())
+            for (Parameter param : prototype.getParameters())
+               op.setParameterValue(param.name, param.value);
+
+         pool.put(op);
+      }
+   }
+
+   /**
+    * Filters an encoded image
+    * @param name the name of the filter
+    * @param params the parameters that are overridden, by name, or null
+    * @param image the encoded image
+    * @param extension the type of the filtered image, e.g. "png"
+    * @return the encoded filtered image
+    * @throws IOException if the image cannot be decoded or encoded, or it has
+    *         more than FilterDaemon.MAX_IMAGE_PIXELS pixels
+    * @see #filter(String, Map, BufferedImage)
+    */
+   public byte[] filter(String name, Map<String, String> params, byte[] image, String extension)
+           throws IOException, InterruptedException
+   {
+      if (getFilter(name) == null)
+         throw new IllegalArgumentException("Unknown filter '" + name + "'");
+
+      return ImageIO.encode(filter(name, params,
+              ImageIO.decode(image, FilterDaemon.MAX_IMAGE_PIXELS)), extension);
+   }
+}
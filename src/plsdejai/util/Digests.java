@@ -0,0 +1,95 @@
+package plsdejai.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for the SHA-1 digests that identify images, files and keys,
+ * e.g. in the names of the cache files and in the manifests of the batches.
+ * All digests are written in lower case hex digits.
+ */
+public class Digests
+{
+   /**
+    * @return a new SHA-1 digest
+    */
+   public static MessageDigest sha1()
+   {
+      try {
+         return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+         // Every Java platform supports SHA-1
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * @param text
+    * @return the hex SHA-1 of the UTF-8 bytes of the text
+    */
+   public static String sha1(String text)
+   {
+      try {
+         return toHex(sha1().digest(text.getBytes("UTF-8")));
+      } catch (UnsupportedEncodingException e) {
+         // Every Java platform supports UTF-8
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * @param f
+    * @return the hex SHA-1 of the content of a file
+    * @throws IOException
+    */
+   public static String sha1(File f) throws IOException
+   {
+      MessageDigest md = sha1();
+
+      InputStream in = new FileInputStream(f);
+      try {
+         byte[] buffer = new byte[65536];
+         for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+            md.update(buffer, 0, n);
+      } finally {
+         in.close();
+      }
+
+      return toHex(md.digest());
+   }
+
+   /**
+    * @param digest
+    * @return the digest in lower case hex digits
+    */
+   public static String toHex(byte[] digest)
+   {
+      StringBuilder hex = new StringBuilder(2 * digest.length);
+      for (int i = 0; i < digest.length; ++i)
+         hex.append(String.format("%02x", digest[i] & 0xff));
+
+      return hex.toString();
+   }
+
+   /**
+    * The identity is cheaper than a digest of the content, as the file is not read
+    * @param f an image file
+    * @return an identity of the image of the file, that changes if the file changes
+    */
+   public static String getImageId(File f)
+   {
+      String path;
+      try {
+         path = f.getCanonicalPath();
+      } catch (IOException e) {
+         path = f.getAbsolutePath();
+      }
+
+      return path + "|" + f.length() + "|" + f.lastModified();
+   }
+}
@@ -0,0 +1,37 @@
+package plsdejai.util;
+
+/**
+ * Helpers for writing JSON text, for the files and the output that are
+ * read by other programs
+ */
+public class Json
+{
+   /**
+    * @return the string as a JSON string literal
+    */
+   public static String quote(String s)
+   {
+      if (s == null)
+         return "null";
+
+      StringBuilder q = new StringBuilder("\"");
+      for (int k = 0; k < s.length(); ++k) {
+         char c = s.charAt(k);
+         if (c == '"' || c == '\\')
+            q.append('\\').append(c);
+         else if (c < 0x20)
+            q.append(String.format("\\u%04x", (int) c));
+         else
+            q.append(c);
+      }
+      return q.append('"').toString();
+   }
+
+   /**
+    * @return the number, or null if it is not a finite number, which JSON does not allow
+    */
+   public static String number(double x)
+   {
+      return (Double.isNaN(x) || Double.isInfinite(x)) ? "null" : String.valueOf(x);
+   }
+}
@@ -56,7 +56,7 @@ public class Logger
                        );
                
             } catch (IOException evt) {
-               JOptionPane.showConfirmDialog(null, "Cannot create log file '"
+               Messages.show("Cannot create log file '"
                        + logFilename +"'", "Directory access denied", JOptionPane.ERROR_MESSAGE);
                if (fileLog != null)
                   fileLog.close();
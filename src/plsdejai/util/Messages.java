@@ -0,0 +1,64 @@
+package plsdejai.util;
+
+import java.awt.GraphicsEnvironment;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * Shows messages to the user: in a dialog, or on stderr if there is no
+ * display, for example when the program runs on a server (see plsdejai.cli).
+ * The classes that are not part of the GUI should use it instead of JOptionPane.
+ *
+ * The dialogs are shown on the event dispatch thread, so the messages can be
+ * sent from any thread, e.g. from the worker threads of a task.
+ */
+public class Messages
+{
+   private static boolean isHeadless = false;
+
+   /**
+    * Sends all the messages to stderr, even if there is a display
+    * @param b
+    */
+   public static void setHeadless(boolean b) { isHeadless = b; }
+
+   /**
+    * @return true if the messages are sent to stderr
+    */
+   public static boolean isHeadless()
+   {
+      return isHeadless || GraphicsEnvironment.isHeadless();
+   }
+
+   public static void show(String msg)
+   {
+      show(msg, "Message", JOptionPane.INFORMATION_MESSAGE);
+   }
+
+   /**
+    * @param msg
+    * @param title
+    * @param type the message type of JOptionPane, for example JOptionPane.ERROR_MESSAGE
+    */
+   public static void show(final String msg, final String title, final int type)
+   {
+      if (isHeadless()) {
+         System.err.println(title + ": " + msg.replace('\n', ' '));
+         return;
+      }
+
+      // A worker thread does not wait for the dialog to be closed
+      if (!SwingUtilities.isEventDispatchThread()) {
+         SwingUtilities.invokeLater(new Runnable()
+         {
+            public void run()
+            {
+               JOptionPane.showMessageDialog(null, msg, title, type);
+            }
+         });
+         return;
+      }
+
+      JOptionPane.showMessageDialog(null, msg, title, type);
+   }
+}
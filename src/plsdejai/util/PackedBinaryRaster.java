@@ -0,0 +1,375 @@
+package plsdejai.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A binary raster, packed one bit per pixel in rows of 64-bit words.
+ * A set bit is a foreground pixel. Bit i of word w of a row is the pixel
+ * x = 64 * w + i, and the unused bits at the end of each row are always 0.
+ *
+ * Because about 90% of the pixels of a document page are background pixels,
+ * foreground pixels are visited by scanning words, and not pixel by pixel:
+ *    for (int x = bits.nextSetBit(0, y); x >= 0; x = bits.nextSetBit(x + 1, y))
+ *
+ * The words are kept in a LongBuffer, so that a raster can also be
+ * a read-only view of a memory-mapped file (see plsdejai.io.DatasetStore).
+ */
+public class PackedBinaryRaster
+{
+   private int width;
+   private int height;
+   // The number of words of each row
+   private int wordsPerRow;
+   // The rows of the raster; row y starts at index y * wordsPerRow
+   private LongBuffer words;
+
+   /**
+    * Creates a raster with no foreground pixel
+    * @param width
+    * @param height
+    */
+   public PackedBinaryRaster(int width, int height)
+   {
+      if (width < 0 || height < 0)
+         throw new IllegalArgumentException("Invalid raster dimensions");
+
+      this.width = width;
+      this.height = height;
+      wordsPerRow = (width + 63) >> 6;
+      words = LongBuffer.wrap(new long[wordsPerRow * height]);
+   }
+
+   /**
+    * Creates a raster, whose rows are the words of a buffer.
+    * The buffer is not copied, so a read-only buffer gives a read-only raster
+    * @param width
+    * @param height
+    * @param words the words of the rows, starting at index 0
+    */
+   public PackedBinaryRaster(int width, int height, LongBuffer words)
+   {
+      if (width < 0 || height < 0)
+         throw new IllegalArgumentException("Invalid raster dimensions");
+
+      this.width = width;
+      this.height = height;
+      wordsPerRow = (width + 63) >> 6;
+
+      if (words.remaining() != (long) wordsPerRow * height)
+         throw new IllegalArgumentException("The buffer has not the size of the raster");
+
+      this.words = words.slice();
+   }
+
+   /**
+    * Packs the first band of a raster
+    * @param raster
+    * @param foreground the sample value of the foreground pixels
+    */
+   public PackedBinaryRaster(Raster raster, int foreground)
+   {
+      this(raster.getWidth(), raster.getHeight());
+
+      if (!packBytes(raster, foreground)) {
+
+         int minX = raster.getMinX();
+         int minY = raster.getMinY();
+         int[] row = new int[width];
+
+         for (int y = 0; y < height; ++y) {
+            raster.getSamples(minX, minY + y, width, 1, 0, row);
+
+            int base = y * wordsPerRow;
+            for (int x = 0; x < width; ++x) {
+               if (row[x] == foreground)
+                  or(base + (x >> 6), 1L << (x & 63));
+            }
+         }
+      }
+   }
+
+   /* ************** Lookup table: reverses the bits of a byte ************* */
+   private static final int[] REVERSE = new int[256];
+
+   static {
+      for (int i = 0; i < 256; ++i) {
+         int r = 0;
+         for (int b = 0; b < 8; ++b) {
+            if ((i & (1 << b)) != 0)
+               r |= 1 << (7 - b);
+         }
+         REVERSE[i] = r;
+      }
+   }
+   /* ********************************************************************** */
+
+   /**
+    * Packs a raster of a TYPE_BYTE_BINARY image, 8 pixels at a time
+    * @return false if the raster has not the layout of a TYPE_BYTE_BINARY image
+    */
+   private boolean packBytes(Raster raster, int foreground)
+   {
+      SampleModel sm = raster.getSampleModel();
+      DataBuffer db = raster.getDataBuffer();
+
+      if (!(sm instanceof MultiPixelPackedSampleModel) || !(db instanceof DataBufferByte)
+              || ((MultiPixelPackedSampleModel) sm).getPixelBitStride() != 1
+              || (foreground != 0 && foreground != 1))
+         return false;
+
+      MultiPixelPackedSampleModel mpp = (MultiPixelPackedSampleModel) sm;
+
+      // The position of the raster in its sample model
+      int xs = raster.getMinX() - raster.getSampleModelTranslateX();
+      int ys = raster.getMinY() - raster.getSampleModelTranslateY();
+
+      int bitOffset = mpp.getDataBitOffset() + xs;
+      if ((bitOffset & 7) != 0)
+         return false;
+
+      byte[] data = ((DataBufferByte) db).getData();
+      int scanline = mpp.getScanlineStride();
+      int offset = db.getOffset() + (bitOffset >> 3);
+
+      // The bits of the image are 1 for the pixels with sample value 1
+      int invert = (foreground == 0) ? 0xff : 0;
+      int bytesPerRow = (width + 7) >> 3;
+
+      for (int y = 0; y < height; ++y) {
+         int index = offset + (ys + y) * scanline;
+         int base = y * wordsPerRow;
+
+         for (int i = 0; i < bytesPerRow; ++i) {
+            int b = REVERSE[(data[index + i] ^ invert) & 0xff];
+            if (b != 0)
+               or(base + (i >> 3), ((long) b) << ((i & 7) << 3));
+         }
+
+         // Clear the unused bits of the row
+         if ((width & 63) != 0) {
+            int last = base + wordsPerRow - 1;
+            words.put(last, words.get(last) & ((1L << (width & 63)) - 1));
+         }
+      }
+
+      return true;
+   }
+
+   public int getWidth() { return width; }
+
+   public int getHeight() { return height; }
+
+   public int getWordsPerRow() { return wordsPerRow; }
+
+   /**
+    * @return the word w of row y
+    */
+   public long getWord(int y, int w) { return words.get(y * wordsPerRow + w); }
+
+   private void or(int index, long bits)
+   {
+      words.put(index, words.get(index) | bits);
+   }
+
+   /**
+    * @return 1 if (x, y) is a foreground pixel, otherwise 0
+    */
+   public int get(int x, int y)
+   {
+      return (int) (words.get(y * wordsPerRow + (x >> 6)) >>> (x & 63)) & 1;
+   }
+
+   /**
+    * Sets (x, y) to a foreground pixel
+    */
+   public void set(int x, int y)
+   {
+      or(y * wordsPerRow + (x >> 6), 1L << (x & 63));
+   }
+
+   /**
+    * @return the first foreground pixel x' >= x of row y, or -1 if there is none
+    */
+   public int nextSetBit(int x, int y)
+   {
+      if (x >= width)
+         return -1;
+
+      int w = x >> 6;
+      int base = y * wordsPerRow;
+      long word = words.get(base + w) & (-1L << (x & 63));
+
+      for (;;) {
+         if (word != 0)
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+
+         if (++w == wordsPerRow)
+            return -1;
+
+         word = words.get(base + w);
+      }
+   }
+
+   /**
+    * @return the number of foreground pixels of row y
+    */
+   public int cardinality(int y)
+   {
+      int n = 0;
+      for (int w = 0, base = y * wordsPerRow; w < wordsPerRow; ++w)
+         n += Long.bitCount(words.get(base + w));
+
+      return n;
+   }
+
+   /**
+    * @return the horizontal projection profile: the number of foreground
+    *         pixels of each row
+    */
+   public int[] getRowProfile()
+   {
+      int[] profile = new int[height];
+      for (int y = 0; y < height; ++y)
+         profile[y] = cardinality(y);
+
+      return profile;
+   }
+
+   /**
+    * @return the transposed raster: the pixel (x, y) of this raster is the
+    *         pixel (y, x) of the transposed raster, so that its rows are the
+    *         columns of this raster
+    */
+   public PackedBinaryRaster transpose()
+   {
+      PackedBinaryRaster transposed = new PackedBinaryRaster(height, width);
+
+      for (int y = 0; y < height; ++y)
+         for (int x = nextSetBit(0, y); x >= 0; x = nextSetBit(x + 1, y))
+            transposed.set(y, x);
+
+      return transposed;
+   }
+
+   /**
+    * @return a SHA-1 digest of the size and the pixels of the raster, in
+    *         hexadecimal, that identifies its content
+    */
+   public String digest()
+   {
+      MessageDigest md = Digests.sha1();
+
+      ByteBuffer row = ByteBuffer.allocate(8 * Math.max(2, wordsPerRow));
+      row.putInt(width).putInt(height);
+      row.flip();
+      md.update(row);
+
+      for (int y = 0; y < height; ++y) {
+         row.clear();
+         for (int w = 0, base = y * wordsPerRow; w < wordsPerRow; ++w)
+            row.putLong(words.get(base + w));
+         row.flip();
+         md.update(row);
+      }
+
+      return Digests.toHex(md.digest());
+   }
+
+   /**
+    * Downsamples the raster. A pixel of the result is a foreground pixel,
+    * if any pixel of its factor x factor block is a foreground pixel,
+    * so that thin lines are not lost
+    * @param factor
+    * @return the downsampled raster
+    */
+   public PackedBinaryRaster reduce(int factor)
+   {
+      if (factor < 1)
+         throw new IllegalArgumentException("Invalid downsampling factor");
+
+      PackedBinaryRaster reduced = new PackedBinaryRaster(
+              (width + factor - 1) / factor, (height + factor - 1) / factor);
+
+      for (int y = 0; y < height; ++y) {
+         int ry = y / factor;
+         for (int x = nextSetBit(0, y); x >= 0; x = nextSetBit(x + 1, y))
+            reduced.set(x / factor, ry);
+      }
+
+      return reduced;
+   }
+
+   /**
+    * Unpacks the raster, 8 pixels at a time
+    * @param foreground the sample value of the foreground pixels, 0 or 1
+    * @return the raster of a new TYPE_BYTE_BINARY image with these pixels
+    */
+   public WritableRaster toRaster(int foreground)
+   {
+      WritableRaster raster = new BufferedImage(width, height,
+              BufferedImage.TYPE_BYTE_BINARY).getRaster();
+
+      byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+      int scanline = ((MultiPixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+
+      // The bits of the image are 1 for the pixels with sample value 1
+      int invert = (foreground == 0) ? 0xff : 0;
+      int bytesPerRow = (width + 7) >> 3;
+
+      for (int y = 0; y < height; ++y) {
+         int index = y * scanline;
+         int base = y * wordsPerRow;
+
+         for (int i = 0; i < bytesPerRow; ++i) {
+            int b = (int) (words.get(base + (i >> 3)) >>> ((i & 7) << 3)) & 0xff;
+            data[index + i] = (byte) (REVERSE[b] ^ invert);
+         }
+      }
+
+      return raster;
+   }
+
+   /**
+    * Fills the first band of a raster with a sample value.
+    * The raster of a TYPE_BYTE_BINARY image is filled a byte at a time
+    * @param raster
+    * @param value 0 or 1
+    */
+   public static void fill(WritableRaster raster, int value)
+   {
+      SampleModel sm = raster.getSampleModel();
+      DataBuffer db = raster.getDataBuffer();
+
+      if (sm instanceof MultiPixelPackedSampleModel && db instanceof DataBufferByte
+              && ((MultiPixelPackedSampleModel) sm).getPixelBitStride() == 1
+              && raster.getParent() == null && db.getOffset() == 0
+              && sm.getWidth() == raster.getWidth() && sm.getHeight() == raster.getHeight()
+              && ((MultiPixelPackedSampleModel) sm).getDataBitOffset() == 0
+              && (value == 0 || value == 1)) {
+
+         Arrays.fill(((DataBufferByte) db).getData(), (byte) (value == 0 ? 0 : 0xff));
+         return;
+      }
+
+      int width = raster.getWidth();
+      int height = raster.getHeight();
+      int minX = raster.getMinX();
+      int minY = raster.getMinY();
+
+      int[] row = new int[width];
+      Arrays.fill(row, value);
+
+      for (int y = 0; y < height; ++y)
+         raster.setSamples(minX, minY + y, width, 1, 0, row);
+   }
+}
@@ -4,15 +4,19 @@ import java.awt.Color;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
 import plsdejai.io.ImageIO;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
@@ -51,6 +55,10 @@ public class LSubspaceParameterToolbar extends AbstractDefaultParameterToolbar
 
    JTextField subspaceFieldInfo;
 
+   // The training mode
+   JCheckBox uniquePatches;
+   NumericTextField maxPatches;
+
    private FileLister fl = new FileLister();
 
    public LSubspaceParameterToolbar(String title, LSubspaceOfCentralMoments model)
@@ -206,6 +214,18 @@ public class LSubspaceParameterToolbar extends AbstractDefaultParameterToolbar
       setSubspaceFieldInfo();
    }
 
+   /**
+    * Loads a saved subspace to the model, without a file dialog,
+    * and sets the parameters to the parameters of the subspace
+    * @param f the subspace file
+    * @throws IOException if the file is not a valid subspace file
+    */
+   public void loadSubspace(File f) throws IOException
+   {
+      model.loadSubspace(f);
+      syncParametersToSubspace();
+   }
+
    private void syncParametersToSubspace()
    {
       setParameterValue(LSubspaceOfCentralMomentsOp.KEY_HALF_WINDOW,
@@ -241,13 +261,23 @@ public class LSubspaceParameterToolbar extends AbstractDefaultParameterToolbar
                   public Void doInBackground()
                   {
                      if (model != null) {
-                        File f = openFileDialog(TRAINING_IMAGE_LISTER);
+                        File[] files = openFilesDialog(TRAINING_IMAGE_LISTER);
+
+                        if (files != null && files.length > 0) {
+
+                           BufferedImage[] images = new BufferedImage[files.length];
+                           for (int i = 0; i < files.length && !isCancelled(); ++i)
+                              images[i] = ImageIO.fileLoad(files[i]);
 
-                        if (f != null) {
-                           
-                           model.addTrainingData(ImageIO.fileLoad(f), this);
+                           model.setPatchDeduplicationEnabled(uniquePatches.isSelected());
+                           Number max = maxPatches.getValue();
+                           model.setMaxPatchesPerImage(max == null ? 0 : max.intValue());
+
+                           model.addTrainingData(images, this);
 
                            setSubspaceFieldInfo();
+                           subspaceFieldInfo.setText(model.toString() + " "
+                                   + model.getTrainingInfo());
                         }
 
                      }
@@ -277,6 +307,20 @@ public class LSubspaceParameterToolbar extends AbstractDefaultParameterToolbar
 
       toolbars[1].add(Box.createHorizontalStrut(5));
 
+      uniquePatches = new JCheckBox("Unique patches");
+      uniquePatches.setToolTipText("Train only with the first of the patches that are equal");
+      toolbars[1].add(uniquePatches);
+      toolbars[1].add(Box.createHorizontalStrut(5));
+
+      toolbars[1].add(new JLabel("Max patches/image "));
+      maxPatches = new NumericTextField(FIELD_COL, NumericTextField.INTEGER,
+              Integer.valueOf(0), Integer.valueOf(Integer.MAX_VALUE));
+      maxPatches.setValue(Integer.valueOf(0));
+      maxPatches.setToolTipText("0 for all the patches; otherwise a random sample of the patches is used");
+      maxPatches.setMaximumSize(maxPatches.getPreferredSize());
+      toolbars[1].add(maxPatches);
+      toolbars[1].add(Box.createHorizontalStrut(5));
+
       loadSubspace = createButton("Load saved subspace", toolbars[1]);
       loadSubspace.addActionListener(new ActionListener() {
          public void actionPerformed(ActionEvent e)
@@ -298,7 +342,18 @@ public class LSubspaceParameterToolbar extends AbstractDefaultParameterToolbar
                clearSubspace.setEnabled(false);
                saveSubspace.setEnabled(false);
 
-               model.loadSubspace(openFileDialog(SUBSPACE_LISTER));
+               File f = openFileDialog(SUBSPACE_LISTER);
+
+               if (f != null) {
+                  try {
+                     model.loadSubspace(f);
+
+                  } catch (IOException ex) {
+                     JOptionPane.showMessageDialog(null,
+                             "Cannot load the subspace:\n" + ex.getMessage(),
+                             "Loading failure", JOptionPane.ERROR_MESSAGE);
+                  }
+               }
 
                loadTrainImage.setEnabled(true);
                createSubspace.setEnabled(true);
@@ -347,7 +402,14 @@ public class LSubspaceParameterToolbar extends AbstractDefaultParameterToolbar
                   clearSubspace.setEnabled(false);
                   saveSubspace.setEnabled(false);
 
-                  model.storeSubspace(f);
+                  try {
+                     model.storeSubspace(f);
+
+                  } catch (IOException ex) {
+                     JOptionPane.showMessageDialog(null,
+                             "Cannot save the subspace:\n" + ex.getMessage(),
+                             "Saving failure", JOptionPane.ERROR_MESSAGE);
+                  }
 
                   loadTrainImage.setEnabled(true);
                   createSubspace.setEnabled(true);
@@ -428,6 +490,38 @@ public class LSubspaceParameterToolbar extends AbstractDefaultParameterToolbar
       return f;
    }
 
+   /**
+    * Opens a dialog for selecting multiple training images
+    * @param type
+    * @return the selected files, or null
+    */
+   private File[] openFilesDialog(int type)
+   {
+      File[] files = null;
+
+      String[] supportedExtensions = plsdejai.util.ImageIconUtils.getSupportedExtensions();
+      FileNameExtensionFilter filter = new FileNameExtensionFilter("Images", supportedExtensions);
+      fl.setFilePreviewSupported(true);
+      fl.setFilePreviewEnabled(false);
+
+      fl.setOkButtonText("Open");
+      fl.setCancelButtonText("Cancel");
+
+      fl.addChoosableFileFilter(filter);
+
+      int retVal = fl.showDialog((JFrame) SwingUtilities.getRoot(this),
+              FileLister.OPEN_FILES_DIALOG, "Open training images");
+
+      // Process the results
+      if (retVal == FileLister.APPROVE_OPTION)
+         files = fl.getSelectedFiles();
+
+      // Reset the file lister for the next time it's shown.
+      fl.setSelectedFile(null);
+
+      return files;
+   }
+
    private File openFileDialog(int type)
    {
       File f = null;
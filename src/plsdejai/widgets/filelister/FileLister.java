@@ -372,6 +372,7 @@ public class FileLister extends javax.swing.JPanel
    JButton selectAllFilesButton;   
    JPanel batchFilterInfoPanel;
    JTextField batchFilterDirField;
+   JCheckBox batchFilterForceBox;
    JComponent preview;
 
    public static final String BATCH_TARGET_SUBDIRECTORY = "filtered-files";
@@ -879,9 +880,23 @@ public class FileLister extends javax.swing.JPanel
          batchFilterDirField.setText("");
       else
          batchFilterDirField.setText((new File(currentDir, "Filtered-files")).getAbsolutePath());     
+
+      // The files that are filtered already, by the same filter, are skipped
+      // unless the batch is forced
+      batchFilterForceBox = new JCheckBox("Filter unchanged files again");
+      batchFilterForceBox.setToolTipText("Otherwise the files that are filtered already, "
+              + "by the same filter and parameters, are skipped");
+      batchFilterInfoPanel.add(Box.createHorizontalStrut(5));
+      batchFilterInfoPanel.add(batchFilterForceBox);
       
    }
 
+   /**
+    * @return true if all the files of a batch are filtered, even if
+    *         their filtered files are still valid
+    */
+   public boolean isBatchFilterForced() { return batchFilterForceBox.isSelected(); }
+
    private boolean isBatchFilterInfoPanelSupported = true;
    public void setBatchFilterInfoPanelSupported(boolean isSupported)
    {